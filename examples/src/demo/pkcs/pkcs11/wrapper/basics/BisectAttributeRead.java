@@ -0,0 +1,151 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package demo.pkcs.pkcs11.wrapper.basics;
+
+import iaik.pkcs.pkcs11.Module;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.Slot;
+import iaik.pkcs.pkcs11.Token;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+import java.io.IOException;
+
+/**
+ * This demo program checks how many C_GetAttributeValue calls reading an object takes, if some of
+ * the requested attributes cannot be read. It reads some standard attributes plus two vendor-defined
+ * ones, which the object does not have, in one batch. If the batched call fails, the batch is split
+ * in halves until the failing attributes are isolated; with k failing attributes out of n, this must
+ * not take more than 1 + 2 * k * ceil(log2(n)) calls.
+ */
+public class BisectAttributeRead {
+
+  private static final long[] ATTRIBUTE_TYPES = {
+    PKCS11Constants.CKA_CLASS, PKCS11Constants.CKA_TOKEN, PKCS11Constants.CKA_PRIVATE,
+    PKCS11Constants.CKA_LABEL, PKCS11Constants.CKA_MODIFIABLE, PKCS11Constants.CKA_ID,
+    PKCS11Constants.CKA_KEY_TYPE, PKCS11Constants.CKA_CERTIFICATE_TYPE,
+    PKCS11Constants.CKA_SUBJECT, PKCS11Constants.CKA_APPLICATION,
+    PKCS11Constants.CKA_LOCAL, PKCS11Constants.CKA_START_DATE,
+    PKCS11Constants.CKA_END_DATE, PKCS11Constants.CKA_DERIVE,
+    PKCS11Constants.CKA_VENDOR_DEFINED | 0x7ff0L,
+    PKCS11Constants.CKA_VENDOR_DEFINED | 0x7ff1L };
+
+  /**
+   * Usage: BisectAttributeRead PKCS#11-module [userPIN] [slot-index]
+   */
+  public static void main(String[] args) throws TokenException, IOException {
+    if (args.length < 1) {
+      printUsage();
+      throw new IOException("Missing argument!");
+    }
+
+    Module pkcs11Module = Module.getInstance(args[0]);
+    pkcs11Module.initialize(null);
+    // make every read reach the module
+    pkcs11Module.setAttributeCache(null);
+
+    Slot[] slots = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+    if (slots.length == 0) {
+      System.out.println("No slot with present token found!");
+      throw new TokenException("No token found!");
+    }
+
+    Slot selectedSlot = (2 < args.length) ? slots[Integer.parseInt(args[2])] : slots[0];
+    Token token = selectedSlot.getToken();
+    Session session = token.openSession(Token.SessionType.SERIAL_SESSION,
+        Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+    try {
+      if (1 < args.length) {
+        session.login(Session.UserType.USER, args[1].toCharArray());
+      }
+
+      long[] objectHandles = session.findObjectHandles(new GenericTemplate(), 1);
+      if (objectHandles.length == 0) {
+        throw new TokenException("There is no object on the token.");
+      }
+      long objectHandle = objectHandles[0];
+
+      // read each attribute on its own to find out which ones fail in a batch
+      int failing = 0;
+      long callsBefore = PKCS11Object.getAttributeReadCount();
+      for (long type : ATTRIBUTE_TYPES) {
+        Attribute attribute = session.getAttributeValues(objectHandle, new long[] { type })
+            .getAttribute(type);
+        if (!attribute.isPresent() || attribute.isSensitive()) {
+          failing++;
+        }
+      }
+      long singleCalls = PKCS11Object.getAttributeReadCount() - callsBefore;
+
+      callsBefore = PKCS11Object.getAttributeReadCount();
+      session.getAttributeValues(objectHandle, ATTRIBUTE_TYPES);
+      long batchCalls = PKCS11Object.getAttributeReadCount() - callsBefore;
+
+      int n = ATTRIBUTE_TYPES.length;
+      int depth = 32 - Integer.numberOfLeadingZeros(n - 1);
+      long maxCalls = 1 + 2L * failing * depth;
+
+      System.out.println(n + " attributes, " + failing + " of them fail");
+      System.out.println("one call per attribute: " + singleCalls + " calls");
+      System.out.println("batch with bisection:   " + batchCalls + " calls (at most " + maxCalls
+          + " expected)");
+      if (batchCalls > maxCalls) {
+        throw new TokenException("Bisection took " + batchCalls + " calls, expected at most "
+            + maxCalls);
+      }
+      System.out.println("Test passed successfully.");
+    } finally {
+      session.closeSession();
+      pkcs11Module.finalize(null);
+    }
+  }
+
+  protected static void printUsage() {
+    System.out.println("BisectAttributeRead <PKCS#11 module name> [<user PIN>] [<slot-index>]");
+    System.out.println("e.g.: BisectAttributeRead softhsm2.so 1234");
+  }
+
+}
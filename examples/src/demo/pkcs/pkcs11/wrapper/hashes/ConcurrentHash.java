@@ -161,17 +161,12 @@ public class ConcurrentHash {
     session2.digestInit(digestMechanism);
 
     byte[] dataBuffer = new byte[1024];
-    byte[] helpBuffer;
     int bytesRead;
 
     // feed in all data from the input stream
     while ((bytesRead = dataInputStream.read(dataBuffer)) >= 0) {
-      helpBuffer = new byte[bytesRead]; // we need a buffer that only holds what to send for
-                                        // digesting
-      System.arraycopy(dataBuffer, 0, helpBuffer, 0, bytesRead);
-      session1.digestUpdate(helpBuffer);
-      session2.digestUpdate(helpBuffer);
-      Arrays.fill(helpBuffer, (byte) 0); // ensure that no data is left in the memory
+      session1.digestUpdate(dataBuffer, 0, bytesRead);
+      session2.digestUpdate(dataBuffer, 0, bytesRead);
     }
     Arrays.fill(dataBuffer, (byte) 0); // ensure that no data is left in the memory
 
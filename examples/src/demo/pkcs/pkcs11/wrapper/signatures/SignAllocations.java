@@ -0,0 +1,172 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without modification,
+// are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, this
+//    list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from this
+//    software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package demo.pkcs.pkcs11.wrapper.signatures;
+
+import iaik.pkcs.pkcs11.BufferPool;
+import iaik.pkcs.pkcs11.Mechanism;
+import iaik.pkcs.pkcs11.Module;
+import iaik.pkcs.pkcs11.Session;
+import iaik.pkcs.pkcs11.Slot;
+import iaik.pkcs.pkcs11.Token;
+import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.ValuedSecretKey;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * This demo program measures how many bytes the sign methods of the session allocate per call. It
+ * MACs the same data with sign(byte[]) and with the overloads which write into buffers of the
+ * caller, and prints the allocated bytes per call of the current thread. The overloads save the
+ * result array of the caller only; the JDK wrapper still returns the signature in a new array, and
+ * data which is not a whole heap array is copied. So they do not allocate less than sign(byte[]).
+ */
+public class SignAllocations {
+
+  private static final int ITERATIONS = 10000;
+
+  /**
+   * Usage: SignAllocations PKCS#11-module user-PIN [slot-index]
+   */
+  public static void main(String[] args) throws TokenException, IOException {
+    if (args.length < 2) {
+      printUsage();
+      throw new IOException("Missing argument!");
+    }
+
+    java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (!(threadBean instanceof com.sun.management.ThreadMXBean)
+        || !((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+      throw new IOException("This JVM does not count allocated bytes per thread.");
+    }
+    com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threadBean;
+
+    Module pkcs11Module = Module.getInstance(args[0]);
+    pkcs11Module.initialize(null);
+
+    Slot[] slots = pkcs11Module.getSlotList(Module.SlotRequirement.TOKEN_PRESENT);
+    if (slots.length == 0) {
+      System.out.println("No slot with present token found!");
+      throw new TokenException("No token found!");
+    }
+
+    Slot selectedSlot = (2 < args.length) ? slots[Integer.parseInt(args[2])] : slots[0];
+    Token token = selectedSlot.getToken();
+    Session session = token.openSession(Token.SessionType.SERIAL_SESSION,
+        Token.SessionReadWriteBehavior.RO_SESSION, null, null);
+    try {
+      session.login(Session.UserType.USER, args[1].toCharArray());
+
+      ValuedSecretKey keyTemplate = new ValuedSecretKey(PKCS11Constants.CKK_AES);
+      keyTemplate.getSign().setBooleanValue(Boolean.TRUE);
+      keyTemplate.getToken().setBooleanValue(Boolean.FALSE);
+      keyTemplate.getValue().setByteArrayValue(session.generateRandom(16));
+      ValuedSecretKey key = (ValuedSecretKey) session.createObject(keyTemplate);
+      Mechanism mechanism = Mechanism.get(PKCS11Constants.CKM_AES_MAC);
+
+      byte[] data = session.generateRandom(1024);
+      BufferPool pool = new BufferPool(64, 4);
+      ByteBuffer heapIn = ByteBuffer.wrap(data);
+      ByteBuffer heapOut = ByteBuffer.allocate(64);
+      ByteBuffer directIn = ByteBuffer.allocateDirect(data.length);
+      directIn.put(data);
+      ByteBuffer directOut = ByteBuffer.allocateDirect(64);
+
+      long threadId = Thread.currentThread().getId();
+      // the first round warms up, the second one is measured
+      long[] bytes = new long[5];
+      for (int round = 0; round < 2; round++) {
+        for (int variant = 0; variant < bytes.length; variant++) {
+          long before = allocations.getThreadAllocatedBytes(threadId);
+          for (int i = 0; i < ITERATIONS; i++) {
+            session.signInit(mechanism, key);
+            switch (variant) {
+            case 0:
+              session.sign(data);
+              break;
+            case 1:
+            case 2:
+              byte[] out = pool.acquire();
+              try {
+                int offset = variant - 1;
+                session.sign(data, offset, data.length - offset, out, 0, out.length);
+              } finally {
+                pool.release(out);
+              }
+              break;
+            case 3:
+              heapIn.clear();
+              heapOut.clear();
+              session.sign(heapIn, heapOut);
+              break;
+            default:
+              directIn.clear();
+              directOut.clear();
+              session.sign(directIn, directOut);
+              break;
+            }
+          }
+          bytes[variant] = (allocations.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+        }
+      }
+
+      System.out.println("bytes allocated per call:");
+      System.out.println("sign(byte[]):                         " + bytes[0]);
+      System.out.println("sign(byte[], ..., out), whole array:  " + bytes[1]);
+      System.out.println("sign(byte[], ..., out), part:         " + bytes[2]);
+      System.out.println("sign(ByteBuffer, ByteBuffer), heap:   " + bytes[3]);
+      System.out.println("sign(ByteBuffer, ByteBuffer), direct: " + bytes[4]);
+    } finally {
+      session.closeSession();
+      pkcs11Module.finalize(null);
+    }
+  }
+
+  protected static void printUsage() {
+    System.out.println("SignAllocations <PKCS#11 module name> <user PIN> [<slot-index>]");
+    System.out.println("e.g.: SignAllocations softhsm2.so 1234");
+  }
+
+}
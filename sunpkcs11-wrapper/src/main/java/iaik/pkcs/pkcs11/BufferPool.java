@@ -0,0 +1,174 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of byte arrays of one size, for the methods of {@link Session}
+ * which write their results into arrays of the caller; e.g.
+ * <pre><code>
+ *   BufferPool pool = new BufferPool(512, 64);
+ *   ...
+ *   byte[] buffer = pool.acquire();
+ *   try {
+ *     int len = session.sign(data, 0, data.length, buffer, 0, buffer.length);
+ *     ...
+ *   } finally {
+ *     pool.release(buffer);
+ *   }
+ * </code></pre>
+ * Released arrays are overwritten with zeros, so that no signatures, keys
+ * or random bytes stay in the pool. The pool is thread-safe. If it is empty,
+ * acquire creates a new array; if it is full, release drops the array.
+ *
+ * @invariants (bufferSize >= 0) and (buffers <> null)
+ */
+public class BufferPool {
+
+  /**
+   * The length of the arrays of this pool.
+   */
+  private final int bufferSize;
+
+  /**
+   * The arrays ready for use.
+   */
+  private final BlockingQueue<byte[]> buffers;
+
+  /**
+   * Constructor taking the size of the arrays and the maximum number of
+   * arrays kept.
+   *
+   * @param bufferSize
+   *          The length of the arrays of this pool.
+   * @param maxPooled
+   *          The maximum number of arrays kept for reuse.
+   * @preconditions (bufferSize >= 0) and (maxPooled > 0)
+   * @postconditions
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    if (bufferSize < 0) {
+      throw new IllegalArgumentException("bufferSize must not be negative");
+    }
+    if (maxPooled < 1) {
+      throw new IllegalArgumentException("maxPooled must be at least 1");
+    }
+    this.bufferSize = bufferSize;
+    this.buffers = new ArrayBlockingQueue<>(maxPooled);
+  }
+
+  /**
+   * Get the length of the arrays of this pool.
+   *
+   * @return The length of the arrays.
+   * @preconditions
+   * @postconditions
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Takes an array from the pool, or creates a new one if the pool is
+   * empty. The array contains zeros only.
+   *
+   * @return An array of length {@link #getBufferSize()}.
+   * @preconditions
+   * @postconditions (result <> null) and (result.length == bufferSize)
+   */
+  public byte[] acquire() {
+    byte[] buffer = buffers.poll();
+    return (buffer != null) ? buffer : new byte[bufferSize];
+  }
+
+  /**
+   * Overwrites the given array with zeros and gives it back to the pool.
+   * The caller must not use the array afterwards. Arrays of a different
+   * length are zeroized but not pooled. Releasing an array which is still
+   * in the pool does not pool it twice; an array which was acquired again
+   * in between cannot be told apart, though.
+   *
+   * @param buffer
+   *          The array acquired from this pool.
+   * @preconditions (buffer <> null)
+   * @postconditions
+   */
+  public void release(byte[] buffer) {
+    Util.requireNonNull("buffer", buffer);
+    Arrays.fill(buffer, (byte) 0);
+    if (buffer.length == bufferSize) {
+      // contains compares the identity of arrays
+      synchronized (buffers) {
+        if (!buffers.contains(buffer)) {
+          buffers.offer(buffer);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the number of arrays ready for use.
+   *
+   * @return The number of pooled arrays.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int getPooledCount() {
+    return buffers.size();
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Buffer Size: ", bufferSize,
+        "\nPooled: ", buffers.size());
+  }
+
+}
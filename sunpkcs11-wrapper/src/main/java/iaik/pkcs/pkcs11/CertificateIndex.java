@@ -0,0 +1,571 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.CertificateTypeAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.LongAttribute;
+import iaik.pkcs.pkcs11.objects.ObjectClassAttribute;
+
+/**
+ * An in-memory index of the X.509 public key certificates on a token. The
+ * certificates are enumerated with a single find operation and one
+ * C_GetAttributeValue call per certificate. After that, certificates can be
+ * looked up by subject, by issuer and serial number and by the hash of the
+ * subject public key without calling C_FindObjects; e.g. for chain building
+ * or for OCSP responder lookups.
+ * <p/>
+ * The index keeps the DER values of the subject, the issuer and the serial
+ * number and the key hash of each certificate, but not the certificates
+ * themselves. The lookup methods return the handles of the certificates
+ * whose values equal the requested value exactly; so a certificate on the
+ * token cannot be returned for another name by a crafted value.
+ * <p/>
+ * If a certificate does not have CKA_SUBJECT, CKA_ISSUER, CKA_SERIAL_NUMBER
+ * or CKA_HASH_OF_SUBJECT_PUBLIC_KEY, the missing values are taken from the
+ * parsed CKA_VALUE. The key hash is the SHA-1 hash of the subject public key
+ * bits, as used for CKA_HASH_OF_SUBJECT_PUBLIC_KEY and in OCSP requests.
+ * Note that this costs a second C_GetAttributeValue call and the parsing of
+ * the whole certificate for each such certificate, on every refresh and on
+ * every incremental update. Many tokens do not set
+ * CKA_HASH_OF_SUBJECT_PUBLIC_KEY, so building the index of such a token
+ * takes about as long as converting all its certificates; e.g. with
+ * {@link iaik.pkcs.pkcs11.objects.JcaConverter}. The parsed certificates
+ * are not kept.
+ * <p/>
+ * Like {@link KeyIndex}, the index registers itself as
+ * {@link ObjectListener} with the module to follow changes made through
+ * this library, and can be rebuilt with {@link #refresh(Session)}. Changes
+ * notified during a refresh are not lost, and failed incremental updates
+ * mark the index as stale; see {@link #isStale()}. Only token objects are
+ * indexed. All methods of this class are thread-safe.
+ *
+ * @see iaik.pkcs.pkcs11.objects.X509PublicKeyCertificate
+ * @invariants (module <> null)
+ */
+public class CertificateIndex extends ObjectIndex<CertificateIndex.Keys> {
+
+  /**
+   * The attributes read for every certificate.
+   */
+  private static final long[] CERTIFICATE_ATTRIBUTES = {
+    PKCS11Constants.CKA_CLASS,
+    PKCS11Constants.CKA_TOKEN,
+    PKCS11Constants.CKA_CERTIFICATE_TYPE,
+    PKCS11Constants.CKA_SUBJECT,
+    PKCS11Constants.CKA_ISSUER,
+    PKCS11Constants.CKA_SERIAL_NUMBER,
+    PKCS11Constants.CKA_HASH_OF_SUBJECT_PUBLIC_KEY };
+
+  private static final long[] NO_HANDLES = new long[0];
+
+  /**
+   * The lookup keys of one indexed certificate; needed to remove it.
+   */
+  static final class Keys {
+
+    private final ByteBuffer subject;
+
+    private final ByteBuffer issuerAndSerialNumber;
+
+    /**
+     * The key hash, or null if it is unknown.
+     */
+    private final ByteBuffer keyHash;
+
+    Keys(ByteBuffer subject, ByteBuffer issuerAndSerialNumber,
+        ByteBuffer keyHash) {
+      this.subject = subject;
+      this.issuerAndSerialNumber = issuerAndSerialNumber;
+      this.keyHash = keyHash;
+    }
+
+  }
+
+  private final Map<Long, Keys> byHandle = new HashMap<>();
+
+  private final Map<ByteBuffer, long[]> bySubject = new HashMap<>();
+
+  private final Map<ByteBuffer, long[]> byIssuerAndSerialNumber =
+      new HashMap<>();
+
+  private final Map<ByteBuffer, long[]> byKeyHash = new HashMap<>();
+
+  /**
+   * Creates the index for the token of the given session and registers it
+   * with the module of the session.
+   *
+   * @param session
+   *          The session to enumerate the certificates with.
+   * @exception TokenException
+   *              If enumerating the certificates failed.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public CertificateIndex(Session session) throws TokenException {
+    super(session);
+    register(session);
+  }
+
+  /**
+   * Reads all X.509 token certificates.
+   */
+  @Override
+  Map<Long, Keys> enumerate(Session session) throws TokenException {
+    GenericTemplate template = new GenericTemplate();
+    ObjectClassAttribute classAttribute = new ObjectClassAttribute();
+    classAttribute.setLongValue(PKCS11Constants.CKO_CERTIFICATE);
+    template.addAttribute(classAttribute);
+    CertificateTypeAttribute typeAttribute = new CertificateTypeAttribute();
+    typeAttribute.setLongValue(PKCS11Constants.CKC_X_509);
+    template.addAttribute(typeAttribute);
+    BooleanAttribute tokenAttribute = new BooleanAttribute(Attribute.TOKEN);
+    tokenAttribute.setBooleanValue(Boolean.TRUE);
+    template.addAttribute(tokenAttribute);
+
+    Map<Long, Keys> entries = new HashMap<>();
+    for (long handle : session.findAllObjectHandles(template)) {
+      Keys keys = read(session, handle);
+      if (keys != null) {
+        entries.put(handle, keys);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Looks up the certificates with the given subject.
+   *
+   * @param subject
+   *          The DER encoding of the subject name.
+   * @return The handles of the matching certificates. Empty, if there is
+   *         none.
+   * @preconditions (subject <> null)
+   * @postconditions (result <> null)
+   */
+  public synchronized long[] findBySubject(byte[] subject) {
+    Util.requireNonNull("subject", subject);
+    return lookup(bySubject, ByteBuffer.wrap(subject));
+  }
+
+  /**
+   * Looks up the certificates with the given subject.
+   *
+   * @param subject
+   *          The subject name.
+   * @return The handles of the matching certificates. Empty, if there is
+   *         none.
+   * @preconditions (subject <> null)
+   * @postconditions (result <> null)
+   */
+  public long[] findBySubject(X500Principal subject) {
+    Util.requireNonNull("subject", subject);
+    return findBySubject(subject.getEncoded());
+  }
+
+  /**
+   * Looks up the certificates with the given issuer and serial number.
+   *
+   * @param issuer
+   *          The DER encoding of the issuer name.
+   * @param serialNumber
+   *          The serial number.
+   * @return The handles of the matching certificates. Usually at most one.
+   * @preconditions (issuer <> null) and (serialNumber <> null)
+   * @postconditions (result <> null)
+   */
+  public synchronized long[] findByIssuerAndSerialNumber(byte[] issuer,
+      BigInteger serialNumber) {
+    Util.requireNonNull("issuer", issuer);
+    Util.requireNonNull("serialNumber", serialNumber);
+    return lookup(byIssuerAndSerialNumber,
+        issuerAndSerialNumber(issuer, serialNumber));
+  }
+
+  /**
+   * Looks up the certificates with the given issuer and serial number.
+   *
+   * @param issuer
+   *          The issuer name.
+   * @param serialNumber
+   *          The serial number.
+   * @return The handles of the matching certificates. Usually at most one.
+   * @preconditions (issuer <> null) and (serialNumber <> null)
+   * @postconditions (result <> null)
+   */
+  public long[] findByIssuerAndSerialNumber(X500Principal issuer,
+      BigInteger serialNumber) {
+    Util.requireNonNull("issuer", issuer);
+    return findByIssuerAndSerialNumber(issuer.getEncoded(), serialNumber);
+  }
+
+  /**
+   * Looks up the certificates with the given hash of the subject public key.
+   *
+   * @param keyHash
+   *          The SHA-1 hash of the subject public key bits; i.e. the value of
+   *          CKA_HASH_OF_SUBJECT_PUBLIC_KEY.
+   * @return The handles of the matching certificates. Empty, if there is
+   *         none.
+   * @preconditions (keyHash <> null)
+   * @postconditions (result <> null)
+   */
+  public synchronized long[] findByKeyHash(byte[] keyHash) {
+    Util.requireNonNull("keyHash", keyHash);
+    return lookup(byKeyHash, ByteBuffer.wrap(keyHash));
+  }
+
+  /**
+   * Get the number of indexed certificates.
+   *
+   * @return The number of indexed certificates.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized int size() {
+    return byHandle.size();
+  }
+
+  /**
+   * Reads the indexed values of the given object. If some of them are
+   * missing, CKA_VALUE is read and parsed as well.
+   *
+   * @return The lookup keys, or null if the object is no X.509 token
+   *         certificate or if its values cannot be determined.
+   */
+  @Override
+  Keys read(Session session, long objectHandle) throws TokenException {
+    GenericTemplate attributes = session.getAttributeValues(objectHandle,
+        CERTIFICATE_ATTRIBUTES);
+
+    if (!Long.valueOf(PKCS11Constants.CKO_CERTIFICATE).equals(
+          longValue(attributes.getAttribute(PKCS11Constants.CKA_CLASS)))
+        || !Long.valueOf(PKCS11Constants.CKC_X_509).equals(longValue(
+          attributes.getAttribute(PKCS11Constants.CKA_CERTIFICATE_TYPE)))) {
+      return null;
+    }
+    Attribute token = attributes.getAttribute(PKCS11Constants.CKA_TOKEN);
+    if (!(token instanceof BooleanAttribute)
+        || !Boolean.TRUE.equals(((BooleanAttribute) token).getBooleanValue())) {
+      return null;
+    }
+
+    byte[] subject = byteArrayValue(
+        attributes.getAttribute(PKCS11Constants.CKA_SUBJECT));
+    byte[] issuer = byteArrayValue(
+        attributes.getAttribute(PKCS11Constants.CKA_ISSUER));
+    BigInteger serialNumber = decodeSerialNumber(byteArrayValue(
+        attributes.getAttribute(PKCS11Constants.CKA_SERIAL_NUMBER)));
+    byte[] keyHash = byteArrayValue(attributes.getAttribute(
+        PKCS11Constants.CKA_HASH_OF_SUBJECT_PUBLIC_KEY));
+
+    if (subject == null || issuer == null || serialNumber == null
+        || keyHash == null) {
+      X509Certificate certificate = readCertificate(session, objectHandle);
+      if (certificate == null) {
+        return null;
+      }
+      if (subject == null) {
+        subject = certificate.getSubjectX500Principal().getEncoded();
+      }
+      if (issuer == null) {
+        issuer = certificate.getIssuerX500Principal().getEncoded();
+      }
+      if (serialNumber == null) {
+        serialNumber = certificate.getSerialNumber();
+      }
+      if (keyHash == null) {
+        keyHash = hashSubjectPublicKey(certificate.getPublicKey().getEncoded());
+      }
+    }
+
+    return new Keys(ByteBuffer.wrap(subject),
+        issuerAndSerialNumber(issuer, serialNumber),
+        (keyHash != null) ? ByteBuffer.wrap(keyHash) : null);
+  }
+
+  /**
+   * Reads and parses CKA_VALUE of the given certificate.
+   *
+   * @return The parsed certificate, or null if it cannot be parsed.
+   */
+  private static X509Certificate readCertificate(Session session,
+      long objectHandle) throws TokenException {
+    byte[] encoded = byteArrayValue(session.getAttributeValues(objectHandle,
+        new long[] { PKCS11Constants.CKA_VALUE })
+        .getAttribute(PKCS11Constants.CKA_VALUE));
+    if (encoded == null) {
+      return null;
+    }
+
+    try {
+      return (X509Certificate) CertificateFactory.getInstance("X.509")
+          .generateCertificate(new ByteArrayInputStream(encoded));
+    } catch (CertificateException ex) {
+      return null;
+    }
+  }
+
+  private static Long longValue(Attribute attribute) {
+    if (attribute instanceof LongAttribute && attribute.isPresent()) {
+      return ((LongAttribute) attribute).getLongValue();
+    }
+    return null;
+  }
+
+  private static byte[] byteArrayValue(Attribute attribute) {
+    if (attribute instanceof ByteArrayAttribute && attribute.isPresent()) {
+      byte[] value = ((ByteArrayAttribute) attribute).getByteArrayValue();
+      return (value != null && value.length > 0) ? value : null;
+    }
+    return null;
+  }
+
+  /**
+   * Decodes CKA_SERIAL_NUMBER. PKCS#11 defines it as the DER encoding of
+   * the serial number, but some tokens store the plain value.
+   */
+  private static BigInteger decodeSerialNumber(byte[] value) {
+    if (value == null) {
+      return null;
+    }
+
+    if (value.length > 2 && value[0] == 0x02) {
+      int length = value[1] & 0xff;
+      int offset = 2;
+      if (length > 0x80) {
+        int lengthBytes = length & 0x7f;
+        length = 0;
+        for (int i = 0; i < lengthBytes && offset < value.length; i++) {
+          length = (length << 8) | (value[offset++] & 0xff);
+        }
+      }
+      if (length > 0 && offset + length == value.length) {
+        return new BigInteger(Arrays.copyOfRange(value, offset, value.length));
+      }
+    }
+    return new BigInteger(1, value);
+  }
+
+  /**
+   * Computes the SHA-1 hash of the public key bits of the given
+   * SubjectPublicKeyInfo; i.e. of the contents of the BIT STRING without
+   * the unused bits byte.
+   *
+   * @return The hash, or null if the encoding cannot be parsed.
+   */
+  private static byte[] hashSubjectPublicKey(byte[] subjectPublicKeyInfo) {
+    // SEQUENCE { AlgorithmIdentifier SEQUENCE, subjectPublicKey BIT STRING }
+    int[] outer = readHeader(subjectPublicKeyInfo, 0);
+    if (outer == null || outer[0] != 0x30) {
+      return null;
+    }
+    int[] algorithm = readHeader(subjectPublicKeyInfo, outer[1]);
+    if (algorithm == null || algorithm[0] != 0x30) {
+      return null;
+    }
+    int[] bitString = readHeader(subjectPublicKeyInfo,
+        algorithm[1] + algorithm[2]);
+    if (bitString == null || bitString[0] != 0x03 || bitString[2] < 1) {
+      return null;
+    }
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(subjectPublicKeyInfo, bitString[1] + 1,
+          bitString[2] - 1);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Reads the header of the DER element at the given offset.
+   *
+   * @return The tag, the offset of the contents and the length of the
+   *         contents, or null if the header is invalid.
+   */
+  private static int[] readHeader(byte[] encoding, int offset) {
+    if (offset + 2 > encoding.length) {
+      return null;
+    }
+    int tag = encoding[offset] & 0xff;
+    int index = offset + 1;
+    int length = encoding[index++] & 0xff;
+    if (length > 0x80) {
+      int lengthBytes = length & 0x7f;
+      if (lengthBytes > 3 || index + lengthBytes > encoding.length) {
+        return null;
+      }
+      length = 0;
+      for (int i = 0; i < lengthBytes; i++) {
+        length = (length << 8) | (encoding[index++] & 0xff);
+      }
+    } else if (length == 0x80) {
+      // indefinite length is not allowed in DER
+      return null;
+    }
+    if (index + length > encoding.length) {
+      return null;
+    }
+    return new int[] { tag, index, length };
+  }
+
+  /**
+   * Encodes the issuer with a length prefix, followed by the serial number;
+   * so that no two pairs have the same encoding.
+   */
+  private static ByteBuffer issuerAndSerialNumber(byte[] issuer,
+      BigInteger serialNumber) {
+    byte[] serial = serialNumber.toByteArray();
+    ByteBuffer key = ByteBuffer.allocate(4 + issuer.length + serial.length);
+    key.putInt(issuer.length).put(issuer).put(serial);
+    key.flip();
+    return key;
+  }
+
+  @Override
+  Keys get(long handle) {
+    return byHandle.get(handle);
+  }
+
+  @Override
+  void add(long handle, Keys keys) {
+    byHandle.put(handle, keys);
+    addTo(bySubject, keys.subject, handle);
+    addTo(byIssuerAndSerialNumber, keys.issuerAndSerialNumber, handle);
+    if (keys.keyHash != null) {
+      addTo(byKeyHash, keys.keyHash, handle);
+    }
+  }
+
+  @Override
+  void remove(long handle) {
+    Keys keys = byHandle.remove(handle);
+    if (keys == null) {
+      return;
+    }
+    removeFrom(bySubject, keys.subject, handle);
+    removeFrom(byIssuerAndSerialNumber, keys.issuerAndSerialNumber, handle);
+    if (keys.keyHash != null) {
+      removeFrom(byKeyHash, keys.keyHash, handle);
+    }
+  }
+
+  @Override
+  void clear() {
+    byHandle.clear();
+    bySubject.clear();
+    byIssuerAndSerialNumber.clear();
+    byKeyHash.clear();
+  }
+
+  private static void addTo(Map<ByteBuffer, long[]> map, ByteBuffer key,
+      long handle) {
+    long[] handles = map.get(key);
+    if (handles == null) {
+      map.put(key, new long[] { handle });
+    } else {
+      long[] newHandles = Arrays.copyOf(handles, handles.length + 1);
+      newHandles[handles.length] = handle;
+      map.put(key, newHandles);
+    }
+  }
+
+  private static void removeFrom(Map<ByteBuffer, long[]> map,
+      ByteBuffer key, long handle) {
+    long[] handles = map.get(key);
+    if (handles == null) {
+      return;
+    }
+
+    long[] newHandles = new long[handles.length];
+    int count = 0;
+    for (long h : handles) {
+      if (h != handle) {
+        newHandles[count++] = h;
+      }
+    }
+    if (count == 0) {
+      map.remove(key);
+    } else {
+      map.put(key, Arrays.copyOf(newHandles, count));
+    }
+  }
+
+  private static long[] lookup(Map<ByteBuffer, long[]> map, ByteBuffer key) {
+    long[] handles = map.get(key);
+    return (handles == null) ? NO_HANDLES : handles.clone();
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public synchronized String toString() {
+    return Util.concatObjects("Slot ID: ", getSlotId(),
+        "\nIndexed Certificates: ", byHandle.size(), "\nStale: ", isStale());
+  }
+
+}
@@ -0,0 +1,190 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Base class of the input streams which pass the read data through a
+ * multi-part operation of a session. The subclasses fill one buffer, which
+ * is reused for the whole stream, chunk by chunk; the reads of the caller
+ * are served from this buffer. So the number of calls to the token depends
+ * on the chunk size, not on the sizes of the single reads.
+ *
+ * @invariants (buffer <> null) and (0 <= position <= end <= buffer.length)
+ */
+abstract class ChunkedInputStream extends InputStream
+    implements ReadableByteChannel {
+
+  /**
+   * The data ready to be read.
+   */
+  private final byte[] buffer;
+
+  private int position;
+
+  private int end;
+
+  /**
+   * True, after fill returned -1.
+   */
+  private boolean eof;
+
+  private boolean closed;
+
+  /**
+   * Constructor taking the size of the buffer.
+   *
+   * @param bufferSize
+   *          The size of the buffer passed to fill.
+   * @preconditions (bufferSize > 0)
+   * @postconditions
+   */
+  ChunkedInputStream(int bufferSize) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("bufferSize must be at least 1");
+    }
+    this.buffer = new byte[bufferSize];
+  }
+
+  /**
+   * Puts the next data into the given buffer, starting at index 0.
+   *
+   * @return The number of bytes put into the buffer, which may be 0, or -1
+   *         at the end of the data.
+   */
+  abstract int fill(byte[] buffer) throws IOException;
+
+  /**
+   * Closes the source of the data; called once by {@link #close()}.
+   */
+  abstract void closeSource() throws IOException;
+
+  @Override
+  public int read() throws IOException {
+    ensureOpen();
+    return ensureData() ? (buffer[position++] & 0xff) : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    } else if (len == 0) {
+      return 0;
+    } else if (!ensureData()) {
+      return -1;
+    }
+
+    int n = Math.min(len, end - position);
+    System.arraycopy(buffer, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (!dst.hasRemaining()) {
+      return 0;
+    } else if (!ensureData()) {
+      return -1;
+    }
+
+    int n = Math.min(dst.remaining(), end - position);
+    dst.put(buffer, position, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int available() throws IOException {
+    ensureOpen();
+    return end - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    Arrays.fill(buffer, (byte) 0);
+    position = end = 0;
+    closeSource();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  private boolean ensureData() throws IOException {
+    while (position == end) {
+      if (eof) {
+        return false;
+      }
+      int n = fill(buffer);
+      if (n < 0) {
+        eof = true;
+        return false;
+      }
+      position = 0;
+      end = n;
+    }
+    return true;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+
+}
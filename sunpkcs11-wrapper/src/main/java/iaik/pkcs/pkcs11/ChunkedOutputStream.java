@@ -0,0 +1,250 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Base class of the output streams which feed the written data into a
+ * multi-part operation of a session. Collects the data in a chunk buffer,
+ * which is reused for the whole stream, and passes full chunks to
+ * {@link #update(byte[], int, int)}; so the number of calls to the token
+ * depends on the chunk size, not on the sizes of the single writes. Large
+ * writes of arrays and direct buffers are passed on without copying.
+ *
+ * @invariants (chunk <> null) and (0 <= pending <= chunk.length)
+ */
+abstract class ChunkedOutputStream extends OutputStream
+    implements WritableByteChannel {
+
+  /**
+   * The data not yet passed to update.
+   */
+  private final byte[] chunk;
+
+  /**
+   * The number of bytes in chunk.
+   */
+  private int pending;
+
+  private boolean closed;
+
+  /**
+   * Constructor taking the chunk size.
+   *
+   * @param chunkSize
+   *          The number of bytes passed to each update call.
+   * @preconditions (chunkSize > 0)
+   * @postconditions
+   */
+  ChunkedOutputStream(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1");
+    }
+    this.chunk = new byte[chunkSize];
+  }
+
+  /**
+   * Feeds the given data into the operation.
+   */
+  abstract void update(byte[] in, int inOfs, int inLen) throws IOException;
+
+  /**
+   * Feeds the remaining bytes of the given direct buffer into the
+   * operation; at most one chunk. Subclasses which can pass direct buffers
+   * to the session override this; the default copies the data through the
+   * chunk buffer, which is empty when this method is called.
+   */
+  void update(ByteBuffer in) throws IOException {
+    int len = in.remaining();
+    in.get(chunk, 0, len);
+    update(chunk, 0, len);
+  }
+
+  /**
+   * Finishes the operation; called once by {@link #close()} after all data
+   * has been passed to update.
+   */
+  abstract void finish() throws IOException;
+
+  /**
+   * Get the chunk size.
+   *
+   * @return The number of bytes passed to each update call.
+   * @preconditions
+   * @postconditions
+   */
+  public int getChunkSize() {
+    return chunk.length;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    chunk[pending++] = (byte) b;
+    if (pending == chunk.length) {
+      updatePending();
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    if (pending > 0) {
+      int n = Math.min(len, chunk.length - pending);
+      System.arraycopy(b, off, chunk, pending, n);
+      pending += n;
+      off += n;
+      len -= n;
+      if (pending < chunk.length) {
+        return;
+      }
+      updatePending();
+    }
+
+    while (len >= chunk.length) {
+      update(b, off, chunk.length);
+      off += chunk.length;
+      len -= chunk.length;
+    }
+
+    System.arraycopy(b, off, chunk, 0, len);
+    pending = len;
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    int len = src.remaining();
+    if (src.hasArray()) {
+      write(src.array(), src.arrayOffset() + src.position(), len);
+      src.position(src.limit());
+      return len;
+    }
+
+    if (src.isDirect() && pending + len >= chunk.length) {
+      // full chunks are passed on without copying, like for arrays
+      updatePending();
+      while (src.remaining() >= chunk.length) {
+        ByteBuffer part = src.duplicate();
+        part.limit(part.position() + chunk.length);
+        update(part);
+        src.position(src.position() + chunk.length);
+      }
+    }
+
+    while (src.hasRemaining()) {
+      int n = Math.min(src.remaining(), chunk.length - pending);
+      src.get(chunk, pending, n);
+      pending += n;
+      if (pending == chunk.length) {
+        updatePending();
+      }
+    }
+    return len;
+  }
+
+  /**
+   * Passes the collected data to update. The operation itself is not
+   * finished.
+   *
+   * @exception IOException
+   *              If the operation failed.
+   */
+  @Override
+  public void flush() throws IOException {
+    ensureOpen();
+    updatePending();
+  }
+
+  /**
+   * Passes the collected data to update and finishes the operation.
+   *
+   * @exception IOException
+   *              If the operation failed.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      updatePending();
+    } finally {
+      finish();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed;
+  }
+
+  private void updatePending() throws IOException {
+    if (pending > 0) {
+      try {
+        update(chunk, 0, pending);
+      } finally {
+        Arrays.fill(chunk, 0, pending, (byte) 0);
+        pending = 0;
+      }
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+
+}
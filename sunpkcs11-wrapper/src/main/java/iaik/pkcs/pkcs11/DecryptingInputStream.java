@@ -0,0 +1,171 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * An input stream which reads encrypted data from another input stream and
+ * returns it decrypted with a session; like javax.crypto.CipherInputStream.
+ * The session must have been initialized with decryptInit before; e.g.
+ * <pre><code>
+ *   session.decryptInit(Mechanism.get(PKCS11Constants.CKM_AES_CBC_PAD), key);
+ *   try (InputStream in = new DecryptingInputStream(session,
+ *       new FileInputStream(file), 64 * 1024)) {
+ *     ...
+ *   }
+ * </code></pre>
+ * The encrypted data is read and passed to decryptUpdate in chunks of the
+ * given size; at the end of the source, decryptFinal is called. If the
+ * stream is closed before, decryptFinal is called nevertheless to end the
+ * operation of the session, and its result is dropped. The stream is also a
+ * ReadableByteChannel; to read from a channel, use
+ * java.nio.channels.Channels.newInputStream as source.
+ *
+ * @invariants (session <> null) and (in <> null)
+ */
+public class DecryptingInputStream extends ChunkedInputStream {
+
+  /**
+   * The default chunk size.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+  private final Session session;
+
+  private final InputStream in;
+
+  /**
+   * The buffer for the encrypted data, reused for all chunks.
+   */
+  private final byte[] inBuffer;
+
+  /**
+   * True, after decryptFinal has been called.
+   */
+  private boolean finished;
+
+  /**
+   * Constructor taking the session and the source stream. Uses the default
+   * chunk size.
+   *
+   * @param session
+   *          The session initialized for decryption.
+   * @param in
+   *          The stream to read the encrypted data from.
+   * @preconditions (session <> null) and (in <> null)
+   * @postconditions
+   */
+  public DecryptingInputStream(Session session, InputStream in) {
+    this(session, in, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor taking the session, the source stream and the chunk size.
+   *
+   * @param session
+   *          The session initialized for decryption.
+   * @param in
+   *          The stream to read the encrypted data from.
+   * @param chunkSize
+   *          The number of bytes passed to each decryptUpdate call at most.
+   * @preconditions (session <> null) and (in <> null) and (chunkSize > 0)
+   * @postconditions
+   */
+  public DecryptingInputStream(Session session, InputStream in,
+      int chunkSize) {
+    super(checkChunkSize(chunkSize) + EncryptingOutputStream.OUTPUT_RESERVE);
+    this.session = Util.requireNonNull("session", session);
+    this.in = Util.requireNonNull("in", in);
+    this.inBuffer = new byte[chunkSize];
+  }
+
+  private static int checkChunkSize(int chunkSize) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1");
+    }
+    return chunkSize;
+  }
+
+  @Override
+  int fill(byte[] buffer) throws IOException {
+    if (finished) {
+      return -1;
+    }
+
+    int n = in.read(inBuffer);
+    try {
+      if (n < 0) {
+        finished = true;
+        return session.decryptFinal(buffer, 0, buffer.length);
+      }
+      return session.decryptUpdate(inBuffer, 0, n, buffer, 0, buffer.length);
+    } catch (TokenException ex) {
+      finished = true;
+      throw new IOException(ex);
+    }
+  }
+
+  @Override
+  void closeSource() throws IOException {
+    try {
+      if (!finished) {
+        finished = true;
+        byte[] rest = new byte[inBuffer.length
+            + EncryptingOutputStream.OUTPUT_RESERVE];
+        try {
+          session.decryptFinal(rest, 0, rest.length);
+        } catch (TokenException ex) {
+          // ignore, the operation has ended anyway
+        } finally {
+          Arrays.fill(rest, (byte) 0);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+}
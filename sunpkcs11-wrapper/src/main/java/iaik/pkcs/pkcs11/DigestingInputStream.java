@@ -0,0 +1,157 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream which passes the data of another input stream through
+ * and digests it with a session on the way; like
+ * java.security.DigestInputStream. The session must have been initialized
+ * with digestInit before; e.g.
+ * <pre><code>
+ *   session.digestInit(Mechanism.get(PKCS11Constants.CKM_SHA256));
+ *   try (DigestingInputStream in = new DigestingInputStream(session,
+ *       new FileInputStream(file))) {
+ *     while (in.read(buffer) != -1) {
+ *       ...
+ *     }
+ *     int len = in.digestFinal(digest, 0, digest.length);
+ *   }
+ * </code></pre>
+ * The data is read and passed to digestUpdate in chunks of the given size,
+ * independent of the sizes of the reads of the caller. The stream is also
+ * a ReadableByteChannel; to read from a channel, use
+ * java.nio.channels.Channels.newInputStream as source.
+ *
+ * @invariants (session <> null) and (in <> null)
+ */
+public class DigestingInputStream extends ChunkedInputStream {
+
+  /**
+   * The default chunk size.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+  private final Session session;
+
+  private final InputStream in;
+
+  /**
+   * Constructor taking the session and the source stream. Uses the default
+   * chunk size.
+   *
+   * @param session
+   *          The session initialized for digesting.
+   * @param in
+   *          The stream to read the data from.
+   * @preconditions (session <> null) and (in <> null)
+   * @postconditions
+   */
+  public DigestingInputStream(Session session, InputStream in) {
+    this(session, in, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor taking the session, the source stream and the chunk size.
+   *
+   * @param session
+   *          The session initialized for digesting.
+   * @param in
+   *          The stream to read the data from.
+   * @param chunkSize
+   *          The number of bytes passed to each digestUpdate call at most.
+   * @preconditions (session <> null) and (in <> null) and (chunkSize > 0)
+   * @postconditions
+   */
+  public DigestingInputStream(Session session, InputStream in,
+      int chunkSize) {
+    super(chunkSize);
+    this.session = Util.requireNonNull("session", session);
+    this.in = Util.requireNonNull("in", in);
+  }
+
+  @Override
+  int fill(byte[] buffer) throws IOException {
+    int n = in.read(buffer, 0, buffer.length);
+    if (n > 0) {
+      try {
+        session.digestUpdate(buffer, 0, n);
+      } catch (TokenException ex) {
+        throw new IOException(ex);
+      }
+    }
+    return n;
+  }
+
+  @Override
+  void closeSource() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Finishes the digesting and writes the digest to the given array. The
+   * digest covers all data read from the source so far; since the source is
+   * read ahead in chunks, this may include data which the caller has not
+   * read from this stream yet. Usually, the caller reads the stream up to
+   * its end before.
+   *
+   * @param digest
+   *          The array to write the digest to.
+   * @param digestOfs
+   *          The offset in digest.
+   * @param digestLen
+   *          The space available in digest.
+   * @return The length of the digest.
+   * @exception TokenException
+   *              If finishing the digest failed.
+   * @preconditions (digest <> null)
+   * @postconditions
+   */
+  public int digestFinal(byte[] digest, int digestOfs, int digestLen)
+      throws TokenException {
+    return session.digestFinal(digest, digestOfs, digestLen);
+  }
+
+}
@@ -0,0 +1,178 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * An output stream which encrypts the written data with a session and
+ * writes the encrypted data to another output stream; like
+ * javax.crypto.CipherOutputStream. The session must have been initialized
+ * with encryptInit before; e.g.
+ * <pre><code>
+ *   session.encryptInit(Mechanism.get(PKCS11Constants.CKM_AES_CBC_PAD), key);
+ *   try (OutputStream out = new EncryptingOutputStream(session,
+ *       new FileOutputStream(file), 64 * 1024)) {
+ *     ...
+ *   }
+ * </code></pre>
+ * The data is passed to encryptUpdate in chunks of the given size. Closing
+ * the stream calls encryptFinal and closes the target stream. The stream
+ * is also a WritableByteChannel; to write to a channel, use
+ * java.nio.channels.Channels.newOutputStream as target.
+ *
+ * @invariants (session <> null) and (out <> null)
+ */
+public class EncryptingOutputStream extends ChunkedOutputStream {
+
+  /**
+   * The default chunk size.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+  /**
+   * The space the output buffer has in addition to the chunk size, for the
+   * data the token buffered from the previous chunk and for the padding.
+   */
+  static final int OUTPUT_RESERVE = 64;
+
+  private final Session session;
+
+  private final OutputStream out;
+
+  /**
+   * The buffer for the encrypted data, reused for all chunks.
+   */
+  private final byte[] outBuffer;
+
+  /**
+   * Constructor taking the session and the target stream. Uses the default
+   * chunk size.
+   *
+   * @param session
+   *          The session initialized for encryption.
+   * @param out
+   *          The stream to write the encrypted data to.
+   * @preconditions (session <> null) and (out <> null)
+   * @postconditions
+   */
+  public EncryptingOutputStream(Session session, OutputStream out) {
+    this(session, out, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor taking the session, the target stream and the chunk size.
+   *
+   * @param session
+   *          The session initialized for encryption.
+   * @param out
+   *          The stream to write the encrypted data to.
+   * @param chunkSize
+   *          The number of bytes passed to each encryptUpdate call.
+   * @preconditions (session <> null) and (out <> null) and (chunkSize > 0)
+   * @postconditions
+   */
+  public EncryptingOutputStream(Session session, OutputStream out,
+      int chunkSize) {
+    super(chunkSize);
+    this.session = Util.requireNonNull("session", session);
+    this.out = Util.requireNonNull("out", out);
+    this.outBuffer = new byte[chunkSize + OUTPUT_RESERVE];
+  }
+
+  @Override
+  void update(byte[] in, int inOfs, int inLen) throws IOException {
+    int len;
+    try {
+      len = session.encryptUpdate(in, inOfs, inLen,
+          outBuffer, 0, outBuffer.length);
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    }
+    out.write(outBuffer, 0, len);
+  }
+
+  @Override
+  void update(ByteBuffer in) throws IOException {
+    int len;
+    try {
+      len = session.encryptUpdate(in, ByteBuffer.wrap(outBuffer));
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    }
+    out.write(outBuffer, 0, len);
+  }
+
+  @Override
+  void finish() throws IOException {
+    try {
+      int len;
+      try {
+        len = session.encryptFinal(outBuffer, 0, outBuffer.length);
+      } catch (TokenException ex) {
+        throw new IOException(ex);
+      }
+      out.write(outBuffer, 0, len);
+    } finally {
+      Arrays.fill(outBuffer, (byte) 0);
+      out.close();
+    }
+  }
+
+  /**
+   * Encrypts the collected data and flushes the target stream. The token
+   * may keep back an incomplete block until more data is written.
+   *
+   * @exception IOException
+   *              If encrypting or writing failed.
+   */
+  @Override
+  public void flush() throws IOException {
+    super.flush();
+    out.flush();
+  }
+
+}
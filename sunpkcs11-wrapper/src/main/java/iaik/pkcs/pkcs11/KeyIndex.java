@@ -0,0 +1,599 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.spec.ECParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.CharArrayAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.LongAttribute;
+import iaik.pkcs.pkcs11.objects.ObjectClassAttribute;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * An in-memory index of the private, public and secret keys on a token. The
+ * keys are enumerated once when the index is created; after that, keys can
+ * be looked up by CKA_ID, by CKA_LABEL and by key type and size without
+ * calling C_FindObjects.
+ * <p/>
+ * The index registers itself as {@link ObjectListener} with the module of
+ * the session it was built with. So keys created, modified or destroyed
+ * through any session of this library for the same slot are added, updated
+ * or removed immediately. Only token objects are indexed; session objects
+ * are ignored. Keys changed by other applications are not noticed; call
+ * {@link #refresh(Session)} to rebuild the index in this case. Changes
+ * notified while a refresh enumerates the keys are not lost; they take
+ * precedence over the enumerated state. If an incremental update fails, the
+ * index marks itself as stale; see {@link #isStale()}.
+ * <p/>
+ * Call {@link #close()} to unregister the index if it is not needed any
+ * more. All methods of this class are thread-safe.
+ *
+ * @invariants (module <> null)
+ */
+public class KeyIndex extends ObjectIndex<KeyIndex.Entry> {
+
+  /**
+   * An indexed key.
+   *
+   * @invariants
+   */
+  public static final class Entry {
+
+    private final long objectHandle;
+
+    private final long objectClass;
+
+    private final long keyType;
+
+    private final byte[] id;
+
+    private final String label;
+
+    private final int keySize;
+
+    Entry(long objectHandle, long objectClass, long keyType, byte[] id,
+        String label, int keySize) {
+      this.objectHandle = objectHandle;
+      this.objectClass = objectClass;
+      this.keyType = keyType;
+      this.id = id;
+      this.label = label;
+      this.keySize = keySize;
+    }
+
+    /**
+     * Get the handle of the key object.
+     *
+     * @return The object handle.
+     * @preconditions
+     * @postconditions
+     */
+    public long getObjectHandle() {
+      return objectHandle;
+    }
+
+    /**
+     * Get the object class of the key; e.g. PKCS11Constants.CKO_PRIVATE_KEY.
+     *
+     * @return The object class.
+     * @preconditions
+     * @postconditions
+     */
+    public long getObjectClass() {
+      return objectClass;
+    }
+
+    /**
+     * Get the key type; e.g. PKCS11Constants.CKK_RSA.
+     *
+     * @return The key type.
+     * @preconditions
+     * @postconditions
+     */
+    public long getKeyType() {
+      return keyType;
+    }
+
+    /**
+     * Get the CKA_ID of the key.
+     *
+     * @return A copy of the ID, or null if the key has no ID.
+     * @preconditions
+     * @postconditions
+     */
+    public byte[] getId() {
+      return (id != null) ? id.clone() : null;
+    }
+
+    /**
+     * Get the CKA_LABEL of the key.
+     *
+     * @return The label, or null if the key has no label.
+     * @preconditions
+     * @postconditions
+     */
+    public String getLabel() {
+      return label;
+    }
+
+    /**
+     * Get the size of the key in bits; i.e. the modulus length for RSA,
+     * the field size for EC, the prime length for DSA and DH and
+     * CKA_VALUE_LEN * 8 for secret keys.
+     *
+     * @return The key size in bits, or 0 if it is not known.
+     * @preconditions
+     * @postconditions
+     */
+    public int getKeySize() {
+      return keySize;
+    }
+
+    /**
+     * Returns the string representation of this object.
+     *
+     * @return the string representation of this object
+     */
+    @Override
+    public String toString() {
+      return Util.concatObjects("Handle: ", objectHandle,
+          ", Class: 0x", Long.toHexString(objectClass),
+          ", Key Type: 0x", Long.toHexString(keyType),
+          ", Size: ", keySize, ", ID: ", (id != null) ? Util.toHex(id) : null,
+          ", Label: ", label);
+    }
+
+  }
+
+  /**
+   * The object classes which are indexed.
+   */
+  private static final long[] KEY_CLASSES = {
+    PKCS11Constants.CKO_PRIVATE_KEY,
+    PKCS11Constants.CKO_PUBLIC_KEY,
+    PKCS11Constants.CKO_SECRET_KEY };
+
+  /**
+   * The attributes read for every key.
+   */
+  private static final long[] KEY_ATTRIBUTES = {
+    PKCS11Constants.CKA_CLASS,
+    PKCS11Constants.CKA_TOKEN,
+    PKCS11Constants.CKA_KEY_TYPE,
+    PKCS11Constants.CKA_ID,
+    PKCS11Constants.CKA_LABEL };
+
+  private final Map<Long, Entry> byHandle = new HashMap<>();
+
+  private final Map<ByteBuffer, List<Entry>> byId = new HashMap<>();
+
+  private final Map<String, List<Entry>> byLabel = new HashMap<>();
+
+  /**
+   * The keys by key type and size; see {@link #typeAndSize(long, int)}.
+   */
+  private final Map<Long, List<Entry>> byTypeAndSize = new HashMap<>();
+
+  /**
+   * Creates the index for the token of the given session and registers it
+   * with the module of the session. The session must be able to see the
+   * keys to index; i.e. the user should be logged in to index private keys.
+   *
+   * @param session
+   *          The session to enumerate the keys with.
+   * @exception TokenException
+   *              If enumerating the keys failed.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public KeyIndex(Session session) throws TokenException {
+    super(session);
+    register(session);
+  }
+
+  /**
+   * Reads all token keys.
+   */
+  @Override
+  Map<Long, Entry> enumerate(Session session) throws TokenException {
+    Map<Long, Entry> entries = new HashMap<>();
+    for (long keyClass : KEY_CLASSES) {
+      GenericTemplate template = new GenericTemplate();
+      ObjectClassAttribute classAttribute = new ObjectClassAttribute();
+      classAttribute.setLongValue(keyClass);
+      template.addAttribute(classAttribute);
+      BooleanAttribute tokenAttribute = new BooleanAttribute(Attribute.TOKEN);
+      tokenAttribute.setBooleanValue(Boolean.TRUE);
+      template.addAttribute(tokenAttribute);
+
+      for (long handle : session.findAllObjectHandles(template)) {
+        Entry entry = read(session, handle);
+        if (entry != null) {
+          entries.put(handle, entry);
+        }
+      }
+    }
+
+    return entries;
+  }
+
+  /**
+   * Looks up the keys with the given CKA_ID.
+   *
+   * @param id
+   *          The ID to look for.
+   * @return The matching keys. Empty, if there is none.
+   * @preconditions (id <> null)
+   * @postconditions (result <> null)
+   */
+  public synchronized List<Entry> findById(byte[] id) {
+    Util.requireNonNull("id", id);
+    return copy(byId.get(ByteBuffer.wrap(id)));
+  }
+
+  /**
+   * Looks up the keys of the given object class with the given CKA_ID; e.g.
+   * the private key belonging to a certificate.
+   *
+   * @param objectClass
+   *          The object class; e.g. PKCS11Constants.CKO_PRIVATE_KEY.
+   * @param id
+   *          The ID to look for.
+   * @return The matching keys. Empty, if there is none.
+   * @preconditions (id <> null)
+   * @postconditions (result <> null)
+   */
+  public synchronized List<Entry> findById(long objectClass, byte[] id) {
+    return filter(findById(id), objectClass);
+  }
+
+  /**
+   * Looks up the keys with the given CKA_LABEL.
+   *
+   * @param label
+   *          The label to look for.
+   * @return The matching keys. Empty, if there is none.
+   * @preconditions (label <> null)
+   * @postconditions (result <> null)
+   */
+  public synchronized List<Entry> findByLabel(String label) {
+    Util.requireNonNull("label", label);
+    return copy(byLabel.get(label));
+  }
+
+  /**
+   * Looks up the keys of the given object class with the given CKA_LABEL.
+   *
+   * @param objectClass
+   *          The object class; e.g. PKCS11Constants.CKO_PRIVATE_KEY.
+   * @param label
+   *          The label to look for.
+   * @return The matching keys. Empty, if there is none.
+   * @preconditions (label <> null)
+   * @postconditions (result <> null)
+   */
+  public synchronized List<Entry> findByLabel(long objectClass,
+      String label) {
+    return filter(findByLabel(label), objectClass);
+  }
+
+  /**
+   * Looks up the keys with the given key type and size.
+   *
+   * @param keyType
+   *          The key type; e.g. PKCS11Constants.CKK_RSA.
+   * @param keySize
+   *          The key size in bits; see {@link Entry#getKeySize()}.
+   * @return The matching keys. Empty, if there is none.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public synchronized List<Entry> findByTypeAndSize(long keyType,
+      int keySize) {
+    return copy(byTypeAndSize.get(typeAndSize(keyType, keySize)));
+  }
+
+  /**
+   * Get the indexed key with the given handle.
+   *
+   * @param objectHandle
+   *          The handle of the key.
+   * @return The indexed key, or null if the handle is not indexed.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized Entry getEntry(long objectHandle) {
+    return byHandle.get(objectHandle);
+  }
+
+  /**
+   * Get all indexed keys.
+   *
+   * @return A copy of the indexed keys.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public synchronized List<Entry> getEntries() {
+    return new ArrayList<>(byHandle.values());
+  }
+
+  /**
+   * Get the number of indexed keys.
+   *
+   * @return The number of indexed keys.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized int size() {
+    return byHandle.size();
+  }
+
+  /**
+   * Reads the indexed attributes of the given object.
+   *
+   * @return The entry, or null if the object is no token key.
+   */
+  @Override
+  Entry read(Session session, long objectHandle) throws TokenException {
+    GenericTemplate attributes =
+        session.getAttributeValues(objectHandle, KEY_ATTRIBUTES);
+
+    Long objectClass = longValue(attributes, PKCS11Constants.CKA_CLASS);
+    if (objectClass == null || !isKeyClass(objectClass)) {
+      return null;
+    }
+    Attribute token = attributes.getAttribute(PKCS11Constants.CKA_TOKEN);
+    if (!(token instanceof BooleanAttribute)
+        || !Boolean.TRUE.equals(((BooleanAttribute) token).getBooleanValue())) {
+      return null;
+    }
+
+    Long keyType = longValue(attributes, PKCS11Constants.CKA_KEY_TYPE);
+    if (keyType == null) {
+      return null;
+    }
+
+    byte[] id = null;
+    Attribute idAttribute = attributes.getAttribute(PKCS11Constants.CKA_ID);
+    if (idAttribute instanceof ByteArrayAttribute
+        && idAttribute.isPresent()) {
+      id = ((ByteArrayAttribute) idAttribute).getByteArrayValue();
+    }
+
+    String label = null;
+    Attribute labelAttribute =
+        attributes.getAttribute(PKCS11Constants.CKA_LABEL);
+    if (labelAttribute instanceof CharArrayAttribute
+        && labelAttribute.isPresent()) {
+      char[] chars = ((CharArrayAttribute) labelAttribute).getCharArrayValue();
+      if (chars != null) {
+        label = new String(chars);
+      }
+    }
+
+    int keySize = readKeySize(session, objectHandle, objectClass, keyType);
+    return new Entry(objectHandle, objectClass, keyType, id, label, keySize);
+  }
+
+  /**
+   * Reads the attribute which determines the size of the key and derives
+   * the size in bits from it.
+   *
+   * @return The key size in bits, or 0 if it cannot be determined.
+   */
+  private static int readKeySize(Session session, long objectHandle,
+      long objectClass, long keyType) throws TokenException {
+    long sizeAttribute;
+    if (objectClass == PKCS11Constants.CKO_SECRET_KEY) {
+      sizeAttribute = PKCS11Constants.CKA_VALUE_LEN;
+    } else if (keyType == PKCS11Constants.CKK_RSA) {
+      sizeAttribute = PKCS11Constants.CKA_MODULUS;
+    } else if (keyType == PKCS11Constants.CKK_EC) {
+      sizeAttribute = PKCS11Constants.CKA_EC_PARAMS;
+    } else if (keyType == PKCS11Constants.CKK_DSA
+        || keyType == PKCS11Constants.CKK_DH
+        || keyType == PKCS11Constants.CKK_X9_42_DH) {
+      sizeAttribute = PKCS11Constants.CKA_PRIME;
+    } else {
+      return 0;
+    }
+
+    GenericTemplate attributes = session.getAttributeValues(objectHandle,
+        new long[] { sizeAttribute });
+    Attribute attribute = attributes.getAttribute(sizeAttribute);
+    if (attribute == null || !attribute.isPresent()) {
+      return 0;
+    }
+
+    if (attribute instanceof LongAttribute) {
+      Long valueLen = ((LongAttribute) attribute).getLongValue();
+      return (valueLen != null) ? (int) (valueLen * 8) : 0;
+    }
+    if (!(attribute instanceof ByteArrayAttribute)) {
+      return 0;
+    }
+    byte[] value = ((ByteArrayAttribute) attribute).getByteArrayValue();
+    if (value == null) {
+      return 0;
+    }
+
+    if (sizeAttribute == PKCS11Constants.CKA_EC_PARAMS) {
+      try {
+        AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+        parameters.init(value);
+        return parameters.getParameterSpec(ECParameterSpec.class).getCurve()
+            .getField().getFieldSize();
+      } catch (Exception ex) {
+        // unknown curve
+        return 0;
+      }
+    }
+    return new BigInteger(1, value).bitLength();
+  }
+
+  private static Long longValue(PKCS11Object object, long type) {
+    Attribute attribute = object.getAttribute(type);
+    if (attribute instanceof LongAttribute && attribute.isPresent()) {
+      return ((LongAttribute) attribute).getLongValue();
+    }
+    return null;
+  }
+
+  private static boolean isKeyClass(long objectClass) {
+    for (long keyClass : KEY_CLASSES) {
+      if (keyClass == objectClass) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  Entry get(long objectHandle) {
+    return byHandle.get(objectHandle);
+  }
+
+  @Override
+  void add(long objectHandle, Entry entry) {
+    byHandle.put(objectHandle, entry);
+    if (entry.id != null) {
+      addTo(byId, ByteBuffer.wrap(entry.id), entry);
+    }
+    if (entry.label != null) {
+      addTo(byLabel, entry.label, entry);
+    }
+    addTo(byTypeAndSize, typeAndSize(entry.keyType, entry.keySize), entry);
+  }
+
+  @Override
+  void remove(long objectHandle) {
+    Entry entry = byHandle.remove(objectHandle);
+    if (entry == null) {
+      return;
+    }
+    if (entry.id != null) {
+      removeFrom(byId, ByteBuffer.wrap(entry.id), entry);
+    }
+    if (entry.label != null) {
+      removeFrom(byLabel, entry.label, entry);
+    }
+    removeFrom(byTypeAndSize, typeAndSize(entry.keyType, entry.keySize),
+        entry);
+  }
+
+  @Override
+  void clear() {
+    byHandle.clear();
+    byId.clear();
+    byLabel.clear();
+    byTypeAndSize.clear();
+  }
+
+  private static <K> void addTo(Map<K, List<Entry>> map, K key, Entry entry) {
+    List<Entry> entries = map.get(key);
+    if (entries == null) {
+      entries = new ArrayList<>(1);
+      map.put(key, entries);
+    }
+    entries.add(entry);
+  }
+
+  private static <K> void removeFrom(Map<K, List<Entry>> map, K key,
+      Entry entry) {
+    List<Entry> entries = map.get(key);
+    if (entries != null) {
+      entries.remove(entry);
+      if (entries.isEmpty()) {
+        map.remove(key);
+      }
+    }
+  }
+
+  private static List<Entry> copy(List<Entry> entries) {
+    return (entries == null) ? Collections.<Entry>emptyList()
+        : new ArrayList<>(entries);
+  }
+
+  private static List<Entry> filter(List<Entry> entries, long objectClass) {
+    List<Entry> result = new ArrayList<>(entries.size());
+    for (Entry entry : entries) {
+      if (entry.objectClass == objectClass) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Combines key type and size into one map key. The key type is
+   * truncated to 32 bits, which holds all standard and most vendor-defined
+   * key types.
+   */
+  private static Long typeAndSize(long keyType, int keySize) {
+    return (keyType << 32) | (keySize & 0xffffffffL);
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  public synchronized String toString() {
+    return Util.concatObjects("Slot ID: ", getSlotId(), "\nIndexed Keys: ",
+        byHandle.size(), "\nStale: ", isStale());
+  }
+
+}
@@ -0,0 +1,374 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.objects.Key;
+
+/**
+ * Digests, MACs, signs and encrypts whole files with a session. The files
+ * are mapped into memory region by region with FileChannel.map, and the
+ * mapped memory is passed to the ByteBuffer variants of the multi-part
+ * operations of {@link Session}; so the token reads the file contents
+ * directly from the mapped pages, without copying them through Java
+ * arrays. E.g.
+ * <pre><code>
+ *   MappedFileOperations files = new MappedFileOperations(session);
+ *   byte[] hash = files.digestFile(
+ *       Mechanism.get(PKCS11Constants.CKM_SHA256), path);
+ * </code></pre>
+ * Each region is fed to the token in chunks of the given chunk size, since
+ * many tokens cannot take arbitrarily large inputs in one call. Like all
+ * MappedByteBuffers, a region is unmapped when it is garbage collected;
+ * there is no portable way to unmap it earlier.
+ *
+ * @invariants (session <> null) and (chunkSize > 0) and
+ *             (regionSize >= chunkSize)
+ */
+public class MappedFileOperations {
+
+  /**
+   * The default number of bytes passed to the token in one call.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+  /**
+   * The default number of bytes mapped at once.
+   */
+  public static final int DEFAULT_REGION_SIZE = 256 * 1024 * 1024;
+
+  /**
+   * The maximum length of a digest, with some room to spare.
+   */
+  private static final int MAX_DIGEST_LENGTH = 128;
+
+  private final Session session;
+
+  private final int chunkSize;
+
+  private final int regionSize;
+
+  /**
+   * Constructor taking the session. Uses the default chunk and region size.
+   *
+   * @param session
+   *          The session to run the operations with.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public MappedFileOperations(Session session) {
+    this(session, DEFAULT_CHUNK_SIZE, DEFAULT_REGION_SIZE);
+  }
+
+  /**
+   * Constructor taking the session, the chunk size and the region size.
+   *
+   * @param session
+   *          The session to run the operations with.
+   * @param chunkSize
+   *          The number of bytes passed to the token in one call.
+   * @param regionSize
+   *          The number of bytes mapped at once. Rounded down to a multiple
+   *          of chunkSize.
+   * @preconditions (session <> null) and (chunkSize > 0) and
+   *                (regionSize >= chunkSize)
+   * @postconditions
+   */
+  public MappedFileOperations(Session session, int chunkSize,
+      int regionSize) {
+    this.session = Util.requireNonNull("session", session);
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1");
+    }
+    if (regionSize < chunkSize) {
+      throw new IllegalArgumentException(
+          "regionSize must not be smaller than chunkSize");
+    }
+    this.chunkSize = chunkSize;
+    this.regionSize = regionSize - regionSize % chunkSize;
+  }
+
+  /**
+   * Digests the contents of the given file.
+   *
+   * @param mechanism
+   *          The digest mechanism; e.g. CKM_SHA256.
+   * @param file
+   *          The file to digest.
+   * @return The digest.
+   * @exception TokenException
+   *              If digesting failed.
+   * @exception IOException
+   *              If reading the file failed.
+   * @preconditions (mechanism <> null) and (file <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] digestFile(Mechanism mechanism, Path file)
+      throws TokenException, IOException {
+    Util.requireNonNull("file", file);
+    session.digestInit(mechanism);
+    byte[] digest = new byte[MAX_DIGEST_LENGTH];
+    boolean finished = false;
+    try {
+      feed(file, new ChunkConsumer() {
+        @Override
+        public void update(ByteBuffer chunk) throws TokenException {
+          session.digestUpdate(chunk);
+        }
+      });
+      int len = session.digestFinal(digest, 0, digest.length);
+      finished = true;
+      return Arrays.copyOf(digest, len);
+    } finally {
+      if (!finished) {
+        try {
+          session.digestFinal(digest, 0, digest.length);
+        } catch (TokenException ex) {
+          // ignore, the operation has ended anyway
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the MAC of the contents of the given file.
+   *
+   * @param mechanism
+   *          The MAC mechanism; e.g. CKM_SHA256_HMAC.
+   * @param key
+   *          The MAC key.
+   * @param file
+   *          The file to MAC.
+   * @param expectedLen
+   *          The expected length of the MAC.
+   * @return The MAC.
+   * @exception TokenException
+   *              If computing the MAC failed.
+   * @exception IOException
+   *              If reading the file failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (file <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] macFile(Mechanism mechanism, Key key, Path file,
+      int expectedLen) throws TokenException, IOException {
+    return signFile(mechanism, key, file, expectedLen);
+  }
+
+  /**
+   * Signs the contents of the given file.
+   *
+   * @param mechanism
+   *          The signature mechanism; e.g. CKM_SHA256_RSA_PKCS.
+   * @param key
+   *          The signing key.
+   * @param file
+   *          The file to sign.
+   * @param expectedLen
+   *          The expected length of the signature.
+   * @return The signature.
+   * @exception TokenException
+   *              If signing failed.
+   * @exception IOException
+   *              If reading the file failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (file <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] signFile(Mechanism mechanism, Key key, Path file,
+      int expectedLen) throws TokenException, IOException {
+    Util.requireNonNull("file", file);
+    session.signInit(mechanism, key);
+    boolean finished = false;
+    try {
+      feed(file, new ChunkConsumer() {
+        @Override
+        public void update(ByteBuffer chunk) throws TokenException {
+          session.signUpdate(chunk);
+        }
+      });
+      byte[] signature = session.signFinal(expectedLen);
+      finished = true;
+      return signature;
+    } finally {
+      if (!finished) {
+        endSignOperation(expectedLen);
+      }
+    }
+  }
+
+  /**
+   * Encrypts the contents of the given file and writes the encrypted data to
+   * the given output file, which is created or replaced. If encrypting
+   * fails, the output file is deleted. The output file must not be the
+   * input file.
+   *
+   * @param mechanism
+   *          The encryption mechanism; e.g. CKM_AES_CBC_PAD.
+   * @param key
+   *          The encryption key.
+   * @param in
+   *          The file to encrypt.
+   * @param out
+   *          The file to write the encrypted data to.
+   * @return The number of bytes written to out.
+   * @exception TokenException
+   *              If encrypting failed.
+   * @exception IOException
+   *              If reading or writing a file failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public long encryptFile(Mechanism mechanism, Key key, Path in, Path out)
+      throws TokenException, IOException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    final byte[] finalBuffer =
+        new byte[chunkSize + EncryptingOutputStream.OUTPUT_RESERVE];
+    final ByteBuffer outBuffer = ByteBuffer.allocateDirect(finalBuffer.length);
+    final FileChannel outChannel = OutputFiles.open(in, out);
+    try {
+      session.encryptInit(mechanism, key);
+      boolean finished = false;
+      try {
+        feed(in, new ChunkConsumer() {
+          @Override
+          public void update(ByteBuffer chunk)
+              throws TokenException, IOException {
+            outBuffer.clear();
+            session.encryptUpdate(chunk, outBuffer);
+            outBuffer.flip();
+            writeFully(outChannel, outBuffer);
+          }
+        });
+        int len = session.encryptFinal(finalBuffer, 0, finalBuffer.length);
+        finished = true;
+        writeFully(outChannel, ByteBuffer.wrap(finalBuffer, 0, len));
+        long total = outChannel.size();
+        outChannel.close();
+        return total;
+      } finally {
+        if (!finished) {
+          try {
+            session.encryptFinal(finalBuffer, 0, finalBuffer.length);
+          } catch (TokenException ex) {
+            // ignore, the operation has ended anyway
+          }
+        }
+      }
+    } catch (TokenException | IOException | RuntimeException ex) {
+      OutputFiles.discard(outChannel, out, ex);
+      throw ex;
+    } finally {
+      Arrays.fill(finalBuffer, (byte) 0);
+    }
+  }
+
+  /**
+   * The operation the chunks of a file are fed into.
+   */
+  private interface ChunkConsumer {
+
+    void update(ByteBuffer chunk) throws TokenException, IOException;
+
+  }
+
+  /**
+   * Maps the given file region by region and passes the regions in chunks
+   * to the given consumer.
+   */
+  private void feed(Path file, ChunkConsumer consumer)
+      throws TokenException, IOException {
+    try (FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      long size = channel.size();
+      for (long offset = 0; offset < size; offset += regionSize) {
+        long length = Math.min(regionSize, size - offset);
+        MappedByteBuffer region = channel.map(
+            FileChannel.MapMode.READ_ONLY, offset, length);
+        for (int pos = 0; pos < length; pos += chunkSize) {
+          region.limit((int) Math.min(pos + chunkSize, length));
+          region.position(pos);
+          consumer.update(region);
+        }
+      }
+    }
+  }
+
+  /**
+   * Ends a signing operation after a failure; i.e. drops the result.
+   */
+  private void endSignOperation(int expectedLen) {
+    try {
+      session.signFinal(expectedLen);
+    } catch (TokenException ex) {
+      // ignore, the operation has ended anyway
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Chunk Size: ", chunkSize,
+        "\nRegion Size: ", regionSize);
+  }
+
+}
@@ -46,8 +46,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.AttributeCache;
+import iaik.pkcs.pkcs11.objects.InvalidAttributeCache;
 import iaik.pkcs.pkcs11.objects.PKCS11Object;
 import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
 import sun.security.pkcs11.wrapper.CK_CREATEMUTEX;
@@ -172,6 +179,37 @@ public class Module {
 
   private String pkcs11ModuleName;
 
+  /**
+   * The attribute types this module does not support for certain kinds of
+   * objects.
+   */
+  private final InvalidAttributeCache invalidAttributeCache =
+      new InvalidAttributeCache();
+
+  /**
+   * The cache for attribute values of objects, or null if no attribute
+   * values are cached.
+   */
+  private volatile AttributeCache attributeCache;
+
+  /**
+   * The listeners to notify about created, modified and destroyed objects.
+   */
+  private final List<ObjectListener> objectListeners =
+      new CopyOnWriteArrayList<>();
+
+  /**
+   * Runs public-key operations in software; created when first needed.
+   */
+  private PublicKeyOffload publicKeyOffload;
+
+  /**
+   * The sorted mechanism codes of each slot, as far as they have been
+   * queried by {@link #isMechanismSupported(Slot, long)}.
+   */
+  private final ConcurrentMap<Long, long[]> mechanismCodes =
+      new ConcurrentHashMap<>();
+
   /**
    * Create a new module that uses the given PKCS11 interface to interact with
    * the token.
@@ -412,6 +450,140 @@ public class Module {
     return pkcs11Module;
   }
 
+  /**
+   * Gets the cache of attribute types which this module does not support for
+   * certain kinds of objects. The cache is filled while reading objects and
+   * can be inspected, switched off or cleared by the application.
+   *
+   * @return The cache of unsupported attribute types.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public InvalidAttributeCache getInvalidAttributeCache() {
+    return invalidAttributeCache;
+  }
+
+  /**
+   * Sets the cache for the attribute values of the objects of this module.
+   * By default, no attribute values are cached.
+   *
+   * @param attributeCache
+   *          The cache to use, or null to switch caching off.
+   * @preconditions
+   * @postconditions
+   */
+  public void setAttributeCache(AttributeCache attributeCache) {
+    this.attributeCache = attributeCache;
+  }
+
+  /**
+   * Gets the cache for the attribute values of the objects of this module.
+   *
+   * @return The cache, or null if no attribute values are cached.
+   * @preconditions
+   * @postconditions
+   */
+  public AttributeCache getAttributeCache() {
+    return attributeCache;
+  }
+
+  /**
+   * Adds a listener which is notified about objects created, modified or
+   * destroyed through any session of this module.
+   *
+   * @param listener
+   *          The listener to add.
+   * @preconditions (listener <> null)
+   * @postconditions
+   */
+  public void addObjectListener(ObjectListener listener) {
+    objectListeners.add(Util.requireNonNull("listener", listener));
+  }
+
+  /**
+   * Removes the given listener.
+   *
+   * @param listener
+   *          The listener to remove.
+   * @preconditions
+   * @postconditions
+   */
+  public void removeObjectListener(ObjectListener listener) {
+    objectListeners.remove(listener);
+  }
+
+  /**
+   * Get the registered object listeners.
+   *
+   * @return The registered object listeners. The returned list must not be
+   *         modified.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  List<ObjectListener> getObjectListeners() {
+    return objectListeners;
+  }
+
+  /**
+   * Get the object which runs public-key operations of this module in
+   * software, for sessions which have the public key offload switched on.
+   *
+   * @return The public key offload of this module.
+   * @see Session#setPublicKeyOffload(boolean)
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public synchronized PublicKeyOffload getPublicKeyOffload() {
+    if (publicKeyOffload == null) {
+      publicKeyOffload = new PublicKeyOffload();
+    }
+    return publicKeyOffload;
+  }
+
+  /**
+   * Check, if the token in the given slot lists the given mechanism. The
+   * mechanism list of each slot is read from the token once and then kept.
+   *
+   * @param slot
+   *          The slot of the token.
+   * @param mechanismCode
+   *          The mechanism code; e.g. CKM_RSA_PKCS.
+   * @return True, if the mechanism list of the token contains the
+   *         mechanism.
+   * @exception TokenException
+   *              If reading the mechanism list failed.
+   * @preconditions (slot <> null)
+   * @postconditions
+   */
+  boolean isMechanismSupported(Slot slot, long mechanismCode)
+      throws TokenException {
+    Long slotId = slot.getSlotID();
+    long[] codes = mechanismCodes.get(slotId);
+    if (codes == null) {
+      try {
+        codes = pkcs11Module.C_GetMechanismList(slotId);
+      } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+        throw new PKCS11Exception(ex);
+      }
+      codes = codes.clone();
+      Arrays.sort(codes);
+      mechanismCodes.put(slotId, codes);
+    }
+    return Arrays.binarySearch(codes, mechanismCode) >= 0;
+  }
+
+  /**
+   * Forgets the mechanism lists read by
+   * {@link #isMechanismSupported(Slot, long)}; e.g. after a token has been
+   * replaced.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void clearMechanismLists() {
+    mechanismCodes.clear();
+  }
+
   /**
    * Returns the string representation of this object.
    *
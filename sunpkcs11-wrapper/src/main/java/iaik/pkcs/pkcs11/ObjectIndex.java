@@ -0,0 +1,363 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The common part of the in-memory indexes of token objects; i.e. of
+ * {@link KeyIndex} and {@link CertificateIndex}. It registers the index as
+ * {@link ObjectListener} with the module, keeps track of the incremental
+ * updates and rebuilds the index on {@link #refresh(Session)}.
+ * <p/>
+ * Changes notified while a refresh enumerates the objects are not lost;
+ * they take precedence over the enumerated state. If an incremental update
+ * fails, the index marks itself as stale. Subclasses keep their lookup maps
+ * and synchronize on the index object, like this class does.
+ *
+ * @param <E>
+ *          The type of the indexed entries.
+ * @invariants (module <> null)
+ */
+abstract class ObjectIndex<E> implements ObjectListener, AutoCloseable {
+
+  /**
+   * The module this index is registered with.
+   */
+  private final Module module;
+
+  /**
+   * The ID of the slot whose token is indexed.
+   */
+  private final long slotId;
+
+  /**
+   * True, if an incremental update failed.
+   */
+  private boolean stale;
+
+  /**
+   * Counts the incremental updates.
+   */
+  private long generation;
+
+  /**
+   * The generation of the last failed incremental update.
+   */
+  private long failedGeneration;
+
+  /**
+   * The number of running refreshes.
+   */
+  private int runningRefreshes;
+
+  /**
+   * While a refresh is running, the generation of the last incremental
+   * update of each changed handle.
+   */
+  private final Map<Long, Long> changedHandles = new HashMap<>();
+
+  /**
+   * Constructor taking the session whose slot is indexed. The subclass
+   * calls {@link #register(Session)} when it is fully constructed.
+   *
+   * @param session
+   *          The session to take the module and slot from.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  ObjectIndex(Session session) {
+    Util.requireNonNull("session", session);
+    this.module = session.getModule();
+    this.slotId = session.getToken().getSlot().getSlotID();
+  }
+
+  /**
+   * Registers this index with the module and enumerates the objects. It
+   * registers first, so that no change during the enumeration is missed.
+   *
+   * @param session
+   *          The session to enumerate the objects with.
+   * @exception TokenException
+   *              If enumerating the objects failed. The index is not
+   *              registered then.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  void register(Session session) throws TokenException {
+    module.addObjectListener(this);
+    try {
+      refresh(session);
+    } catch (TokenException | RuntimeException ex) {
+      module.removeObjectListener(this);
+      throw ex;
+    }
+  }
+
+  /**
+   * Rebuilds this index by enumerating all objects of the token again. The
+   * index is not stale afterwards, unless an incremental update failed
+   * during the enumeration.
+   *
+   * @param session
+   *          The session to enumerate the objects with. Must belong to the
+   *          slot of this index.
+   * @exception TokenException
+   *              If enumerating the objects failed.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public void refresh(Session session) throws TokenException {
+    Util.requireNonNull("session", session);
+    if (!isSameSlot(session)) {
+      throw new IllegalArgumentException(
+          "session does not belong to slot " + slotId);
+    }
+
+    long startGeneration;
+    synchronized (this) {
+      startGeneration = generation;
+      runningRefreshes++;
+    }
+    try {
+      Map<Long, E> entries = enumerate(session);
+      synchronized (this) {
+        swap(entries, startGeneration);
+      }
+    } finally {
+      synchronized (this) {
+        if (--runningRefreshes == 0) {
+          changedHandles.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Replaces the indexed objects by the enumerated ones. For the handles
+   * changed by incremental updates since the refresh started, the current
+   * state is kept, because the enumeration may have read the state before
+   * the change.
+   */
+  private void swap(Map<Long, E> entries, long startGeneration) {
+    Map<Long, E> changed = new HashMap<>();
+    for (Map.Entry<Long, Long> change : changedHandles.entrySet()) {
+      if (change.getValue() > startGeneration) {
+        changed.put(change.getKey(), get(change.getKey()));
+      }
+    }
+
+    clear();
+    for (Map.Entry<Long, E> entry : entries.entrySet()) {
+      if (!changed.containsKey(entry.getKey())) {
+        add(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<Long, E> entry : changed.entrySet()) {
+      if (entry.getValue() != null) {
+        add(entry.getKey(), entry.getValue());
+      }
+    }
+    stale = failedGeneration > startGeneration;
+  }
+
+  /**
+   * Check, if an incremental update failed since the last refresh. The
+   * index may miss objects or contain removed objects then.
+   *
+   * @return True, if the index should be refreshed.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized boolean isStale() {
+    return stale;
+  }
+
+  /**
+   * Get the ID of the slot whose token is indexed.
+   *
+   * @return The slot ID.
+   * @preconditions
+   * @postconditions
+   */
+  long getSlotId() {
+    return slotId;
+  }
+
+  /**
+   * Unregisters this index from the module. The index is not updated any
+   * more afterwards.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    module.removeObjectListener(this);
+  }
+
+  @Override
+  public void objectCreated(Session session, long objectHandle) {
+    update(session, objectHandle);
+  }
+
+  @Override
+  public void objectModified(Session session, long objectHandle) {
+    update(session, objectHandle);
+  }
+
+  @Override
+  public void objectDestroyed(Session session, long objectHandle) {
+    if (isSameSlot(session)) {
+      synchronized (this) {
+        changed(objectHandle);
+        remove(objectHandle);
+      }
+    }
+  }
+
+  /**
+   * Re-reads the given object and replaces its entry, if it is indexed.
+   */
+  private void update(Session session, long objectHandle) {
+    if (!isSameSlot(session)) {
+      return;
+    }
+
+    E entry;
+    try {
+      entry = read(session, objectHandle);
+    } catch (TokenException ex) {
+      synchronized (this) {
+        changed(objectHandle);
+        failedGeneration = generation;
+        remove(objectHandle);
+        stale = true;
+      }
+      return;
+    }
+
+    synchronized (this) {
+      changed(objectHandle);
+      remove(objectHandle);
+      if (entry != null) {
+        add(objectHandle, entry);
+      }
+    }
+  }
+
+  /**
+   * Counts an incremental update of the given handle, and records it for
+   * the running refreshes. Must be called with the lock held.
+   */
+  private void changed(long objectHandle) {
+    generation++;
+    if (runningRefreshes > 0) {
+      changedHandles.put(objectHandle, generation);
+    }
+  }
+
+  private boolean isSameSlot(Session session) {
+    return session.getToken().getSlot().getSlotID() == slotId;
+  }
+
+  /**
+   * Reads all objects to index. Called without the lock held.
+   *
+   * @param session
+   *          The session to enumerate the objects with.
+   * @return The entries by object handle.
+   * @exception TokenException
+   *              If enumerating the objects failed.
+   */
+  abstract Map<Long, E> enumerate(Session session) throws TokenException;
+
+  /**
+   * Reads the indexed values of the given object. Called without the lock
+   * held.
+   *
+   * @param session
+   *          The session to read the object with.
+   * @param objectHandle
+   *          The handle of the object.
+   * @return The entry, or null if the object is not indexed by this index.
+   * @exception TokenException
+   *              If reading the object failed.
+   */
+  abstract E read(Session session, long objectHandle) throws TokenException;
+
+  /**
+   * Get the entry of the given handle. Called with the lock held.
+   *
+   * @param objectHandle
+   *          The handle of the object.
+   * @return The entry, or null if the handle is not indexed.
+   */
+  abstract E get(long objectHandle);
+
+  /**
+   * Adds the entry to the lookup maps. Called with the lock held.
+   *
+   * @param objectHandle
+   *          The handle of the object.
+   * @param entry
+   *          The entry of the object.
+   */
+  abstract void add(long objectHandle, E entry);
+
+  /**
+   * Removes the entry of the given handle from the lookup maps, if there is
+   * one. Called with the lock held.
+   *
+   * @param objectHandle
+   *          The handle of the object.
+   */
+  abstract void remove(long objectHandle);
+
+  /**
+   * Removes all entries from the lookup maps. Called with the lock held.
+   */
+  abstract void clear();
+
+}
@@ -0,0 +1,97 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+/**
+ * Interface for listeners which want to know about objects being created,
+ * modified or destroyed through the sessions of a module. Listeners are
+ * registered with {@link Module#addObjectListener(ObjectListener)}.
+ * Sessions call the listeners after the respective operation succeeded, in
+ * the thread which performed the operation; so the given session may be
+ * used to read attributes of the object. Notice that changes made by other
+ * applications are not reported.
+ *
+ * @see iaik.pkcs.pkcs11.Module#addObjectListener(ObjectListener)
+ * @invariants
+ */
+public interface ObjectListener {
+
+  /**
+   * Called after an object has been created; e.g. by createObject,
+   * copyObject, generateKey, generateKeyPair, unwrapKey or deriveKey.
+   *
+   * @param session
+   *          The session which created the object.
+   * @param objectHandle
+   *          The handle of the new object.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  void objectCreated(Session session, long objectHandle);
+
+  /**
+   * Called after attributes of an object have been modified by
+   * setAttributeValues.
+   *
+   * @param session
+   *          The session which modified the object.
+   * @param objectHandle
+   *          The handle of the modified object.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  void objectModified(Session session, long objectHandle);
+
+  /**
+   * Called after an object has been destroyed by destroyObject.
+   *
+   * @param session
+   *          The session which destroyed the object.
+   * @param objectHandle
+   *          The handle of the destroyed object.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  void objectDestroyed(Session session, long objectHandle);
+
+}
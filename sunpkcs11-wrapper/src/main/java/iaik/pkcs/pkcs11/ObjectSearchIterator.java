@@ -0,0 +1,228 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * An iterator over the objects found by a find operation. It wraps
+ * findObjectsInit, findObjectHandles and findObjectsFinal of a session.
+ * The handles are fetched in chunks which start small and double with each
+ * call up to a maximum, so that short searches are answered quickly and long
+ * searches need only few calls. The attributes of an object are read only
+ * when the object is returned by {@link #next()}.
+ * <p/>
+ * The find operation is finalized when the last object has been fetched or
+ * when {@link #close()} is called; close is safe to call more than once.
+ * Typical usage:
+ * <pre><code>
+ *   try (ObjectSearchIterator objects = session.iterateObjects(template)) {
+ *     while (objects.hasNext()) {
+ *       PKCS11Object object = objects.next();
+ *       ...
+ *     }
+ *   }
+ * </code></pre>
+ * Errors while finding or reading objects are thrown as
+ * TokenRuntimeException, because the Iterator methods do not declare
+ * checked exceptions.
+ *
+ * @see iaik.pkcs.pkcs11.Session#iterateObjects(PKCS11Object)
+ * @invariants (session <> null)
+ */
+public class ObjectSearchIterator
+    implements Iterator<PKCS11Object>, AutoCloseable {
+
+  /**
+   * The number of handles requested with the first C_FindObjects call.
+   */
+  public static final int INITIAL_CHUNK_SIZE = 8;
+
+  /**
+   * The maximum number of handles requested with one C_FindObjects call.
+   */
+  public static final int MAX_CHUNK_SIZE = 1024;
+
+  /**
+   * The session running the find operation.
+   */
+  private final Session session;
+
+  /**
+   * The handles of the current chunk.
+   */
+  private long[] handles = new long[0];
+
+  /**
+   * The index of the next handle in the current chunk.
+   */
+  private int index;
+
+  /**
+   * The number of handles to request with the next C_FindObjects call.
+   */
+  private int chunkSize = INITIAL_CHUNK_SIZE;
+
+  /**
+   * True, if the find operation has been finalized.
+   */
+  private boolean finished;
+
+  /**
+   * Constructor taking the session and the search template. Initializes the
+   * find operation.
+   *
+   * @param session
+   *          The session to search with.
+   * @param templateObject
+   *          The template object. May be null to find all objects.
+   * @exception TokenException
+   *              If initializing the find operation failed.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  ObjectSearchIterator(Session session, PKCS11Object templateObject)
+      throws TokenException {
+    this.session = Util.requireNonNull("session", session);
+    session.findObjectsInit(templateObject);
+  }
+
+  /**
+   * Check, if there are more objects. Fetches the next chunk of handles, if
+   * the current chunk is exhausted, and finalizes the find operation if there
+   * are no more handles.
+   *
+   * @return True, if there are more objects.
+   * @exception TokenRuntimeException
+   *              If finding the objects failed.
+   */
+  @Override
+  public boolean hasNext() {
+    if (index < handles.length) {
+      return true;
+    }
+    if (finished) {
+      return false;
+    }
+
+    try {
+      handles = session.findObjectHandles(chunkSize);
+      index = 0;
+      chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+      if (handles.length == 0) {
+        close();
+        return false;
+      }
+    } catch (TokenException ex) {
+      closeQuietly();
+      throw new TokenRuntimeException(ex);
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns the next object. Its attributes are read now.
+   *
+   * @return The next object.
+   * @exception TokenRuntimeException
+   *              If finding the object or reading its attributes failed.
+   */
+  @Override
+  public PKCS11Object next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    long handle = handles[index++];
+    try {
+      return PKCS11Object.getInstance(session, handle);
+    } catch (TokenException ex) {
+      throw new TokenRuntimeException(ex);
+    }
+  }
+
+  /**
+   * Returns the handle of the next object without reading any attributes.
+   *
+   * @return The handle of the next object.
+   * @exception TokenRuntimeException
+   *              If finding the object failed.
+   */
+  public long nextHandle() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+
+    return handles[index++];
+  }
+
+  /**
+   * Finalizes the find operation, if this has not happened yet.
+   *
+   * @exception TokenException
+   *              If finalizing the find operation failed.
+   */
+  @Override
+  public void close() throws TokenException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    handles = new long[0];
+    index = 0;
+    session.findObjectsFinal();
+  }
+
+  private void closeQuietly() {
+    try {
+      close();
+    } catch (TokenException ex) {
+      // the original exception is more relevant
+    }
+  }
+
+}
@@ -0,0 +1,114 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Opens and discards the output files of the file operations of
+ * {@link ParallelCipher} and {@link MappedFileOperations}. An output file
+ * must not be the input file, and it is deleted if the operation fails; so
+ * that neither the input is destroyed nor partly written output is left
+ * behind.
+ *
+ * @invariants
+ */
+final class OutputFiles {
+
+  private OutputFiles() {
+  }
+
+  /**
+   * Opens the output file, which is created or truncated.
+   *
+   * @param in
+   *          The input file of the operation.
+   * @param out
+   *          The output file.
+   * @return The channel to write the output file with.
+   * @exception IOException
+   *              If opening the output file failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions (result <> null)
+   */
+  static FileChannel open(Path in, Path out) throws IOException {
+    // the input would be truncated before it has been read
+    if (Files.exists(out) && Files.isSameFile(in, out)) {
+      throw new IllegalArgumentException(
+          "in and out must not be the same file");
+    }
+    return FileChannel.open(out, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Closes and deletes the output file of a failed operation. Failures are
+   * added to the given exception as suppressed.
+   *
+   * @param channel
+   *          The channel of the output file.
+   * @param out
+   *          The output file.
+   * @param ex
+   *          The exception the operation failed with.
+   * @preconditions (channel <> null) and (out <> null) and (ex <> null)
+   * @postconditions
+   */
+  static void discard(FileChannel channel, Path out, Exception ex) {
+    try {
+      channel.close();
+    } catch (IOException closeEx) {
+      ex.addSuppressed(closeEx);
+    }
+    try {
+      Files.deleteIfExists(out);
+    } catch (IOException deleteEx) {
+      ex.addSuppressed(deleteEx);
+    }
+  }
+
+}
@@ -0,0 +1,758 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.params.AesCtrParams;
+import iaik.pkcs.pkcs11.params.IVParams;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Encrypts and decrypts large data with AES in counter mode on several
+ * sessions of a {@link SessionPool} concurrently. A single encryptUpdate
+ * stream is limited by the throughput of one session, but each block of
+ * CTR only depends on its own counter value; so the data can be split into
+ * segments which are processed independently, each with the counter block
+ * of its first block.
+ * <p/>
+ * The data is split into segments of the given segment size, which must be
+ * a multiple of the AES block size. Segment i starts with the counter block
+ * of the caller plus i * segmentSize / 16, taken as a 128-bit big-endian
+ * number; this is exactly the counter value the sequential encryption
+ * reaches there, so the output is identical to one CKM_AES_CTR operation
+ * over the whole data. Each segment is processed with a single
+ * encryptInit/encrypt (or decryptInit/decrypt) on a session borrowed from
+ * the pool. E.g.
+ * <pre><code>
+ *   try (ParallelCipher cipher = new ParallelCipher(pool, 1024 * 1024, 8)) {
+ *     cipher.ctrEncrypt(key, counterBlock, inPath, outPath);
+ *   }
+ * </code></pre>
+ * <p/>
+ * CBC decryption parallelizes the same way, since the decryption of a block
+ * only depends on the preceding ciphertext block: segment i is decrypted
+ * with the last ciphertext block of segment i - 1 as IV. CBC encryption
+ * cannot be parallelized and is not offered here.
+ *
+ * @see iaik.pkcs.pkcs11.params.AesCtrParams
+ * @see iaik.pkcs.pkcs11.params.IVParams
+ * @invariants (pool <> null) and (segmentSize > 0) and
+ *             (segmentSize % 16 == 0) and (runner <> null)
+ */
+public class ParallelCipher implements AutoCloseable {
+
+  /**
+   * The default segment size.
+   */
+  public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  /**
+   * The AES block size.
+   */
+  private static final int BLOCK_SIZE = 16;
+
+  private final SessionPool pool;
+
+  private final int segmentSize;
+
+  private final ParallelRunner runner;
+
+  /**
+   * The processing of one segment by a worker.
+   */
+  private interface SegmentJob {
+
+    /**
+     * Processes the segment with the given index.
+     *
+     * @param session
+     *          The session of the worker.
+     * @param index
+     *          The index of the segment.
+     * @param buffer
+     *          The buffer of the worker, 2 * segmentSize + 16 bytes long.
+     */
+    void process(Session session, int index, byte[] buffer)
+        throws TokenException, IOException;
+
+  }
+
+  /**
+   * Constructor taking the pool, the segment size and the number of
+   * sessions to use. Creates an own thread pool of the given size.
+   *
+   * @param pool
+   *          The pool to borrow the sessions from.
+   * @param segmentSize
+   *          The number of bytes processed with one session call; a
+   *          multiple of 16.
+   * @param parallelism
+   *          The maximum number of sessions used at the same time.
+   * @preconditions (pool <> null) and (segmentSize > 0) and
+   *                (segmentSize % 16 == 0) and (parallelism > 0)
+   * @postconditions
+   */
+  public ParallelCipher(SessionPool pool, int segmentSize, int parallelism) {
+    this(pool, segmentSize,
+        new ParallelRunner(parallelism, "pkcs11-parallel-cipher"));
+  }
+
+  /**
+   * Constructor taking the pool, the segment size, the number of sessions
+   * to use and the executor to run the workers with. The executor is not
+   * shut down by {@link #close()}.
+   *
+   * @param pool
+   *          The pool to borrow the sessions from.
+   * @param segmentSize
+   *          The number of bytes processed with one session call; a
+   *          multiple of 16.
+   * @param parallelism
+   *          The maximum number of sessions used at the same time.
+   * @param executor
+   *          The executor to run the workers with.
+   * @preconditions (pool <> null) and (segmentSize > 0) and
+   *                (segmentSize % 16 == 0) and (parallelism > 0) and
+   *                (executor <> null)
+   * @postconditions
+   */
+  public ParallelCipher(SessionPool pool, int segmentSize, int parallelism,
+      ExecutorService executor) {
+    this(pool, segmentSize, new ParallelRunner(parallelism, executor));
+  }
+
+  private ParallelCipher(SessionPool pool, int segmentSize,
+      ParallelRunner runner) {
+    this.pool = Util.requireNonNull("pool", pool);
+    if (segmentSize < 1 || segmentSize % BLOCK_SIZE != 0) {
+      throw new IllegalArgumentException(
+          "segmentSize must be a positive multiple of 16");
+    }
+    this.segmentSize = segmentSize;
+    this.runner = runner;
+  }
+
+  /**
+   * Get the segment size.
+   *
+   * @return The number of bytes processed with one session call.
+   * @preconditions
+   * @postconditions (result > 0)
+   */
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  /**
+   * Get the counter block for the given block of a CTR stream; i.e. the
+   * given counter block plus blockIndex, as 128-bit big-endian number
+   * modulo 2^128.
+   *
+   * @param counterBlock
+   *          The counter block of the first block of the stream.
+   * @param blockIndex
+   *          The index of the block.
+   * @return The counter block of the block with the given index.
+   * @preconditions (counterBlock <> null) and (counterBlock.length == 16)
+   *                and (blockIndex >= 0)
+   * @postconditions (result <> null) and (result.length == 16)
+   */
+  public static byte[] getCounterBlock(byte[] counterBlock, long blockIndex) {
+    Util.requireNonNull("counterBlock", counterBlock);
+    if (counterBlock.length != BLOCK_SIZE) {
+      throw new IllegalArgumentException("counterBlock.length must be 16");
+    }
+
+    byte[] result = counterBlock.clone();
+    long carry = blockIndex;
+    for (int i = BLOCK_SIZE - 1; i >= 0 && carry != 0; i--) {
+      long sum = (result[i] & 0xff) + (carry & 0xff);
+      result[i] = (byte) sum;
+      carry = (carry >>> 8) + (sum >>> 8);
+    }
+    return result;
+  }
+
+  /**
+   * Encrypts a part of the given array with CKM_AES_CTR.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block.
+   * @param in
+   *          The array holding the data.
+   * @param inOfs
+   *          The offset of the data in in.
+   * @param inLen
+   *          The length of the data.
+   * @param out
+   *          The array to write the encrypted data to; inLen bytes from
+   *          outOfs on. Must not overlap with the input.
+   * @param outOfs
+   *          The offset in out.
+   * @return The number of bytes written; i.e. inLen.
+   * @exception TokenException
+   *              If encrypting failed, or if the calling thread has been
+   *              interrupted.
+   * @preconditions (key <> null) and (counterBlock <> null) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public int ctrEncrypt(Key key, byte[] counterBlock, byte[] in, int inOfs,
+      int inLen, byte[] out, int outOfs) throws TokenException {
+    return ctr(true, key, counterBlock, in, inOfs, inLen, out, outOfs);
+  }
+
+  /**
+   * Decrypts a part of the given array with CKM_AES_CTR.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block.
+   * @param in
+   *          The array holding the encrypted data.
+   * @param inOfs
+   *          The offset of the data in in.
+   * @param inLen
+   *          The length of the data.
+   * @param out
+   *          The array to write the decrypted data to; inLen bytes from
+   *          outOfs on. Must not overlap with the input.
+   * @param outOfs
+   *          The offset in out.
+   * @return The number of bytes written; i.e. inLen.
+   * @exception TokenException
+   *              If decrypting failed, or if the calling thread has been
+   *              interrupted.
+   * @preconditions (key <> null) and (counterBlock <> null) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public int ctrDecrypt(Key key, byte[] counterBlock, byte[] in, int inOfs,
+      int inLen, byte[] out, int outOfs) throws TokenException {
+    return ctr(false, key, counterBlock, in, inOfs, inLen, out, outOfs);
+  }
+
+  /**
+   * Encrypts the contents of the given file with CKM_AES_CTR and writes the
+   * result to the given output file, which is created or replaced. The
+   * workers read and write their segments with positional file access, so
+   * only two segments per worker are held in memory. If encrypting fails,
+   * the output file is deleted. The output file must not be the input
+   * file.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block.
+   * @param in
+   *          The file to encrypt.
+   * @param out
+   *          The file to write the encrypted data to.
+   * @return The number of bytes written.
+   * @exception TokenException
+   *              If encrypting failed, or if the calling thread has been
+   *              interrupted.
+   * @exception IOException
+   *              If reading or writing a file failed.
+   * @preconditions (key <> null) and (counterBlock <> null) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public long ctrEncrypt(Key key, byte[] counterBlock, Path in, Path out)
+      throws TokenException, IOException {
+    return ctr(true, key, counterBlock, in, out);
+  }
+
+  /**
+   * Decrypts the contents of the given file with CKM_AES_CTR and writes the
+   * result to the given output file, which is created or replaced. If
+   * decrypting fails, the output file is deleted. The output file must not
+   * be the input file.
+   *
+   * @param key
+   *          The AES key.
+   * @param counterBlock
+   *          The initial counter block.
+   * @param in
+   *          The file to decrypt.
+   * @param out
+   *          The file to write the decrypted data to.
+   * @return The number of bytes written.
+   * @exception TokenException
+   *              If decrypting failed, or if the calling thread has been
+   *              interrupted.
+   * @exception IOException
+   *              If reading or writing a file failed.
+   * @preconditions (key <> null) and (counterBlock <> null) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public long ctrDecrypt(Key key, byte[] counterBlock, Path in, Path out)
+      throws TokenException, IOException {
+    return ctr(false, key, counterBlock, in, out);
+  }
+
+  /**
+   * Decrypts a part of the given array with CKM_AES_CBC, CKM_AES_CBC_PAD,
+   * CKM_DES3_CBC or CKM_DES3_CBC_PAD. The segments are decrypted without
+   * padding; for the padded mechanisms, only the last segment is decrypted
+   * with the given mechanism, which removes the padding.
+   *
+   * @param mechanism
+   *          The mechanism with the IV as {@link IVParams}.
+   * @param key
+   *          The AES or DES3 key.
+   * @param in
+   *          The array holding the encrypted data.
+   * @param inOfs
+   *          The offset of the data in in.
+   * @param inLen
+   *          The length of the data; a multiple of the block size.
+   * @param out
+   *          The array to write the decrypted data to; needs inLen bytes
+   *          from outOfs on. Must not overlap with the input.
+   * @param outOfs
+   *          The offset in out.
+   * @return The number of bytes written.
+   * @exception TokenException
+   *              If decrypting failed, if inLen is not a multiple of the
+   *              block size, or if the calling thread has been interrupted.
+   * @preconditions (mechanism <> null) and (key <> null) and (in <> null)
+   *                and (out <> null)
+   * @postconditions (result <= inLen)
+   */
+  public int cbcDecrypt(Mechanism mechanism, final Key key, final byte[] in,
+      final int inOfs, final int inLen, final byte[] out, final int outOfs)
+      throws TokenException {
+    final CbcMechanism cbc = new CbcMechanism(mechanism);
+    Util.requireNonNull("key", key);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    if (inOfs < 0 || inLen < 0 || inLen > in.length - inOfs
+        || outOfs < 0 || inLen > out.length - outOfs) {
+      throw new IndexOutOfBoundsException();
+    }
+    cbc.checkLength(inLen);
+
+    final int count = segmentCount(inLen);
+    final AtomicInteger lastLen = new AtomicInteger();
+    try {
+      runParallel(count, new SegmentJob() {
+        @Override
+        public void process(Session session, int index, byte[] buffer)
+            throws TokenException {
+          int offset = index * segmentSize;
+          int len = Math.min(segmentSize, inLen - offset);
+          int outLen = cbc.decryptSegment(session, key, index == 0,
+              index == count - 1, in, inOfs + offset, len, out,
+              outOfs + offset);
+          if (index == count - 1) {
+            lastLen.set(outLen);
+          }
+        }
+      });
+    } catch (IOException ex) {
+      // not thrown for arrays
+      throw new TokenException(ex);
+    }
+    return (count == 0) ? 0 : (count - 1) * segmentSize + lastLen.get();
+  }
+
+  /**
+   * Decrypts the contents of the given file like
+   * {@link #cbcDecrypt(Mechanism, Key, byte[], int, int, byte[], int)} and
+   * writes the result to the given output file, which is created or
+   * replaced. If decrypting fails, e.g. because of wrong padding, the output
+   * file is deleted. The output file must not be the input file.
+   *
+   * @param mechanism
+   *          The mechanism with the IV as {@link IVParams}.
+   * @param key
+   *          The AES or DES3 key.
+   * @param in
+   *          The file to decrypt.
+   * @param out
+   *          The file to write the decrypted data to.
+   * @return The number of bytes written.
+   * @exception TokenException
+   *              If decrypting failed, if the file size is not a multiple of
+   *              the block size, or if the calling thread has been
+   *              interrupted.
+   * @exception IOException
+   *              If reading or writing a file failed.
+   * @preconditions (mechanism <> null) and (key <> null) and (in <> null)
+   *                and (out <> null)
+   * @postconditions
+   */
+  public long cbcDecrypt(Mechanism mechanism, final Key key, Path in,
+      Path out) throws TokenException, IOException {
+    final CbcMechanism cbc = new CbcMechanism(mechanism);
+    Util.requireNonNull("key", key);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    try (final FileChannel inChannel = FileChannel.open(in,
+        StandardOpenOption.READ)) {
+      final long size = inChannel.size();
+      cbc.checkLength(size);
+      final int count = segmentCount(size);
+
+      final FileChannel outChannel = OutputFiles.open(in, out);
+      try {
+        final AtomicInteger lastLen = new AtomicInteger();
+        runParallel(count, new SegmentJob() {
+          @Override
+          public void process(Session session, int index, byte[] buffer)
+              throws TokenException, IOException {
+            long offset = (long) index * segmentSize;
+            int len = (int) Math.min(segmentSize, size - offset);
+            // the preceding ciphertext block is read along as IV
+            int ivLen = (index == 0) ? 0 : cbc.blockSize;
+            readFully(inChannel, offset - ivLen, buffer, BLOCK_SIZE - ivLen,
+                ivLen + len);
+            int outLen = cbc.decryptSegment(session, key, index == 0,
+                index == count - 1, buffer, BLOCK_SIZE, len, buffer,
+                BLOCK_SIZE + segmentSize);
+            writeFully(outChannel, offset, buffer, BLOCK_SIZE + segmentSize,
+                outLen);
+            if (index == count - 1) {
+              lastLen.set(outLen);
+            }
+          }
+        });
+
+        long total = (count == 0)
+            ? 0 : (long) (count - 1) * segmentSize + lastLen.get();
+        outChannel.truncate(total);
+        outChannel.close();
+        return total;
+      } catch (TokenException | IOException | RuntimeException ex) {
+        OutputFiles.discard(outChannel, out, ex);
+        throw ex;
+      }
+    }
+  }
+
+  private int ctr(final boolean encrypt, final Key key,
+      final byte[] counterBlock, final byte[] in, final int inOfs,
+      final int inLen, final byte[] out, final int outOfs)
+      throws TokenException {
+    Util.requireNonNull("key", key);
+    getCounterBlock(counterBlock, 0);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    if (inOfs < 0 || inLen < 0 || inLen > in.length - inOfs
+        || outOfs < 0 || inLen > out.length - outOfs) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    try {
+      runParallel(segmentCount(inLen), new SegmentJob() {
+        @Override
+        public void process(Session session, int index, byte[] buffer)
+            throws TokenException {
+          int offset = index * segmentSize;
+          int len = Math.min(segmentSize, inLen - offset);
+          ctrSegment(session, encrypt, key, counterBlock, index,
+              in, inOfs + offset, len, out, outOfs + offset);
+        }
+      });
+    } catch (IOException ex) {
+      // not thrown for arrays
+      throw new TokenException(ex);
+    }
+    return inLen;
+  }
+
+  private long ctr(final boolean encrypt, final Key key,
+      final byte[] counterBlock, Path in, Path out)
+      throws TokenException, IOException {
+    Util.requireNonNull("key", key);
+    getCounterBlock(counterBlock, 0);
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    try (final FileChannel inChannel = FileChannel.open(in,
+        StandardOpenOption.READ)) {
+      final long size = inChannel.size();
+      int count = segmentCount(size);
+
+      final FileChannel outChannel = OutputFiles.open(in, out);
+      try {
+        runParallel(count, new SegmentJob() {
+          @Override
+          public void process(Session session, int index, byte[] buffer)
+              throws TokenException, IOException {
+            long offset = (long) index * segmentSize;
+            int len = (int) Math.min(segmentSize, size - offset);
+            readFully(inChannel, offset, buffer, 0, len);
+            ctrSegment(session, encrypt, key, counterBlock, index,
+                buffer, 0, len, buffer, segmentSize);
+            writeFully(outChannel, offset, buffer, segmentSize, len);
+          }
+        });
+        outChannel.close();
+        return size;
+      } catch (TokenException | IOException | RuntimeException ex) {
+        OutputFiles.discard(outChannel, out, ex);
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Processes one segment with a single encrypt or decrypt call.
+   */
+  private void ctrSegment(Session session, boolean encrypt, Key key,
+      byte[] counterBlock, int index, byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs) throws TokenException {
+    long blockIndex = (long) index * (segmentSize / BLOCK_SIZE);
+    Mechanism mechanism = Mechanism.get(PKCS11Constants.CKM_AES_CTR);
+    mechanism.setParams(new AesCtrParams(
+        getCounterBlock(counterBlock, blockIndex)));
+
+    if (encrypt) {
+      session.encryptInit(mechanism, key);
+      session.encrypt(in, inOfs, inLen, out, outOfs, inLen);
+    } else {
+      session.decryptInit(mechanism, key);
+      session.decrypt(in, inOfs, inLen, out, outOfs, inLen);
+    }
+  }
+
+  /**
+   * A checked CBC mechanism with the segment-wise decryption.
+   */
+  private static final class CbcMechanism {
+
+    /**
+     * The mechanism code without padding.
+     */
+    private final long rawCode;
+
+    /**
+     * The mechanism code given by the caller.
+     */
+    private final long code;
+
+    private final int blockSize;
+
+    private final byte[] iv;
+
+    CbcMechanism(Mechanism mechanism) {
+      Util.requireNonNull("mechanism", mechanism);
+      code = mechanism.getMechanismCode();
+      if (code == PKCS11Constants.CKM_AES_CBC) {
+        rawCode = code;
+        blockSize = 16;
+      } else if (code == PKCS11Constants.CKM_AES_CBC_PAD) {
+        rawCode = PKCS11Constants.CKM_AES_CBC;
+        blockSize = 16;
+      } else if (code == PKCS11Constants.CKM_DES3_CBC) {
+        rawCode = code;
+        blockSize = 8;
+      } else if (code == PKCS11Constants.CKM_DES3_CBC_PAD) {
+        rawCode = PKCS11Constants.CKM_DES3_CBC;
+        blockSize = 8;
+      } else {
+        throw new IllegalArgumentException(
+            "unsupported mechanism " + mechanism.getName());
+      }
+
+      if (!(mechanism.getParams() instanceof IVParams)) {
+        throw new IllegalArgumentException("mechanism has no IVParams");
+      }
+      iv = ((IVParams) mechanism.getParams()).getInitializationVector();
+      if (iv == null || iv.length != blockSize) {
+        throw new IllegalArgumentException(
+            "IV must be " + blockSize + " bytes long");
+      }
+    }
+
+    boolean isPadded() {
+      return code != rawCode;
+    }
+
+    void checkLength(long len) throws TokenException {
+      if (len % blockSize != 0 || (len == 0 && isPadded())) {
+        throw new PKCS11Exception(
+            PKCS11Constants.CKR_ENCRYPTED_DATA_LEN_RANGE);
+      }
+    }
+
+    /**
+     * Decrypts one segment with a single decrypt call. The IV of a segment
+     * other than the first is the ciphertext block in front of it, so
+     * in[inOfs - blockSize] must be readable then. Only the last segment is
+     * decrypted with padding.
+     */
+    int decryptSegment(Session session, Key key, boolean first,
+        boolean last, byte[] in, int inOfs, int inLen, byte[] out,
+        int outOfs) throws TokenException {
+      byte[] segmentIv = first
+          ? iv : Arrays.copyOfRange(in, inOfs - blockSize, inOfs);
+      Mechanism mechanism = Mechanism.get(last ? code : rawCode);
+      mechanism.setParams(new IVParams(segmentIv));
+
+      session.decryptInit(mechanism, key);
+      return session.decrypt(in, inOfs, inLen, out, outOfs, inLen);
+    }
+
+  }
+
+  private int segmentCount(long size) {
+    long count = (size + segmentSize - 1) / segmentSize;
+    if (count > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException(
+          "too many segments, use larger segments");
+    }
+    return (int) count;
+  }
+
+  private static void readFully(FileChannel channel, long position,
+      byte[] buffer, int offset, int len) throws IOException {
+    ByteBuffer target = ByteBuffer.wrap(buffer, offset, len);
+    while (target.hasRemaining()) {
+      if (channel.read(target, position + target.position() - offset) < 0) {
+        throw new EOFException("file has been truncated");
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel channel, long position,
+      byte[] buffer, int offset, int len) throws IOException {
+    ByteBuffer source = ByteBuffer.wrap(buffer, offset, len);
+    while (source.hasRemaining()) {
+      channel.write(source, position + source.position() - offset);
+    }
+  }
+
+  /**
+   * Runs the given number of segment jobs on at most parallelism sessions.
+   */
+  private void runParallel(final int count, final SegmentJob job)
+      throws TokenException, IOException {
+    final AtomicInteger nextIndex = new AtomicInteger();
+    runner.run(Math.min(runner.getParallelism(), count),
+        new ParallelRunner.Worker() {
+          @Override
+          public void work(AtomicBoolean failed)
+              throws TokenException, IOException {
+            processSegments(count, job, nextIndex, failed);
+          }
+        });
+  }
+
+  /**
+   * The work of one worker: borrows a session and processes segments until
+   * all have been claimed or another worker failed.
+   */
+  private void processSegments(int count, SegmentJob job,
+      AtomicInteger nextIndex, AtomicBoolean failed)
+      throws TokenException, IOException {
+    PooledSession session = pool.borrowSession(
+        Token.SessionReadWriteBehavior.RO_SESSION);
+    byte[] buffer = null;
+    try {
+      buffer = new byte[2 * segmentSize + BLOCK_SIZE];
+      while (!failed.get()) {
+        int index = nextIndex.getAndIncrement();
+        if (index >= count) {
+          break;
+        }
+        job.process(session, index, buffer);
+      }
+    } catch (TokenException ex) {
+      failed.set(true);
+      if (PooledSession.isSessionBroken(ex)) {
+        session.invalidate();
+      }
+      throw ex;
+    } catch (IOException | RuntimeException ex) {
+      failed.set(true);
+      throw ex;
+    } finally {
+      if (buffer != null) {
+        Arrays.fill(buffer, (byte) 0);
+      }
+      session.close();
+    }
+  }
+
+  /**
+   * Shuts down the executor, if it has been created by this object.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    runner.close();
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Segment Size: ", segmentSize, "\n", runner);
+  }
+
+}
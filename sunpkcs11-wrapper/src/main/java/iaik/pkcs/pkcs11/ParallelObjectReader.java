@@ -0,0 +1,221 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+
+/**
+ * Reads the objects for many handles concurrently, using several sessions
+ * of a {@link SessionPool}. This speeds up inventory scans of tokens which
+ * can serve several sessions at the same time; e.g.
+ * <pre><code>
+ *   long[] handles = session.findAllObjectHandles(null);
+ *   try (ParallelObjectReader reader = new ParallelObjectReader(pool, 8)) {
+ *     PKCS11Object[] objects = reader.getObjects(handles);
+ *     ...
+ *   }
+ * </code></pre>
+ * Each worker borrows one read-only session for the whole run and claims
+ * small batches of handles until all handles are done, so that slow objects
+ * do not hold up the other workers. The result has the same order as the
+ * given handles, independent of the order in which the objects were read.
+ *
+ * @see iaik.pkcs.pkcs11.SessionPool
+ * @invariants (pool <> null) and (runner <> null)
+ */
+public class ParallelObjectReader implements AutoCloseable {
+
+  /**
+   * The number of handles a worker claims at once.
+   */
+  private static final int BATCH_SIZE = 16;
+
+  /**
+   * The pool to borrow the sessions from.
+   */
+  private final SessionPool pool;
+
+  /**
+   * Runs the workers; at most one per session used at the same time.
+   */
+  private final ParallelRunner runner;
+
+  /**
+   * Constructor taking the pool and the number of sessions to use. Creates
+   * an own thread pool of the given size.
+   *
+   * @param pool
+   *          The pool to borrow the sessions from.
+   * @param parallelism
+   *          The maximum number of sessions used at the same time. The pool
+   *          should allow at least this many sessions.
+   * @preconditions (pool <> null) and (parallelism > 0)
+   * @postconditions
+   */
+  public ParallelObjectReader(SessionPool pool, int parallelism) {
+    this(pool, new ParallelRunner(parallelism, "pkcs11-object-reader"));
+  }
+
+  /**
+   * Constructor taking the pool, the number of sessions to use and the
+   * executor to run the workers with. The executor is not shut down by
+   * {@link #close()}.
+   *
+   * @param pool
+   *          The pool to borrow the sessions from.
+   * @param parallelism
+   *          The maximum number of sessions used at the same time.
+   * @param executor
+   *          The executor to run the workers with.
+   * @preconditions (pool <> null) and (parallelism > 0) and
+   *                (executor <> null)
+   * @postconditions
+   */
+  public ParallelObjectReader(SessionPool pool, int parallelism,
+      ExecutorService executor) {
+    this(pool, new ParallelRunner(parallelism, executor));
+  }
+
+  private ParallelObjectReader(SessionPool pool, ParallelRunner runner) {
+    this.pool = Util.requireNonNull("pool", pool);
+    this.runner = runner;
+  }
+
+  /**
+   * Reads the objects for the given handles.
+   *
+   * @param handles
+   *          The handles of the objects to read.
+   * @return The objects; the object at index i is the one for handles[i].
+   * @exception TokenException
+   *              If borrowing a session or reading an object failed, or if
+   *              the calling thread has been interrupted. The remaining
+   *              objects are not read then.
+   * @preconditions (handles <> null)
+   * @postconditions (result <> null) and (result.length == handles.length)
+   */
+  public PKCS11Object[] getObjects(final long[] handles)
+      throws TokenException {
+    Util.requireNonNull("handles", handles);
+    final PKCS11Object[] objects = new PKCS11Object[handles.length];
+    if (handles.length == 0) {
+      return objects;
+    }
+
+    final AtomicInteger nextIndex = new AtomicInteger();
+    int workers = Math.min(runner.getParallelism(),
+        (handles.length + BATCH_SIZE - 1) / BATCH_SIZE);
+    try {
+      runner.run(workers, new ParallelRunner.Worker() {
+        @Override
+        public void work(AtomicBoolean failed) throws TokenException {
+          readObjects(handles, objects, nextIndex, failed);
+        }
+      });
+    } catch (IOException ex) {
+      // not thrown by the workers
+      throw new TokenException(ex);
+    }
+    return objects;
+  }
+
+  /**
+   * The work of one worker: borrows a session and reads batches of objects
+   * until all handles have been claimed or another worker failed.
+   */
+  private void readObjects(long[] handles, PKCS11Object[] objects,
+      AtomicInteger nextIndex, AtomicBoolean failed) throws TokenException {
+    PooledSession session = pool.borrowSession(
+        Token.SessionReadWriteBehavior.RO_SESSION);
+    try {
+      while (!failed.get()) {
+        int start = nextIndex.getAndAdd(BATCH_SIZE);
+        if (start >= handles.length) {
+          break;
+        }
+        int end = Math.min(start + BATCH_SIZE, handles.length);
+        for (int i = start; i < end; i++) {
+          objects[i] = PKCS11Object.getInstance(session, handles[i]);
+        }
+      }
+    } catch (TokenException ex) {
+      failed.set(true);
+      if (PooledSession.isSessionBroken(ex)) {
+        session.invalidate();
+      }
+      throw ex;
+    } catch (RuntimeException ex) {
+      failed.set(true);
+      throw ex;
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Shuts down the executor, if it has been created by this reader.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    runner.close();
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return runner.toString();
+  }
+
+}
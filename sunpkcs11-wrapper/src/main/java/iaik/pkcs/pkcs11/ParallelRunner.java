@@ -0,0 +1,279 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the workers of {@link ParallelObjectReader}, {@link TreeHash} and
+ * {@link ParallelCipher} on an executor. It owns the executor, if it has
+ * created it, and shuts it down on {@link #close()}.
+ * <p/>
+ * The workers of one run share a failed flag; a worker which fails sets it,
+ * and the other workers stop claiming work when it is set. A run returns or
+ * throws only after all of its workers have finished, also if a worker
+ * failed or the calling thread has been interrupted; so no worker uses the
+ * data of the caller any more afterwards.
+ *
+ * @invariants (executor <> null) and (parallelism > 0)
+ */
+final class ParallelRunner implements AutoCloseable {
+
+  /**
+   * The work of one worker.
+   */
+  interface Worker {
+
+    /**
+     * Does the work of one worker. Stops claiming work as soon as the given
+     * flag is set, and sets it when it fails.
+     *
+     * @param failed
+     *          The failed flag shared by the workers of the run.
+     * @exception TokenException
+     *              If the work failed.
+     * @exception IOException
+     *              If reading or writing a file failed.
+     */
+    void work(AtomicBoolean failed) throws TokenException, IOException;
+
+  }
+
+  /**
+   * The maximum number of workers running at the same time.
+   */
+  private final int parallelism;
+
+  /**
+   * The executor running the workers.
+   */
+  private final ExecutorService executor;
+
+  /**
+   * True, if the executor has been created by this runner and must be shut
+   * down by {@link #close()}.
+   */
+  private final boolean ownExecutor;
+
+  /**
+   * Constructor taking the number of workers and the name of the threads.
+   * Creates an own pool of daemon threads of the given size.
+   *
+   * @param parallelism
+   *          The maximum number of workers running at the same time.
+   * @param threadName
+   *          The name of the threads, which is followed by a number.
+   * @preconditions (parallelism > 0) and (threadName <> null)
+   * @postconditions
+   */
+  ParallelRunner(int parallelism, final String threadName) {
+    this(parallelism, Executors.newFixedThreadPool(
+        checkParallelism(parallelism), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable,
+                threadName + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }), true);
+  }
+
+  /**
+   * Constructor taking the number of workers and the executor to run them
+   * with. The executor is not shut down by {@link #close()}.
+   *
+   * @param parallelism
+   *          The maximum number of workers running at the same time.
+   * @param executor
+   *          The executor to run the workers with.
+   * @preconditions (parallelism > 0) and (executor <> null)
+   * @postconditions
+   */
+  ParallelRunner(int parallelism, ExecutorService executor) {
+    this(parallelism, executor, false);
+  }
+
+  private ParallelRunner(int parallelism, ExecutorService executor,
+      boolean ownExecutor) {
+    this.parallelism = checkParallelism(parallelism);
+    this.executor = Util.requireNonNull("executor", executor);
+    this.ownExecutor = ownExecutor;
+  }
+
+  private static int checkParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be at least 1");
+    }
+    return parallelism;
+  }
+
+  /**
+   * Get the maximum number of workers running at the same time.
+   *
+   * @return The parallelism.
+   * @preconditions
+   * @postconditions (result > 0)
+   */
+  int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Runs the given worker the given number of times concurrently and waits
+   * until all runs have finished. If a worker fails or the calling thread
+   * is interrupted, the failed flag is set and the method still waits for
+   * the other workers, before it throws the first failure. The interrupt
+   * status of the calling thread is restored then.
+   *
+   * @param workers
+   *          The number of workers to run; at most the parallelism.
+   * @param worker
+   *          The work of each worker.
+   * @exception TokenException
+   *              If a worker failed, or if the calling thread has been
+   *              interrupted.
+   * @exception IOException
+   *              If a worker failed to read or write a file.
+   * @preconditions (worker <> null)
+   * @postconditions
+   */
+  void run(int workers, final Worker worker)
+      throws TokenException, IOException {
+    final AtomicBoolean failed = new AtomicBoolean();
+    List<Future<Void>> futures = new ArrayList<>(workers);
+    Throwable failure = null;
+    try {
+      for (int i = 0; i < workers; i++) {
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws TokenException, IOException {
+            worker.work(failed);
+            return null;
+          }
+        }));
+      }
+    } catch (RuntimeException ex) {
+      // e.g. rejected by a shut down executor
+      failed.set(true);
+      failure = ex;
+    }
+
+    InterruptedException interruption = null;
+    for (Future<Void> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException ex) {
+          // keep waiting, the worker may still use the data of the caller
+          failed.set(true);
+          if (interruption == null) {
+            interruption = ex;
+          }
+        } catch (ExecutionException ex) {
+          failed.set(true);
+          if (failure == null) {
+            failure = ex.getCause();
+          }
+          break;
+        }
+      }
+    }
+    if (interruption != null) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (failure == null) {
+      failure = interruption;
+    }
+    if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof TokenException) {
+      throw (TokenException) failure;
+    } else if (failure != null) {
+      throw new TokenException((Exception) failure);
+    }
+  }
+
+  /**
+   * Shuts down the executor, if it has been created by this runner.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    if (ownExecutor) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Parallelism: ", parallelism,
+        "\nOwn Executor: ", ownExecutor);
+  }
+
+}
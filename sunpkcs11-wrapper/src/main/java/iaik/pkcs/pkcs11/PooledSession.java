@@ -0,0 +1,241 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * A session which has been borrowed from a {@link SessionPool}. Calling
+ * {@link #close()} gives the session back to the pool instead of closing
+ * it, so that instances of this class can be used in try-with-resources
+ * statements. To really close the session, call {@link #closeSession()};
+ * to discard a session which is not usable any more, e.g. after
+ * CKR_SESSION_HANDLE_INVALID, call {@link #invalidate()}.
+ *
+ * @see iaik.pkcs.pkcs11.SessionPool
+ * @invariants (pool <> null)
+ */
+public class PooledSession extends Session implements AutoCloseable {
+
+  /**
+   * The pool this session belongs to.
+   */
+  private final SessionPool pool;
+
+  /**
+   * True, if this is a read-write session.
+   */
+  private final boolean rwSession;
+
+  /**
+   * True, while this session is borrowed.
+   */
+  private volatile boolean borrowed;
+
+  /**
+   * Constructor taking the pool and the newly opened session.
+   *
+   * @param pool
+   *          The pool this session belongs to.
+   * @param session
+   *          The opened session.
+   * @param rwSession
+   *          True, if this is a read-write session.
+   * @preconditions (pool <> null) and (session <> null)
+   * @postconditions
+   */
+  PooledSession(SessionPool pool, Session session, boolean rwSession) {
+    super(session.getToken(), session.getSessionHandle());
+    this.pool = Util.requireNonNull("pool", pool);
+    this.rwSession = rwSession;
+  }
+
+  /**
+   * Get the pool this session belongs to.
+   *
+   * @return The pool of this session.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public SessionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Check, if this is a read-write session.
+   *
+   * @return True, if this is a read-write session.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isRwSession() {
+    return rwSession;
+  }
+
+  void setBorrowed(boolean borrowed) {
+    this.borrowed = borrowed;
+  }
+
+  /**
+   * Gives this session back to the pool. A find operation which has not
+   * been finalized is finalized now, so that the next borrower can start
+   * its own. If this fails, the session is discarded. The modes set for
+   * this session, like lazy attribute loading, public key offload and local
+   * pre-hashing, are reset, and pending software operations are dropped. If
+   * another token operation may still be active, e.g. a signing without
+   * signFinal, the session is discarded too, because there is no way to
+   * cancel it. Calling this method more than once has no effect.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    if (!borrowed) {
+      return;
+    }
+
+    if (isFindObjectsActive()) {
+      try {
+        findObjectsFinal();
+      } catch (TokenException ex) {
+        invalidate();
+        return;
+      }
+    }
+
+    resetSessionState();
+    if (isOperationActive()) {
+      invalidate();
+      return;
+    }
+
+    borrowed = false;
+    pool.returnSession(this);
+  }
+
+  /**
+   * Closes this session and removes it from the pool. Use this method if the
+   * session is broken; e.g. if the token reported CKR_SESSION_HANDLE_INVALID
+   * or CKR_SESSION_CLOSED.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void invalidate() {
+    if (!borrowed) {
+      return;
+    }
+    borrowed = false;
+    try {
+      closeRawSession();
+    } catch (TokenException ex) {
+      // the session is not usable any more anyway
+    }
+    pool.removeSession(this);
+  }
+
+  /**
+   * Closes this session and removes it from the pool.
+   *
+   * @exception TokenException
+   *              If closing the session failed.
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void closeSession() throws TokenException {
+    if (!borrowed) {
+      return;
+    }
+    borrowed = false;
+    try {
+      closeRawSession();
+    } finally {
+      pool.removeSession(this);
+    }
+  }
+
+  /**
+   * Closes the underlying session without touching the pool.
+   *
+   * @exception TokenException
+   *              If closing the session failed.
+   */
+  void closeRawSession() throws TokenException {
+    super.closeSession();
+  }
+
+  /**
+   * Check, if the given exception means that the session which threw it is
+   * not usable any more and should be invalidated.
+   *
+   * @param ex
+   *          The exception thrown by an operation of the session.
+   * @return True, if the session is broken.
+   */
+  static boolean isSessionBroken(TokenException ex) {
+    if (!(ex instanceof PKCS11Exception)) {
+      return false;
+    }
+
+    long errorCode = ((PKCS11Exception) ex).getErrorCode();
+    return errorCode == PKCS11Constants.CKR_SESSION_HANDLE_INVALID
+        || errorCode == PKCS11Constants.CKR_SESSION_CLOSED
+        || errorCode == PKCS11Constants.CKR_DEVICE_REMOVED
+        || errorCode == PKCS11Constants.CKR_DEVICE_ERROR;
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects(super.toString(), "\nPooled: true",
+        "\nRW Session: ", rwSession);
+  }
+
+}
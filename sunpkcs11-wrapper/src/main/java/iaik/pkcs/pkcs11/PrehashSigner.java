@@ -0,0 +1,271 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.params.RSAPkcsPssParams;
+
+/**
+ * Computes the hash of a hash-and-sign mechanism locally, so that only the
+ * hash has to be sent to the token. The token then signs with the raw
+ * mechanism; e.g. CKM_RSA_PKCS instead of CKM_SHA256_RSA_PKCS. For
+ * CKM_SHA*_RSA_PKCS the hash is wrapped into a DigestInfo, which is exactly
+ * what the token does internally, so the signatures are identical.
+ * <p/>
+ * Used by {@link Session} if local pre-hashing is switched on; see
+ * {@link Session#setLocalPrehash(boolean)}.
+ *
+ * @invariants (rawMechanism <> null) and (digest <> null)
+ */
+final class PrehashSigner {
+
+  /**
+   * The DER encodings of the DigestInfo up to the hash value, for SHA-1,
+   * SHA-224, SHA-256, SHA-384 and SHA-512.
+   */
+  private static final byte[] SHA1_PREFIX = decodeHex(
+      "3021300906052b0e03021a05000414");
+
+  private static final byte[] SHA224_PREFIX = decodeHex(
+      "302d300d06096086480165030402040500041c");
+
+  private static final byte[] SHA256_PREFIX = decodeHex(
+      "3031300d060960864801650304020105000420");
+
+  private static final byte[] SHA384_PREFIX = decodeHex(
+      "3041300d060960864801650304020205000430");
+
+  private static final byte[] SHA512_PREFIX = decodeHex(
+      "3051300d060960864801650304020305000440");
+
+  /**
+   * The mechanism the token signs the hash with.
+   */
+  private final Mechanism rawMechanism;
+
+  private final MessageDigest digest;
+
+  /**
+   * The DigestInfo prefix, or null if the plain hash is signed.
+   */
+  private final byte[] digestInfoPrefix;
+
+  private PrehashSigner(Mechanism rawMechanism, MessageDigest digest,
+      byte[] digestInfoPrefix) {
+    this.rawMechanism = rawMechanism;
+    this.digest = digest;
+    this.digestInfoPrefix = digestInfoPrefix;
+  }
+
+  /**
+   * Get the raw mechanism for the given hash-and-sign mechanism.
+   *
+   * @param mechanismCode
+   *          The hash-and-sign mechanism; e.g. CKM_SHA256_RSA_PKCS.
+   * @return The raw mechanism; e.g. CKM_RSA_PKCS. -1 if the mechanism is
+   *         not supported for local pre-hashing.
+   */
+  static long getRawMechanismCode(long mechanismCode) {
+    if (getHashAlgorithm(mechanismCode) == null) {
+      return -1;
+    } else if (mechanismCode == PKCS11Constants.CKM_SHA1_RSA_PKCS
+        || mechanismCode == PKCS11Constants.CKM_SHA224_RSA_PKCS
+        || mechanismCode == PKCS11Constants.CKM_SHA256_RSA_PKCS
+        || mechanismCode == PKCS11Constants.CKM_SHA384_RSA_PKCS
+        || mechanismCode == PKCS11Constants.CKM_SHA512_RSA_PKCS) {
+      return PKCS11Constants.CKM_RSA_PKCS;
+    } else if (mechanismCode == PKCS11Constants.CKM_SHA1_RSA_PKCS_PSS
+        || mechanismCode == PKCS11Constants.CKM_SHA224_RSA_PKCS_PSS
+        || mechanismCode == PKCS11Constants.CKM_SHA256_RSA_PKCS_PSS
+        || mechanismCode == PKCS11Constants.CKM_SHA384_RSA_PKCS_PSS
+        || mechanismCode == PKCS11Constants.CKM_SHA512_RSA_PKCS_PSS) {
+      return PKCS11Constants.CKM_RSA_PKCS_PSS;
+    } else if (mechanismCode == PKCS11Constants.CKM_DSA_SHA1
+        || mechanismCode == PKCS11Constants.CKM_DSA_SHA224
+        || mechanismCode == PKCS11Constants.CKM_DSA_SHA256
+        || mechanismCode == PKCS11Constants.CKM_DSA_SHA384
+        || mechanismCode == PKCS11Constants.CKM_DSA_SHA512) {
+      return PKCS11Constants.CKM_DSA;
+    } else {
+      return PKCS11Constants.CKM_ECDSA;
+    }
+  }
+
+  /**
+   * Get the JCA name of the hash of the given hash-and-sign mechanism.
+   *
+   * @return The JCA name, or null if the mechanism is no supported
+   *         hash-and-sign mechanism.
+   */
+  private static String getHashAlgorithm(long code) {
+    if (code == PKCS11Constants.CKM_SHA1_RSA_PKCS
+        || code == PKCS11Constants.CKM_SHA1_RSA_PKCS_PSS
+        || code == PKCS11Constants.CKM_DSA_SHA1
+        || code == PKCS11Constants.CKM_ECDSA_SHA1) {
+      return "SHA-1";
+    } else if (code == PKCS11Constants.CKM_SHA224_RSA_PKCS
+        || code == PKCS11Constants.CKM_SHA224_RSA_PKCS_PSS
+        || code == PKCS11Constants.CKM_DSA_SHA224
+        || code == PKCS11Constants.CKM_ECDSA_SHA224) {
+      return "SHA-224";
+    } else if (code == PKCS11Constants.CKM_SHA256_RSA_PKCS
+        || code == PKCS11Constants.CKM_SHA256_RSA_PKCS_PSS
+        || code == PKCS11Constants.CKM_DSA_SHA256
+        || code == PKCS11Constants.CKM_ECDSA_SHA256) {
+      return "SHA-256";
+    } else if (code == PKCS11Constants.CKM_SHA384_RSA_PKCS
+        || code == PKCS11Constants.CKM_SHA384_RSA_PKCS_PSS
+        || code == PKCS11Constants.CKM_DSA_SHA384
+        || code == PKCS11Constants.CKM_ECDSA_SHA384) {
+      return "SHA-384";
+    } else if (code == PKCS11Constants.CKM_SHA512_RSA_PKCS
+        || code == PKCS11Constants.CKM_SHA512_RSA_PKCS_PSS
+        || code == PKCS11Constants.CKM_DSA_SHA512
+        || code == PKCS11Constants.CKM_ECDSA_SHA512) {
+      return "SHA-512";
+    }
+    return null;
+  }
+
+  /**
+   * Creates a pre-hashing signer for the given hash-and-sign mechanism.
+   *
+   * @param mechanism
+   *          The hash-and-sign mechanism.
+   * @return The signer, or null if the mechanism is not supported for local
+   *         pre-hashing; e.g. for PSS without RSAPkcsPssParams.
+   */
+  static PrehashSigner getInstance(Mechanism mechanism) {
+    long code = mechanism.getMechanismCode();
+    String hashAlgorithm = getHashAlgorithm(code);
+    if (hashAlgorithm == null) {
+      return null;
+    }
+
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(hashAlgorithm);
+    } catch (NoSuchAlgorithmException ex) {
+      return null;
+    }
+
+    long rawCode = getRawMechanismCode(code);
+    Mechanism rawMechanism = Mechanism.get(rawCode);
+    byte[] prefix = null;
+    if (rawCode == PKCS11Constants.CKM_RSA_PKCS) {
+      prefix = getDigestInfoPrefix(code);
+    } else if (rawCode == PKCS11Constants.CKM_RSA_PKCS_PSS) {
+      // without parameters, the token chooses them; they are not guessed
+      if (!(mechanism.getParams() instanceof RSAPkcsPssParams)) {
+        return null;
+      }
+      rawMechanism.setParams(mechanism.getParams());
+    }
+
+    return new PrehashSigner(rawMechanism, digest, prefix);
+  }
+
+  private static byte[] getDigestInfoPrefix(long code) {
+    if (code == PKCS11Constants.CKM_SHA1_RSA_PKCS) {
+      return SHA1_PREFIX;
+    } else if (code == PKCS11Constants.CKM_SHA224_RSA_PKCS) {
+      return SHA224_PREFIX;
+    } else if (code == PKCS11Constants.CKM_SHA256_RSA_PKCS) {
+      return SHA256_PREFIX;
+    } else if (code == PKCS11Constants.CKM_SHA384_RSA_PKCS) {
+      return SHA384_PREFIX;
+    } else {
+      return SHA512_PREFIX;
+    }
+  }
+
+  private static byte[] decodeHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  /**
+   * Get the mechanism to initialize the token operation with.
+   *
+   * @return The raw mechanism.
+   */
+  Mechanism getRawMechanism() {
+    return rawMechanism;
+  }
+
+  void update(byte[] in, int inOfs, int inLen) {
+    digest.update(in, inOfs, inLen);
+  }
+
+  void update(ByteBuffer in) {
+    digest.update(in);
+  }
+
+  /**
+   * Finishes the hash and returns the data the token has to sign with the
+   * raw mechanism.
+   *
+   * @return The hash, or the DigestInfo for CKM_RSA_PKCS.
+   */
+  byte[] finish() {
+    byte[] hash = digest.digest();
+    if (digestInfoPrefix == null) {
+      return hash;
+    }
+
+    byte[] digestInfo = new byte[digestInfoPrefix.length + hash.length];
+    System.arraycopy(digestInfoPrefix, 0, digestInfo, 0,
+        digestInfoPrefix.length);
+    System.arraycopy(hash, 0, digestInfo, digestInfoPrefix.length,
+        hash.length);
+    return digestInfo;
+  }
+
+}
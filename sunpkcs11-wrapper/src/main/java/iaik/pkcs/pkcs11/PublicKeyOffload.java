@@ -0,0 +1,610 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CertificateException;
+import java.security.interfaces.DSAPublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.JcaConverter;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.objects.MechanismArrayAttribute;
+import iaik.pkcs.pkcs11.objects.PKCS11Object;
+import iaik.pkcs.pkcs11.objects.X509PublicKeyCertificate;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * Runs public-key operations in software instead of on the token. Verifying
+ * signatures and encrypting with a public key need no secret, so they can
+ * be done with the JCA providers of the JDK, which leaves the capacity of the
+ * token for operations with private keys. The offload is switched on per
+ * session with {@link Session#setPublicKeyOffload(boolean)}; the sessions
+ * then use this class in verifyInit and encryptInit and fall back to the
+ * token for keys and mechanisms which cannot be offloaded. Keys whose
+ * CKA_VERIFY or CKA_ENCRYPT is not true, or whose CKA_ALLOWED_MECHANISMS
+ * does not contain the mechanism, are used on the token as well; so the
+ * token reports the same errors as without offload.
+ * <p/>
+ * The following mechanisms are offloaded:
+ * <ul>
+ *   <li>verify: CKM_RSA_PKCS, CKM_RSA_X_509, CKM_SHA*_RSA_PKCS, CKM_ECDSA,
+ *       CKM_ECDSA_SHA*, CKM_DSA_SHA*</li>
+ *   <li>encrypt: CKM_RSA_PKCS, CKM_RSA_X_509</li>
+ * </ul>
+ * Other mechanisms, like PSS, OAEP or vendor-defined mechanisms, are always
+ * run on the token. Wrapping is not offloaded, because the key to wrap is
+ * held by the token.
+ * <p/>
+ * The public key material is read from the token on each init, so that a
+ * reused handle never verifies against the key it referred to before; only
+ * the conversion into a JCA key is cached, by the read values. Each module
+ * has one instance of this class; see {@link Module#getPublicKeyOffload()}.
+ *
+ * @invariants (converter <> null)
+ */
+public class PublicKeyOffload {
+
+  /**
+   * A verification running in software.
+   */
+  abstract static class Verifier {
+
+    abstract void update(byte[] in, int inOfs, int inLen)
+        throws TokenException;
+
+    /**
+     * Verifies the signature and ends the operation.
+     *
+     * @exception PKCS11Exception
+     *              With CKR_SIGNATURE_INVALID or CKR_SIGNATURE_LEN_RANGE, if
+     *              the signature is not valid.
+     */
+    abstract void verify(byte[] signature) throws TokenException;
+
+  }
+
+  /**
+   * An encryption running in software.
+   */
+  static final class Encryptor {
+
+    private final Cipher cipher;
+
+    private final int outputLength;
+
+    Encryptor(Cipher cipher, int outputLength) {
+      this.cipher = cipher;
+      this.outputLength = outputLength;
+    }
+
+    int update(byte[] in, int inOfs, int inLen) {
+      // RSA ciphers only buffer the input
+      cipher.update(in, inOfs, inLen);
+      return 0;
+    }
+
+    /**
+     * Checks the size of the output buffer before any input is fed in; so
+     * the caller can keep the operation active if the buffer is too small,
+     * like the token does, without buffering the input twice on the retry.
+     */
+    void checkOutputLength(int outLen) throws TokenException {
+      if (outLen < outputLength) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+      }
+    }
+
+    /**
+     * Encrypts the buffered input.
+     */
+    int doFinal(byte[] out, int outOfs, int outLen) throws TokenException {
+      checkOutputLength(outLen);
+      try {
+        return cipher.doFinal(out, outOfs);
+      } catch (GeneralSecurityException ex) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_DATA_LEN_RANGE);
+      }
+    }
+
+  }
+
+  /**
+   * Converts the key material; it keeps the conversions of recently used
+   * keys by their values.
+   */
+  private final JcaConverter converter = new JcaConverter(64);
+
+  /**
+   * Get the JCA public key for the given key object. The key material is
+   * read from the token on every call, because a handle may refer to
+   * another object after the session which created it was closed or after
+   * a logout. Only the conversion is cached, by the read values.
+   *
+   * @param session
+   *          The session to read the key material with.
+   * @param key
+   *          The key object. Only its handle is used.
+   * @return The JCA public key, or null if the object is no public key or
+   *         its material cannot be read or converted.
+   * @preconditions (session <> null) and (key <> null)
+   * @postconditions
+   */
+  public java.security.PublicKey getPublicKey(Session session, Key key) {
+    Util.requireNonNull("session", session);
+    Util.requireNonNull("key", key);
+    iaik.pkcs.pkcs11.objects.PublicKey object = readPublicKey(session, key);
+    return (object != null) ? convert(session, object) : null;
+  }
+
+  /**
+   * Get the JCA public key for the given key object, if the key object
+   * permits the given operation with the given mechanism; i.e. if CKA_VERIFY
+   * or CKA_ENCRYPT is true and CKA_ALLOWED_MECHANISMS, if the token has it,
+   * contains the mechanism. Otherwise, the token decides, so that the
+   * caller gets the same error as without offload.
+   *
+   * @return The JCA public key, or null if the operation must run on the
+   *         token.
+   */
+  private java.security.PublicKey getPublicKey(Session session, Key key,
+      Mechanism mechanism, boolean encrypt) {
+    iaik.pkcs.pkcs11.objects.PublicKey object = readPublicKey(session, key);
+    if (object == null) {
+      return null;
+    }
+    try {
+      if (!isPermitted(object, mechanism, encrypt)) {
+        return null;
+      }
+    } catch (TokenRuntimeException ex) {
+      return null;
+    }
+    return convert(session, object);
+  }
+
+  /**
+   * Reads the given key object from the token.
+   *
+   * @return The key object, or null if it is no public key or cannot be
+   *         read.
+   */
+  private static iaik.pkcs.pkcs11.objects.PublicKey readPublicKey(
+      Session session, Key key) {
+    PKCS11Object object;
+    try {
+      object = PKCS11Object.getInstance(session, key.getObjectHandle());
+    } catch (TokenException | TokenRuntimeException ex) {
+      return null;
+    }
+    return (object instanceof iaik.pkcs.pkcs11.objects.PublicKey)
+        ? (iaik.pkcs.pkcs11.objects.PublicKey) object : null;
+  }
+
+  private java.security.PublicKey convert(Session session,
+      iaik.pkcs.pkcs11.objects.PublicKey object) {
+    try {
+      return converter.toPublicKey(session.getToken().getSlot().getSlotID(),
+          object);
+    } catch (InvalidKeySpecException | TokenRuntimeException ex) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks CKA_VERIFY or CKA_ENCRYPT and CKA_ALLOWED_MECHANISMS of the given
+   * key object. A missing or empty list of allowed mechanisms does not
+   * restrict the key.
+   */
+  private static boolean isPermitted(
+      iaik.pkcs.pkcs11.objects.PublicKey object, Mechanism mechanism,
+      boolean encrypt) {
+    BooleanAttribute function =
+        encrypt ? object.getEncrypt() : object.getVerify();
+    if (!function.isPresent()
+        || !Boolean.TRUE.equals(function.getBooleanValue())) {
+      return false;
+    }
+
+    MechanismArrayAttribute allowedMechanisms = object.getAllowedMechanisms();
+    Mechanism[] allowed = allowedMechanisms.isPresent()
+        ? allowedMechanisms.getMechanismAttributeArrayValue() : null;
+    if (allowed == null) {
+      return true;
+    }
+    for (Mechanism allowedMechanism : allowed) {
+      if (allowedMechanism.getMechanismCode()
+          == mechanism.getMechanismCode()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Creates a software verifier for the given mechanism and token key.
+   *
+   * @return The verifier, or null if the operation must run on the token.
+   */
+  Verifier createVerifier(Session session, Mechanism mechanism, Key key) {
+    if (!isOffloadableVerifyMechanism(mechanism)) {
+      return null;
+    }
+    java.security.PublicKey publicKey =
+        getPublicKey(session, key, mechanism, false);
+    return (publicKey != null)
+        ? createVerifier(mechanism.getMechanismCode(), publicKey) : null;
+  }
+
+  /**
+   * Creates a software verifier for the given mechanism and the public key
+   * of the given certificate.
+   *
+   * @return The verifier, or null if the mechanism is not supported in
+   *         software or does not fit the key.
+   */
+  Verifier createVerifier(Session session, Mechanism mechanism,
+      X509PublicKeyCertificate certificate) throws TokenException {
+    if (!isOffloadableVerifyMechanism(mechanism)) {
+      return null;
+    }
+    java.security.PublicKey publicKey;
+    try {
+      publicKey = converter.toCertificate(
+          session.getToken().getSlot().getSlotID(), certificate)
+          .getPublicKey();
+    } catch (CertificateException ex) {
+      throw new TokenException(ex);
+    }
+    return createVerifier(mechanism.getMechanismCode(), publicKey);
+  }
+
+  /**
+   * Creates a software encryptor for the given mechanism and token key.
+   *
+   * @return The encryptor, or null if the operation must run on the token.
+   */
+  Encryptor createEncryptor(Session session, Mechanism mechanism, Key key) {
+    long code = mechanism.getMechanismCode();
+    String transformation;
+    if (code == PKCS11Constants.CKM_RSA_PKCS) {
+      transformation = "RSA/ECB/PKCS1Padding";
+    } else if (code == PKCS11Constants.CKM_RSA_X_509) {
+      transformation = "RSA/ECB/NoPadding";
+    } else {
+      return null;
+    }
+
+    java.security.PublicKey publicKey =
+        getPublicKey(session, key, mechanism, true);
+    if (!(publicKey instanceof RSAPublicKey)) {
+      return null;
+    }
+
+    try {
+      Cipher cipher = Cipher.getInstance(transformation);
+      cipher.init(Cipher.ENCRYPT_MODE, publicKey);
+      return new Encryptor(cipher, modulusLength((RSAPublicKey) publicKey));
+    } catch (GeneralSecurityException ex) {
+      return null;
+    }
+  }
+
+  private static boolean isOffloadableVerifyMechanism(Mechanism mechanism) {
+    return mechanism.getParams() == null
+        && (mechanism.getMechanismCode() == PKCS11Constants.CKM_RSA_PKCS
+          || mechanism.getMechanismCode() == PKCS11Constants.CKM_RSA_X_509
+          || getSignatureAlgorithm(mechanism.getMechanismCode()) != null);
+  }
+
+  /**
+   * Get the JCA signature algorithm for the given mechanism.
+   *
+   * @return The algorithm name, or null if there is none.
+   */
+  private static String getSignatureAlgorithm(long code) {
+    if (code == PKCS11Constants.CKM_SHA1_RSA_PKCS) {
+      return "SHA1withRSA";
+    } else if (code == PKCS11Constants.CKM_SHA224_RSA_PKCS) {
+      return "SHA224withRSA";
+    } else if (code == PKCS11Constants.CKM_SHA256_RSA_PKCS) {
+      return "SHA256withRSA";
+    } else if (code == PKCS11Constants.CKM_SHA384_RSA_PKCS) {
+      return "SHA384withRSA";
+    } else if (code == PKCS11Constants.CKM_SHA512_RSA_PKCS) {
+      return "SHA512withRSA";
+    } else if (code == PKCS11Constants.CKM_ECDSA) {
+      return "NONEwithECDSA";
+    } else if (code == PKCS11Constants.CKM_ECDSA_SHA1) {
+      return "SHA1withECDSA";
+    } else if (code == PKCS11Constants.CKM_ECDSA_SHA224) {
+      return "SHA224withECDSA";
+    } else if (code == PKCS11Constants.CKM_ECDSA_SHA256) {
+      return "SHA256withECDSA";
+    } else if (code == PKCS11Constants.CKM_ECDSA_SHA384) {
+      return "SHA384withECDSA";
+    } else if (code == PKCS11Constants.CKM_ECDSA_SHA512) {
+      return "SHA512withECDSA";
+    } else if (code == PKCS11Constants.CKM_DSA_SHA1) {
+      return "SHA1withDSA";
+    } else if (code == PKCS11Constants.CKM_DSA_SHA224) {
+      return "SHA224withDSA";
+    } else if (code == PKCS11Constants.CKM_DSA_SHA256) {
+      return "SHA256withDSA";
+    }
+    return null;
+  }
+
+  private static Verifier createVerifier(long code,
+      java.security.PublicKey publicKey) {
+    try {
+      if (code == PKCS11Constants.CKM_RSA_PKCS
+          || code == PKCS11Constants.CKM_RSA_X_509) {
+        if (!(publicKey instanceof RSAPublicKey)) {
+          return null;
+        }
+        boolean raw = (code == PKCS11Constants.CKM_RSA_X_509);
+        Cipher cipher = Cipher.getInstance(
+            raw ? "RSA/ECB/NoPadding" : "RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.DECRYPT_MODE, publicKey);
+        return new RsaVerifier(cipher,
+            modulusLength((RSAPublicKey) publicKey), raw);
+      }
+
+      String algorithm = getSignatureAlgorithm(code);
+      int componentLength;
+      if (algorithm.endsWith("RSA")) {
+        if (!(publicKey instanceof RSAPublicKey)) {
+          return null;
+        }
+        componentLength = 0;
+      } else if (algorithm.endsWith("ECDSA")) {
+        if (!(publicKey instanceof ECPublicKey)) {
+          return null;
+        }
+        componentLength = (((ECPublicKey) publicKey).getParams().getOrder()
+            .bitLength() + 7) / 8;
+      } else {
+        if (!(publicKey instanceof DSAPublicKey)) {
+          return null;
+        }
+        componentLength = (((DSAPublicKey) publicKey).getParams().getQ()
+            .bitLength() + 7) / 8;
+      }
+
+      Signature signature = Signature.getInstance(algorithm);
+      signature.initVerify(publicKey);
+      return new SignatureVerifier(signature, componentLength);
+    } catch (GeneralSecurityException ex) {
+      // e.g. a key the provider does not accept; let the token decide
+      return null;
+    }
+  }
+
+  private static int modulusLength(RSAPublicKey publicKey) {
+    return (publicKey.getModulus().bitLength() + 7) / 8;
+  }
+
+  /**
+   * Verifies with a JCA signature. For DSA and ECDSA, the PKCS#11 signature
+   * r || s is converted to the DER encoding the JCA expects.
+   */
+  private static final class SignatureVerifier extends Verifier {
+
+    private final Signature signature;
+
+    /**
+     * The length of r and s in bytes, or 0 for RSA.
+     */
+    private final int componentLength;
+
+    SignatureVerifier(Signature signature, int componentLength) {
+      this.signature = signature;
+      this.componentLength = componentLength;
+    }
+
+    @Override
+    void update(byte[] in, int inOfs, int inLen) throws TokenException {
+      try {
+        signature.update(in, inOfs, inLen);
+      } catch (SignatureException ex) {
+        throw new TokenException(ex);
+      }
+    }
+
+    @Override
+    void verify(byte[] signatureValue) throws TokenException {
+      byte[] encoded = signatureValue;
+      if (componentLength > 0) {
+        if (signatureValue.length != 2 * componentLength) {
+          throw new PKCS11Exception(
+              PKCS11Constants.CKR_SIGNATURE_LEN_RANGE);
+        }
+        encoded = toDer(signatureValue);
+      }
+
+      boolean valid;
+      try {
+        valid = signature.verify(encoded);
+      } catch (SignatureException ex) {
+        valid = false;
+      }
+      if (!valid) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_SIGNATURE_INVALID);
+      }
+    }
+
+    /**
+     * Encodes r || s as DER SEQUENCE of two INTEGERs.
+     */
+    private static byte[] toDer(byte[] rs) {
+      int half = rs.length / 2;
+      byte[] r = new BigInteger(1, copy(rs, 0, half)).toByteArray();
+      byte[] s = new BigInteger(1, copy(rs, half, half)).toByteArray();
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream(rs.length + 9);
+      int contentLength = 2 + lengthBytes(r.length) + r.length
+          + 2 + lengthBytes(s.length) + s.length;
+      out.write(0x30);
+      writeLength(out, contentLength);
+      out.write(0x02);
+      writeLength(out, r.length);
+      out.write(r, 0, r.length);
+      out.write(0x02);
+      writeLength(out, s.length);
+      out.write(s, 0, s.length);
+      return out.toByteArray();
+    }
+
+    private static byte[] copy(byte[] array, int offset, int length) {
+      byte[] copy = new byte[length];
+      System.arraycopy(array, offset, copy, 0, length);
+      return copy;
+    }
+
+    /**
+     * Get the number of bytes the length field needs, minus the first one.
+     */
+    private static int lengthBytes(int length) {
+      return (length < 0x80) ? 0 : (length < 0x100) ? 1 : 2;
+    }
+
+    private static void writeLength(ByteArrayOutputStream out, int length) {
+      if (length < 0x80) {
+        out.write(length);
+      } else if (length < 0x100) {
+        out.write(0x81);
+        out.write(length);
+      } else {
+        out.write(0x82);
+        out.write(length >> 8);
+        out.write(length);
+      }
+    }
+
+  }
+
+  /**
+   * Verifies CKM_RSA_PKCS and CKM_RSA_X_509 signatures by recovering the
+   * signed data with the public key and comparing it with the given data.
+   */
+  private static final class RsaVerifier extends Verifier {
+
+    private final Cipher cipher;
+
+    private final int modulusLength;
+
+    private final boolean raw;
+
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    RsaVerifier(Cipher cipher, int modulusLength, boolean raw) {
+      this.cipher = cipher;
+      this.modulusLength = modulusLength;
+      this.raw = raw;
+    }
+
+    @Override
+    void update(byte[] in, int inOfs, int inLen) {
+      data.write(in, inOfs, inLen);
+    }
+
+    @Override
+    void verify(byte[] signature) throws TokenException {
+      if (signature.length != modulusLength) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_SIGNATURE_LEN_RANGE);
+      }
+
+      byte[] recovered;
+      try {
+        recovered = cipher.doFinal(signature);
+      } catch (BadPaddingException ex) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_SIGNATURE_INVALID);
+      } catch (GeneralSecurityException ex) {
+        throw new TokenException(ex);
+      }
+
+      byte[] signed = data.toByteArray();
+      boolean valid = raw
+          ? new BigInteger(1, recovered).equals(new BigInteger(1, signed))
+          : MessageDigest.isEqual(recovered, signed);
+      if (!valid) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_SIGNATURE_INVALID);
+      }
+    }
+
+  }
+
+  /**
+   * Drops all converted keys.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void clear() {
+    converter.clear();
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return converter.toString();
+  }
+
+}
@@ -0,0 +1,566 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * A pool of random bytes from the token. Generating a few random bytes with
+ * {@link Session#generateRandom(int)} costs a native call each; for many
+ * small requests, like nonces, this pool prefetches large blocks with
+ * C_GenerateRandom on a dedicated session and serves the requests from
+ * memory.
+ * <p/>
+ * The blocks are held in a ring, which the requests take bytes from without
+ * locking; the bytes handed out are zeroized in the pool. A background
+ * thread refills the ring up to its capacity, as soon as the number of
+ * filled blocks has dropped to the low watermark. If the ring is empty, or
+ * for requests larger than a block, the bytes are generated directly.
+ * E.g.
+ * <pre><code>
+ *   try (RandomPool pool = new RandomPool(session)) {
+ *     SecureRandom random = pool.getSecureRandom();
+ *     byte[] nonce = new byte[12];
+ *     random.nextBytes(nonce);
+ *   }
+ * </code></pre>
+ * The session must not be used by the application while the pool is open.
+ *
+ * @see RandomPoolSpi
+ * @invariants (session <> null) and (blockSize > 0) and (ring <> null)
+ */
+public class RandomPool implements AutoCloseable {
+
+  /**
+   * The default number of bytes generated with one call.
+   */
+  public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+  /**
+   * The default number of blocks in the ring.
+   */
+  public static final int DEFAULT_BLOCK_COUNT = 16;
+
+  /**
+   * The time to wait after a failed refill.
+   */
+  private static final long RETRY_DELAY_NANOS = 1000L * 1000L * 1000L;
+
+  /**
+   * A block of random bytes. The bytes are claimed by advancing the
+   * position.
+   */
+  private static final class Block {
+
+    private final byte[] data;
+
+    private final AtomicInteger position = new AtomicInteger();
+
+    Block(byte[] data) {
+      this.data = data;
+    }
+
+  }
+
+  private final Session session;
+
+  /**
+   * Guards the session, which is used by the refill thread and by the
+   * direct calls.
+   */
+  private final Object sessionLock = new Object();
+
+  private final int blockSize;
+
+  /**
+   * The ring of blocks. The filled blocks have the indexes from head
+   * inclusive to tail exclusive, modulo the length of the ring.
+   */
+  private final AtomicReferenceArray<Block> ring;
+
+  private final AtomicLong head = new AtomicLong();
+
+  /**
+   * The end of the filled blocks; only advanced by the refill thread.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The number of filled blocks at which the refill starts.
+   */
+  private final int lowWatermark;
+
+  private final Thread refillThread;
+
+  private volatile boolean closed;
+
+  /**
+   * The number of requests taking bytes from the ring right now. The ring
+   * is zeroized by {@link #close()} only when it has dropped to 0.
+   */
+  private final AtomicInteger takers = new AtomicInteger();
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong refills = new AtomicLong();
+
+  private final AtomicLong refillFailures = new AtomicLong();
+
+  private final AtomicLong refillNanos = new AtomicLong();
+
+  private final AtomicLong maxRefillNanos = new AtomicLong();
+
+  /**
+   * Constructor taking the session. Uses the default block size and count,
+   * and half of the blocks as low watermark.
+   *
+   * @param session
+   *          The session dedicated to this pool.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public RandomPool(Session session) {
+    this(session, DEFAULT_BLOCK_SIZE, DEFAULT_BLOCK_COUNT,
+        DEFAULT_BLOCK_COUNT / 2);
+  }
+
+  /**
+   * Constructor taking the session, the block size, the number of blocks
+   * and the low watermark. Starts the refill thread, which fills the ring
+   * in the background.
+   *
+   * @param session
+   *          The session dedicated to this pool.
+   * @param blockSize
+   *          The number of bytes generated with one call.
+   * @param blockCount
+   *          The number of blocks in the ring.
+   * @param lowWatermark
+   *          The number of filled blocks at which the refill starts.
+   * @preconditions (session <> null) and (blockSize > 0) and
+   *                (blockCount > 0) and (lowWatermark >= 0) and
+   *                (lowWatermark < blockCount)
+   * @postconditions
+   */
+  public RandomPool(Session session, int blockSize, int blockCount,
+      int lowWatermark) {
+    this.session = Util.requireNonNull("session", session);
+    if (blockSize < 1) {
+      throw new IllegalArgumentException("blockSize must be at least 1");
+    }
+    if (blockCount < 1) {
+      throw new IllegalArgumentException("blockCount must be at least 1");
+    }
+    if (lowWatermark < 0 || lowWatermark >= blockCount) {
+      throw new IllegalArgumentException(
+          "lowWatermark must be in the range [0, blockCount)");
+    }
+    this.blockSize = blockSize;
+    this.ring = new AtomicReferenceArray<>(blockCount);
+    this.lowWatermark = lowWatermark;
+
+    refillThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        refill();
+      }
+    }, "pkcs11-random-pool");
+    refillThread.setDaemon(true);
+    refillThread.start();
+  }
+
+  /**
+   * Fills the given array with random bytes.
+   *
+   * @param out
+   *          The array to fill.
+   * @exception TokenException
+   *              If the bytes had to be generated directly, and that
+   *              failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public void nextBytes(byte[] out) throws TokenException {
+    Util.requireNonNull("out", out);
+    nextBytes(out, 0, out.length);
+  }
+
+  /**
+   * Writes random bytes to a part of the given array.
+   *
+   * @param out
+   *          The array to write the random bytes to.
+   * @param outOfs
+   *          The offset in out.
+   * @param len
+   *          The number of random bytes.
+   * @exception TokenException
+   *              If the bytes had to be generated directly, and that
+   *              failed.
+   * @preconditions (out <> null) and (outOfs >= 0) and (len >= 0) and
+   *                (outOfs + len <= out.length)
+   * @postconditions
+   */
+  public void nextBytes(byte[] out, int outOfs, int len)
+      throws TokenException {
+    Util.requireNonNull("out", out);
+    if (outOfs < 0 || len < 0 || len > out.length - outOfs) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (closed) {
+      throw new IllegalStateException("pool has been closed");
+    }
+    if (len == 0) {
+      return;
+    }
+
+    int done = 0;
+    if (len <= blockSize) {
+      // announce the taker before checking closed; close() sets closed
+      // before it waits for the takers, so one of both sees the other
+      takers.incrementAndGet();
+      try {
+        if (closed) {
+          throw new IllegalStateException("pool has been closed");
+        }
+        done = take(out, outOfs, len);
+      } finally {
+        takers.decrementAndGet();
+      }
+    }
+    if (done == len) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+      synchronized (sessionLock) {
+        session.generateRandom(out, outOfs + done, len - done);
+      }
+    }
+
+    if (tail.get() - head.get() <= lowWatermark) {
+      LockSupport.unpark(refillThread);
+    }
+  }
+
+  /**
+   * Mixes the given seed into the random number generator of the token. A
+   * token which cannot be seeded is ignored.
+   *
+   * @param seed
+   *          The seed bytes.
+   * @exception TokenException
+   *              If seeding failed.
+   * @preconditions (seed <> null)
+   * @postconditions
+   */
+  public void setSeed(byte[] seed) throws TokenException {
+    Util.requireNonNull("seed", seed);
+    try {
+      synchronized (sessionLock) {
+        session.seedRandom(seed);
+      }
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode() != PKCS11Constants.CKR_RANDOM_SEED_NOT_SUPPORTED) {
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Get a SecureRandom backed by this pool.
+   *
+   * @return A SecureRandom with a {@link RandomPoolSpi} for this pool.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public SecureRandom getSecureRandom() {
+    return new SecureRandom(new RandomPoolSpi(this), null) {
+      private static final long serialVersionUID = 1L;
+    };
+  }
+
+  /**
+   * Takes up to len bytes from the ring, and zeroizes them there.
+   *
+   * @return The number of bytes taken.
+   */
+  private int take(byte[] out, int outOfs, int len) {
+    int done = 0;
+    while (done < len) {
+      long index = head.get();
+      if (index == tail.get()) {
+        // empty
+        break;
+      }
+
+      int slot = (int) (index % ring.length());
+      Block block = ring.get(slot);
+      if (block == null) {
+        // removed by another thread, which did not advance head yet
+        head.compareAndSet(index, index + 1);
+        continue;
+      }
+
+      int want = len - done;
+      int start = block.position.getAndAdd(want);
+      if (start < block.data.length) {
+        int end = Math.min(start + want, block.data.length);
+        System.arraycopy(block.data, start, out, outOfs + done, end - start);
+        Arrays.fill(block.data, start, end, (byte) 0);
+        done += end - start;
+      }
+      if (start + want >= block.data.length
+          && ring.compareAndSet(slot, block, null)) {
+        head.compareAndSet(index, index + 1);
+      }
+    }
+    return done;
+  }
+
+  /**
+   * The loop of the refill thread. Fills the ring up to its capacity, and
+   * then waits until the number of filled blocks has dropped to the low
+   * watermark.
+   */
+  private void refill() {
+    boolean filling = true;
+    while (!closed) {
+      long index = tail.get();
+      long filled = index - head.get();
+      if (filling ? filled >= ring.length() : filled > lowWatermark) {
+        filling = false;
+        LockSupport.park(this);
+        continue;
+      }
+      filling = true;
+
+      int slot = (int) (index % ring.length());
+      if (ring.get(slot) != null) {
+        // the consumer of the previous block in this slot is not done yet
+        Thread.yield();
+        continue;
+      }
+
+      byte[] data = new byte[blockSize];
+      long startTime = System.nanoTime();
+      try {
+        synchronized (sessionLock) {
+          if (closed) {
+            break;
+          }
+          session.generateRandom(data, 0, blockSize);
+        }
+      } catch (TokenException ex) {
+        refillFailures.incrementAndGet();
+        LockSupport.parkNanos(this, RETRY_DELAY_NANOS);
+        continue;
+      }
+      recordRefill(System.nanoTime() - startTime);
+
+      ring.set(slot, new Block(data));
+      tail.set(index + 1);
+    }
+  }
+
+  private void recordRefill(long nanos) {
+    refills.incrementAndGet();
+    refillNanos.addAndGet(nanos);
+    long max = maxRefillNanos.get();
+    while (nanos > max && !maxRefillNanos.compareAndSet(max, nanos)) {
+      max = maxRefillNanos.get();
+    }
+  }
+
+  /**
+   * Get the number of requests served from the ring.
+   *
+   * @return The number of hits.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * Get the number of requests which needed a direct call.
+   *
+   * @return The number of misses.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Get the share of the requests served from the ring.
+   *
+   * @return The hit rate between 0 and 1, or 0 if there were no requests.
+   * @preconditions
+   * @postconditions (result >= 0) and (result <= 1)
+   */
+  public double getHitRate() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return (total == 0) ? 0 : (double) hitCount / total;
+  }
+
+  /**
+   * Get the number of blocks generated by the refill thread.
+   *
+   * @return The number of refills.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getRefillCount() {
+    return refills.get();
+  }
+
+  /**
+   * Get the number of failed refills.
+   *
+   * @return The number of failed refills.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getRefillFailureCount() {
+    return refillFailures.get();
+  }
+
+  /**
+   * Get the average time of generating a block.
+   *
+   * @return The average refill latency in nanoseconds, or 0 if there were
+   *         no refills.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getAverageRefillNanos() {
+    long count = refills.get();
+    return (count == 0) ? 0 : refillNanos.get() / count;
+  }
+
+  /**
+   * Get the longest time of generating a block.
+   *
+   * @return The maximum refill latency in nanoseconds.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getMaxRefillNanos() {
+    return maxRefillNanos.get();
+  }
+
+  /**
+   * Get the number of filled blocks in the ring; the first of them may be
+   * partly used.
+   *
+   * @return The number of filled blocks.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int getFilledBlocks() {
+    return (int) Math.max(0, tail.get() - head.get());
+  }
+
+  /**
+   * Stops the refill thread and zeroizes the bytes left in the ring. It
+   * waits for the requests which are taking bytes from the ring right now,
+   * so that they never get bytes which have been zeroized; later requests
+   * fail with an IllegalStateException. The session is not closed.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    closed = true;
+    LockSupport.unpark(refillThread);
+    try {
+      refillThread.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    while (takers.get() != 0) {
+      // a taker only copies from memory, so this is short
+      Thread.yield();
+    }
+
+    for (int i = 0; i < ring.length(); i++) {
+      Block block = ring.getAndSet(i, null);
+      if (block != null) {
+        Arrays.fill(block.data, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Block Size: ", blockSize,
+        "\nBlock Count: ", ring.length(),
+        "\nLow Watermark: ", lowWatermark,
+        "\nFilled Blocks: ", getFilledBlocks(),
+        "\nHits: ", hits.get(), "\nMisses: ", misses.get(),
+        "\nRefills: ", refills.get(),
+        "\nRefill Failures: ", refillFailures.get(),
+        "\nAverage Refill Nanos: ", getAverageRefillNanos(),
+        "\nMax Refill Nanos: ", maxRefillNanos.get());
+  }
+
+}
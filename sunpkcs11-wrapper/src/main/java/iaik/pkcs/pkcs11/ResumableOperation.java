@@ -0,0 +1,587 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.Arrays;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Key;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * A long-running digest, MAC or encryption which survives the loss of its
+ * session. The operation runs on a session borrowed from a
+ * {@link SessionPool} and saves the operation state with
+ * {@link Session#getOperationState()} every time the given number of bytes
+ * has been processed. If the session dies with CKR_SESSION_HANDLE_INVALID,
+ * CKR_SESSION_CLOSED, CKR_DEVICE_ERROR or CKR_DEVICE_REMOVED, e.g. after a
+ * failover of an HSM cluster, the operation borrows another session of the
+ * pool, restores the last saved state, feeds in the data processed since
+ * then again, and continues; so only the data since the last checkpoint is
+ * processed twice, instead of the whole stream. E.g.
+ * <pre><code>
+ *   try (ResumableOperation digest = new ResumableOperation(pool,
+ *       ResumableOperation.Type.DIGEST, Mechanism.get(CKM_SHA256), null,
+ *       64 * 1024 * 1024)) {
+ *     while ((len = in.read(buffer)) != -1) {
+ *       digest.update(buffer, 0, len);
+ *     }
+ *     byte[] hash = digest.doFinal();
+ *   }
+ * </code></pre>
+ * The data since the last checkpoint is kept in memory; so the checkpoint
+ * interval is a trade-off between the memory used and the data processed
+ * again after a failure. Whether the token can save the state of the
+ * operation is checked when the operation is started; see
+ * {@link #isResumable()}. If it cannot, the operation works as usual but
+ * fails with the session.
+ * <p/>
+ * The key must be a token object, or belong to a session which stays open,
+ * so that it is still available after the session of the operation died.
+ * For encryptions, the output of the data fed in again is dropped, since it
+ * has been returned before; this requires a mechanism with deterministic
+ * output, which holds for the usual block cipher modes.
+ *
+ * @invariants (pool <> null) and (type <> null) and (mechanism <> null)
+ */
+public class ResumableOperation implements AutoCloseable {
+
+  /**
+   * The kinds of operations which can be resumed.
+   */
+  public enum Type {
+
+    /**
+     * A digest; started with digestInit.
+     */
+    DIGEST,
+
+    /**
+     * A MAC or signature; started with signInit.
+     */
+    MAC,
+
+    /**
+     * An encryption; started with encryptInit.
+     */
+    ENCRYPT
+
+  }
+
+  /**
+   * The maximum number of times a single call is resumed on another session
+   * before giving up.
+   */
+  private static final int MAX_RESUMES = 3;
+
+  /**
+   * The size of the buffer for the results of digestFinal and
+   * encryptFinal; i.e. a digest or the last block of the encrypted data.
+   */
+  private static final int MAX_RESULT_LENGTH = 128;
+
+  private final SessionPool pool;
+
+  private final Type type;
+
+  private final Mechanism mechanism;
+
+  private final Key key;
+
+  /**
+   * True, if the token can save the state of this operation.
+   */
+  private final boolean resumable;
+
+  /**
+   * The data processed since the last checkpoint; null if not resumable.
+   */
+  private final byte[] replay;
+
+  private int replayLength;
+
+  /**
+   * The operation state of the last checkpoint.
+   */
+  private byte[] checkpoint;
+
+  /**
+   * The number of bytes processed up to the last checkpoint.
+   */
+  private long checkpointedBytes;
+
+  private int resumeCount;
+
+  /**
+   * The session running the operation; null after the session has been
+   * lost and no other one could be set up.
+   */
+  private PooledSession session;
+
+  private boolean finished;
+
+  /**
+   * Starts the operation on a session of the given pool.
+   *
+   * @param pool
+   *          The pool to borrow the sessions from.
+   * @param type
+   *          The kind of the operation.
+   * @param mechanism
+   *          The mechanism of the operation.
+   * @param key
+   *          The key for MAC and encryption; null for digests.
+   * @param checkpointInterval
+   *          The number of bytes after which the operation state is saved.
+   * @exception TokenException
+   *              If starting the operation failed.
+   * @preconditions (pool <> null) and (type <> null) and (mechanism <> null)
+   *                and ((type == DIGEST) or (key <> null)) and
+   *                (checkpointInterval > 0)
+   * @postconditions
+   */
+  public ResumableOperation(SessionPool pool, Type type, Mechanism mechanism,
+      Key key, int checkpointInterval) throws TokenException {
+    this.pool = Util.requireNonNull("pool", pool);
+    this.type = Util.requireNonNull("type", type);
+    this.mechanism = Util.requireNonNull("mechanism", mechanism);
+    this.key = (type == Type.DIGEST) ? key : Util.requireNonNull("key", key);
+    if (checkpointInterval < 1) {
+      throw new IllegalArgumentException(
+          "checkpointInterval must be at least 1");
+    }
+
+    session = pool.borrowSession(Token.SessionReadWriteBehavior.RO_SESSION);
+    boolean started = false;
+    try {
+      init(session);
+      checkpoint = saveState(session);
+      started = true;
+    } finally {
+      if (!started) {
+        session.invalidate();
+        session = null;
+        finished = true;
+      }
+    }
+    resumable = checkpoint != null;
+    replay = resumable ? new byte[checkpointInterval] : null;
+  }
+
+  /**
+   * Get the kind of this operation.
+   *
+   * @return The kind of this operation.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Check, if the token can save the state of this operation; i.e. if this
+   * operation can be resumed after its session died.
+   *
+   * @return True, if this operation can be resumed.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isResumable() {
+    return resumable;
+  }
+
+  /**
+   * Get the number of bytes fed into this operation so far.
+   *
+   * @return The number of bytes processed.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public long getBytesProcessed() {
+    return checkpointedBytes + replayLength;
+  }
+
+  /**
+   * Get the number of times this operation has been resumed on another
+   * session.
+   *
+   * @return The number of resumes.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public int getResumeCount() {
+    return resumeCount;
+  }
+
+  /**
+   * Feeds the given data into a digest or MAC.
+   *
+   * @param in
+   *          The array holding the data.
+   * @param inOfs
+   *          The offset of the data in in.
+   * @param inLen
+   *          The length of the data.
+   * @exception TokenException
+   *              If processing the data failed, and could not be resumed.
+   * @preconditions (in <> null) and (type <> ENCRYPT)
+   * @postconditions
+   */
+  public void update(byte[] in, int inOfs, int inLen) throws TokenException {
+    Util.requireNonNull("in", in);
+    if (type == Type.ENCRYPT) {
+      throw new IllegalStateException("encryption needs an output buffer");
+    }
+    ensureActive();
+
+    while (inLen > 0) {
+      int len = nextLength(inLen);
+      runUpdate(in, inOfs, len, null, 0, 0);
+      inOfs += len;
+      inLen -= len;
+    }
+  }
+
+  /**
+   * Feeds the given data into an encryption.
+   *
+   * @param in
+   *          The array holding the data.
+   * @param inOfs
+   *          The offset of the data in in.
+   * @param inLen
+   *          The length of the data.
+   * @param out
+   *          The array to write the encrypted data to.
+   * @param outOfs
+   *          The offset in out.
+   * @param outLen
+   *          The space available in out.
+   * @return The number of bytes written to out.
+   * @exception TokenException
+   *              If processing the data failed, and could not be resumed.
+   * @preconditions (in <> null) and (out <> null) and (type == ENCRYPT)
+   * @postconditions
+   */
+  public int update(byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+    if (type != Type.ENCRYPT) {
+      throw new IllegalStateException("only encryption has output");
+    }
+    ensureActive();
+
+    int written = 0;
+    while (inLen > 0) {
+      int len = nextLength(inLen);
+      written += runUpdate(in, inOfs, len,
+          out, outOfs + written, outLen - written);
+      inOfs += len;
+      inLen -= len;
+    }
+    return written;
+  }
+
+  /**
+   * Finishes the operation.
+   *
+   * @return The digest, the MAC or the last part of the encrypted data.
+   * @exception TokenException
+   *              If finishing the operation failed, and could not be
+   *              resumed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public byte[] doFinal() throws TokenException {
+    ensureActive();
+
+    int failures = 0;
+    while (true) {
+      try {
+        if (type == Type.MAC) {
+          // signatures may be longer than any fixed buffer; e.g. for RSA,
+          // so let the wrapper size the result without a length hint
+          byte[] result = session.signFinal(0);
+          finished = true;
+          return result;
+        }
+
+        byte[] result = new byte[MAX_RESULT_LENGTH];
+        int len = (type == Type.DIGEST)
+            ? session.digestFinal(result, 0, result.length)
+            : session.encryptFinal(result, 0, result.length);
+        finished = true;
+        return Arrays.copyOf(result, len);
+      } catch (TokenException ex) {
+        if (!PooledSession.isSessionBroken(ex) || ++failures > MAX_RESUMES) {
+          throw ex;
+        }
+        resume(ex);
+      }
+    }
+  }
+
+  /**
+   * Gives the session back to the pool. If the operation has not been
+   * finished, the session is closed instead, to end the operation.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    if (session != null) {
+      if (finished) {
+        session.close();
+      } else {
+        session.invalidate();
+      }
+      session = null;
+    }
+    finished = true;
+    if (replay != null) {
+      Arrays.fill(replay, (byte) 0);
+      replayLength = 0;
+    }
+  }
+
+  /**
+   * Get the length of the next piece of the data, such that no piece
+   * crosses a checkpoint.
+   */
+  private int nextLength(int inLen) {
+    return resumable ? Math.min(inLen, replay.length - replayLength) : inLen;
+  }
+
+  /**
+   * Feeds one piece of data into the operation, resumes on failure, keeps
+   * the data for a later resume and saves a checkpoint if it is due.
+   */
+  private int runUpdate(byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    int written;
+    int failures = 0;
+    while (true) {
+      try {
+        written = tokenUpdate(session, in, inOfs, inLen, out, outOfs, outLen);
+        break;
+      } catch (TokenException ex) {
+        if (!PooledSession.isSessionBroken(ex) || ++failures > MAX_RESUMES) {
+          throw ex;
+        }
+        resume(ex);
+      }
+    }
+
+    if (resumable) {
+      System.arraycopy(in, inOfs, replay, replayLength, inLen);
+      replayLength += inLen;
+      if (replayLength == replay.length) {
+        saveCheckpoint();
+      }
+    }
+    return written;
+  }
+
+  private int tokenUpdate(Session session, byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    if (type == Type.DIGEST) {
+      session.digestUpdate(in, inOfs, inLen);
+      return 0;
+    } else if (type == Type.MAC) {
+      session.signUpdate(in, inOfs, inLen);
+      return 0;
+    } else {
+      return session.encryptUpdate(in, inOfs, inLen, out, outOfs, outLen);
+    }
+  }
+
+  private void saveCheckpoint() throws TokenException {
+    int failures = 0;
+    while (true) {
+      try {
+        checkpoint = session.getOperationState();
+        break;
+      } catch (TokenException ex) {
+        if (!PooledSession.isSessionBroken(ex) || ++failures > MAX_RESUMES) {
+          throw ex;
+        }
+        resume(ex);
+      }
+    }
+
+    checkpointedBytes += replayLength;
+    Arrays.fill(replay, 0, replayLength, (byte) 0);
+    replayLength = 0;
+  }
+
+  /**
+   * Replaces the broken session by another one of the pool, restores the
+   * last checkpoint there and feeds in the data processed since then.
+   *
+   * @param cause
+   *          The exception the broken session threw.
+   * @exception TokenException
+   *              The cause, if the operation cannot be resumed; or the
+   *              error which occurred while resuming.
+   */
+  private void resume(TokenException cause) throws TokenException {
+    for (int attempt = 1;; attempt++) {
+      if (session != null) {
+        session.invalidate();
+        session = null;
+      }
+      if (!resumable || attempt > MAX_RESUMES) {
+        finished = true;
+        throw cause;
+      }
+
+      try {
+        session = pool.borrowSession(
+            Token.SessionReadWriteBehavior.RO_SESSION);
+        pool.ensureLoggedIn(session);
+        restoreState(session);
+        replay(session);
+        resumeCount++;
+        return;
+      } catch (TokenException ex) {
+        if (!PooledSession.isSessionBroken(ex)) {
+          if (session != null) {
+            session.invalidate();
+            session = null;
+          }
+          finished = true;
+          throw ex;
+        }
+        cause = ex;
+      }
+    }
+  }
+
+  private void restoreState(Session session) throws TokenException {
+    Key encryptionKey = (type == Type.ENCRYPT) ? key : null;
+    Key authenticationKey = (type == Type.MAC) ? key : null;
+    try {
+      session.setOperationState(checkpoint, encryptionKey,
+          authenticationKey);
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode() != PKCS11Constants.CKR_KEY_NOT_NEEDED) {
+        throw ex;
+      }
+      session.setOperationState(checkpoint, null, null);
+    }
+  }
+
+  /**
+   * Feeds the data since the last checkpoint into the restored operation.
+   * Encrypted output is dropped, since it has been returned before.
+   */
+  private void replay(Session session) throws TokenException {
+    if (replayLength == 0) {
+      return;
+    }
+
+    byte[] out = (type == Type.ENCRYPT)
+        ? new byte[replayLength + EncryptingOutputStream.OUTPUT_RESERVE]
+        : null;
+    try {
+      tokenUpdate(session, replay, 0, replayLength,
+          out, 0, (out != null) ? out.length : 0);
+    } finally {
+      if (out != null) {
+        Arrays.fill(out, (byte) 0);
+      }
+    }
+  }
+
+  private void init(Session session) throws TokenException {
+    if (type == Type.DIGEST) {
+      session.digestInit(mechanism);
+    } else if (type == Type.MAC) {
+      session.signInit(mechanism, key);
+    } else {
+      session.encryptInit(mechanism, key);
+    }
+  }
+
+  /**
+   * Saves the state of the freshly started operation.
+   *
+   * @return The state, or null if the token cannot save it.
+   */
+  private static byte[] saveState(Session session) throws TokenException {
+    try {
+      return session.getOperationState();
+    } catch (PKCS11Exception ex) {
+      long errorCode = ex.getErrorCode();
+      if (errorCode == PKCS11Constants.CKR_STATE_UNSAVEABLE
+          || errorCode == PKCS11Constants.CKR_FUNCTION_NOT_SUPPORTED) {
+        return null;
+      }
+      throw ex;
+    }
+  }
+
+  private void ensureActive() {
+    if (finished || session == null) {
+      throw new IllegalStateException("operation has been finished");
+    }
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Type: ", type,
+        "\nMechanism: ", mechanism.getMechanismCode(),
+        "\nResumable: ", resumable,
+        "\nBytes Processed: ", getBytesProcessed(),
+        "\nResumes: ", resumeCount);
+  }
+
+}
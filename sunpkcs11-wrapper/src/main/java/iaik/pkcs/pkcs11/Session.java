@@ -42,15 +42,24 @@
 
 package iaik.pkcs.pkcs11;
 
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.AttributeCache;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
 import iaik.pkcs.pkcs11.objects.Key;
 import iaik.pkcs.pkcs11.objects.KeyPair;
 import iaik.pkcs.pkcs11.objects.PKCS11Object;
 import iaik.pkcs.pkcs11.objects.PrivateKey;
 import iaik.pkcs.pkcs11.objects.PublicKey;
 import iaik.pkcs.pkcs11.objects.SecretKey;
+import iaik.pkcs.pkcs11.objects.X509PublicKeyCertificate;
 import iaik.pkcs.pkcs11.params.Params;
 import iaik.pkcs.pkcs11.params.SSL3KeyMaterialParams;
 import iaik.pkcs.pkcs11.params.SSL3MasterKeyDeriveParams;
@@ -174,6 +183,12 @@ public class Session {
 
   }
 
+  /**
+   * The default number of handles requested per C_FindObjects call by
+   * {@link #findAllObjectHandles(PKCS11Object)}.
+   */
+  public static final int DEFAULT_FIND_CHUNK_SIZE = 256;
+
   /**
    * A reference to the underlying PKCS#11 module to perform the operations.
    */
@@ -194,6 +209,62 @@ public class Session {
    */
   private Token token;
 
+  /**
+   * True, if objects created by this session read their attributes on first
+   * access instead of in the constructor.
+   */
+  private boolean lazyAttributeLoading;
+
+  /**
+   * True, between a successful findObjectsInit and the next findObjectsFinal.
+   */
+  private boolean findObjectsActive;
+
+  /**
+   * True, if public-key operations are run in software where possible.
+   */
+  private boolean publicKeyOffload;
+
+  /**
+   * The verification running in software, or null.
+   */
+  private PublicKeyOffload.Verifier softwareVerifier;
+
+  /**
+   * The encryption running in software, or null.
+   */
+  private PublicKeyOffload.Encryptor softwareEncryptor;
+
+  /**
+   * True, if hash-and-sign mechanisms are hashed locally where possible.
+   */
+  private boolean localPrehash;
+
+  /**
+   * The signing which hashes locally, or null.
+   */
+  private PrehashSigner prehashSigner;
+
+  /**
+   * The OP_* bits of the token operations which may still be active; i.e.
+   * which have been initialized and not yet finished.
+   */
+  private int activeOperations;
+
+  private static final int OP_ENCRYPT = 0x01;
+
+  private static final int OP_DECRYPT = 0x02;
+
+  private static final int OP_DIGEST = 0x04;
+
+  private static final int OP_SIGN = 0x08;
+
+  private static final int OP_SIGN_RECOVER = 0x10;
+
+  private static final int OP_VERIFY = 0x20;
+
+  private static final int OP_VERIFY_RECOVER = 0x40;
+
   /**
    * Constructor taking the token and the session handle.
    *
@@ -261,6 +332,8 @@ public class Session {
    * @postconditions
    */
   public void closeSession() throws TokenException {
+    // the session objects are gone and the login state may change
+    invalidateCachedSlot();
     try {
       pkcs11Module.C_CloseSession(sessionHandle);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
@@ -391,11 +464,11 @@ public class Session {
    * @param encryptionKey
    *          A encryption or decryption key, if a encryption or decryption
    *          operation was saved which should be continued, but the keys
-   *          could not be saved.
+   *          could not be saved; null otherwise.
    * @param authenticationKey
    *          A signing, verification of MAC key, if a signing, verification
    *          or MAC operation needs to be restored that could not save the
-   *          key.
+   *          key; null otherwise.
    * @exception TokenException
    *              If restoring the state fails.
    * @see #getOperationState()
@@ -406,7 +479,10 @@ public class Session {
       Key authenticationKey) throws TokenException {
     try {
       pkcs11Module.C_SetOperationState(sessionHandle, operationState,
-          encryptionKey.getObjectHandle(), authenticationKey.getObjectHandle());
+          (encryptionKey != null) ? encryptionKey.getObjectHandle()
+              : PKCS11Constants.CK_INVALID_HANDLE,
+          (authenticationKey != null) ? authenticationKey.getObjectHandle()
+              : PKCS11Constants.CK_INVALID_HANDLE);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -416,6 +492,109 @@ public class Session {
     this.sessionHandle = sessionHandle;
   }
 
+  /**
+   * Switches lazy attribute loading on or off. If switched on, objects
+   * returned by {@link #findObjects(int)} and
+   * {@link #getAttributeValues(PKCS11Object)} know only their handle and
+   * class after creation. Each group of attributes is read from the token
+   * when one of its attributes is accessed for the first time, and is kept
+   * afterwards. This saves the round trips for attributes which are never
+   * accessed. This session must stay open until all needed attributes have
+   * been accessed; errors which occur while reading are thrown as
+   * TokenRuntimeException.
+   *
+   * @param lazyAttributeLoading
+   *          True to read attributes on demand, false to read them when the
+   *          object is created.
+   * @preconditions
+   * @postconditions
+   */
+  public void setLazyAttributeLoading(boolean lazyAttributeLoading) {
+    this.lazyAttributeLoading = lazyAttributeLoading;
+  }
+
+  /**
+   * Check, if lazy attribute loading is switched on for this session.
+   *
+   * @return True, if objects read their attributes on demand.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isLazyAttributeLoading() {
+    return lazyAttributeLoading;
+  }
+
+  /**
+   * Switches the public key offload on or off. If switched on, verifyInit
+   * and encryptInit check if the operation can be done in software with the
+   * public key material; if so, the following verify* and encrypt* calls
+   * do not call the token. Keys and mechanisms which cannot be offloaded
+   * are handled by the token as usual. The methods throw the same
+   * PKCS11Exceptions in both cases; e.g. CKR_SIGNATURE_INVALID for a wrong
+   * signature.
+   *
+   * @param publicKeyOffload
+   *          True to run public-key operations in software where possible.
+   * @see PublicKeyOffload
+   * @preconditions
+   * @postconditions
+   */
+  public void setPublicKeyOffload(boolean publicKeyOffload) {
+    this.publicKeyOffload = publicKeyOffload;
+  }
+
+  /**
+   * Check, if the public key offload is switched on for this session.
+   *
+   * @return True, if public-key operations are run in software where
+   *         possible.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isPublicKeyOffload() {
+    return publicKeyOffload;
+  }
+
+  /**
+   * Switches the local pre-hashing on or off. If switched on, signInit
+   * checks if the mechanism is a hash-and-sign mechanism like
+   * CKM_SHA256_RSA_PKCS, CKM_SHA256_RSA_PKCS_PSS, CKM_DSA_SHA256 or
+   * CKM_ECDSA_SHA256, and if the token supports the corresponding raw
+   * mechanism; i.e. CKM_RSA_PKCS, CKM_RSA_PKCS_PSS, CKM_DSA or CKM_ECDSA. If
+   * so, the data is hashed in software and the token only signs the hash
+   * (as DigestInfo for CKM_RSA_PKCS) in one call to C_Sign. This saves
+   * sending the whole data to the token, which is slow for large data and
+   * for tokens on a smart card or behind a network connection. The
+   * signatures are the same as the token would create with the
+   * hash-and-sign mechanism.
+   * <p/>
+   * CKM_SHA*_RSA_PKCS_PSS is only pre-hashed if it has RSAPkcsPssParams;
+   * they are passed to CKM_RSA_PKCS_PSS unchanged. If the token rejects the
+   * raw mechanism or its parameters for the key, signInit falls back to the
+   * given mechanism.
+   *
+   * @param localPrehash
+   *          True to hash the data of hash-and-sign mechanisms locally
+   *          where possible.
+   * @preconditions
+   * @postconditions
+   */
+  public void setLocalPrehash(boolean localPrehash) {
+    this.localPrehash = localPrehash;
+  }
+
+  /**
+   * Check, if the local pre-hashing is switched on for this session.
+   *
+   * @return True, if hash-and-sign mechanisms are hashed locally where
+   *         possible.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isLocalPrehash() {
+    return localPrehash;
+  }
+
   /**
    * Logs in the user or the security officer to the session. Notice that all
    * sessions of a token have the same login state; i.e. if you login the user
@@ -443,6 +622,7 @@ public class Session {
   }
 
   public void login(long userType, char[] pin) throws TokenException {
+    invalidateCachedSlot();
     try {
       pkcs11Module.C_Login(sessionHandle, userType, pin);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
@@ -459,6 +639,7 @@ public class Session {
    * @postconditions
    */
   public void logout() throws TokenException {
+    invalidateCachedSlot();
     try {
       pkcs11Module.C_Logout(sessionHandle);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
@@ -511,6 +692,8 @@ public class Session {
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+    invalidateCachedObject(objectHandle);
+    fireObjectCreated(objectHandle);
 
     return PKCS11Object.getInstance(this, objectHandle);
   }
@@ -546,6 +729,8 @@ public class Session {
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+    invalidateCachedObject(newObjectHandle);
+    fireObjectCreated(newObjectHandle);
 
     return PKCS11Object.getInstance(this, newObjectHandle);
   }
@@ -582,6 +767,13 @@ public class Session {
           objectToUpdateHandle, ckAttributesTemplates);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
+    } finally {
+      // the module may have changed some attributes even if it failed
+      invalidateCachedObject(objectToUpdateHandle);
+    }
+
+    for (ObjectListener listener : module.getObjectListeners()) {
+      listener.objectModified(this, objectToUpdateHandle);
     }
   }
 
@@ -607,6 +799,28 @@ public class Session {
     return PKCS11Object.getInstance(this, objectHandle);
   }
 
+  /**
+   * Reads only the given attributes of the object with the given handle.
+   * The attributes are read with one C_GetAttributeValue call, if the module
+   * supports all of them. Attributes the object does not have are contained
+   * in the result, but are not present.
+   *
+   * @param objectHandle
+   *          The handle of the object to read.
+   * @param attributeTypes
+   *          The types of the attributes to read; e.g.
+   *          PKCS11Constants.CKA_LABEL.
+   * @return A template holding the requested attributes.
+   * @exception TokenException
+   *              If reading the attributes fails.
+   * @preconditions (attributeTypes <> null)
+   * @postconditions (result <> null)
+   */
+  public GenericTemplate getAttributeValues(long objectHandle,
+      long[] attributeTypes) throws TokenException {
+    return GenericTemplate.getInstance(this, objectHandle, attributeTypes);
+  }
+
   /**
    * Destroy a certain object on the token (or in the session). Give the
    * object that you want to destroy. This method uses only the internal
@@ -621,11 +835,16 @@ public class Session {
    */
   public void destroyObject(PKCS11Object object) throws TokenException {
     long objectHandle = object.getObjectHandle();
+    invalidateCachedObject(objectHandle);
     try {
       pkcs11Module.C_DestroyObject(sessionHandle, objectHandle);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+
+    for (ObjectListener listener : module.getObjectListeners()) {
+      listener.objectDestroyed(this, objectHandle);
+    }
   }
 
   /**
@@ -671,6 +890,7 @@ public class Session {
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+    findObjectsActive = true;
   }
 
   /**
@@ -693,7 +913,38 @@ public class Session {
    * @postconditions (result <> null)
    */
   public PKCS11Object[] findObjects(int maxObjectCount) throws TokenException {
-    Vector<PKCS11Object> foundObjects = new Vector<>();
+    long[] objectHandles = findObjectHandles(maxObjectCount);
+
+    try {
+      PKCS11Object[] objectArray = new PKCS11Object[objectHandles.length];
+      for (int i = 0; i < objectHandles.length; i++) {
+        objectArray[i] = PKCS11Object.getInstance(this, objectHandles[i]);
+      }
+
+      return objectArray;
+    } catch (TokenException e) {
+      // encapsulate exception to signal a cause other than C_FindObjects
+      throw new TokenException(e);
+    }
+  }
+
+  /**
+   * Finds the handles of objects that match the template object passed to
+   * findObjectsInit. Works like {@link #findObjects(int)}, but does not read
+   * any attributes of the found objects. Use this method, if only the handles
+   * are needed; e.g. to pass them to signInit via
+   * {@link PKCS11Object#setObjectHandle(long)}.
+   *
+   * @param maxObjectCount
+   *          Specifies how many handles to return with this call.
+   * @return An array of found object handles. The maximum size of this array
+   *         is maxObjectCount, the minimum length is 0. Never returns null.
+   * @exception TokenException
+   *              If finding the objects failed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public long[] findObjectHandles(int maxObjectCount) throws TokenException {
     long[] objectHandles;
     try {
       objectHandles = pkcs11Module.C_FindObjects(sessionHandle, maxObjectCount);
@@ -701,19 +952,163 @@ public class Session {
       throw new PKCS11Exception(ex);
     }
 
+    return (objectHandles != null) ? objectHandles : new long[0];
+  }
+
+  /**
+   * Finds the handles of at most maxObjectCount objects that match the given
+   * template. This method runs a complete find operation; i.e. it calls
+   * findObjectsInit, findObjectHandles and findObjectsFinal.
+   *
+   * @param templateObject
+   *          The template object. May be null to find all objects.
+   * @param maxObjectCount
+   *          Specifies how many handles to return at most.
+   * @return An array of found object handles. Never returns null.
+   * @exception TokenException
+   *              If finding the objects failed.
+   * @preconditions (maxObjectCount > 0)
+   * @postconditions (result <> null)
+   */
+  public long[] findObjectHandles(PKCS11Object templateObject,
+      int maxObjectCount) throws TokenException {
+    findObjectsInit(templateObject);
     try {
-      for (int i = 0; i < objectHandles.length; i++) {
-        PKCS11Object object = PKCS11Object.getInstance(this, objectHandles[i]);
-        foundObjects.addElement(object);
+      return findObjectHandles(maxObjectCount);
+    } finally {
+      findObjectsFinal();
+    }
+  }
+
+  /**
+   * Finds the handles of all objects that match the given template. Requests
+   * {@link #DEFAULT_FIND_CHUNK_SIZE} handles per C_FindObjects call.
+   *
+   * @param templateObject
+   *          The template object. May be null to find all objects.
+   * @return An array of all found object handles. Never returns null.
+   * @exception TokenException
+   *              If finding the objects failed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public long[] findAllObjectHandles(PKCS11Object templateObject)
+      throws TokenException {
+    return findAllObjectHandles(templateObject, DEFAULT_FIND_CHUNK_SIZE);
+  }
+
+  /**
+   * Finds the handles of all objects that match the given template. This
+   * method runs a complete find operation; i.e. it calls findObjectsInit,
+   * findObjectHandles until no more handles are returned, and
+   * findObjectsFinal.
+   *
+   * @param templateObject
+   *          The template object. May be null to find all objects.
+   * @param chunkSize
+   *          The number of handles requested per C_FindObjects call.
+   * @return An array of all found object handles. Never returns null.
+   * @exception TokenException
+   *              If finding the objects failed.
+   * @preconditions (chunkSize > 0)
+   * @postconditions (result <> null)
+   */
+  public long[] findAllObjectHandles(PKCS11Object templateObject,
+      int chunkSize) throws TokenException {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException("chunkSize must be at least 1");
+    }
+
+    long[] allHandles = new long[chunkSize];
+    int count = 0;
+
+    findObjectsInit(templateObject);
+    try {
+      while (true) {
+        long[] handles = findObjectHandles(chunkSize);
+        if (handles.length == 0) {
+          break;
+        }
+
+        if (count + handles.length > allHandles.length) {
+          allHandles = Arrays.copyOf(allHandles,
+              Math.max(allHandles.length * 2, count + handles.length));
+        }
+        System.arraycopy(handles, 0, allHandles, count, handles.length);
+        count += handles.length;
       }
-      PKCS11Object[] objectArray = new PKCS11Object[foundObjects.size()];
-      foundObjects.copyInto(objectArray);
+    } finally {
+      findObjectsFinal();
+    }
 
-      return objectArray;
+    return (count == allHandles.length)
+        ? allHandles : Arrays.copyOf(allHandles, count);
+  }
+
+  /**
+   * Finds objects that match the template object passed to findObjectsInit,
+   * and reads only the given attributes of them. Works like
+   * {@link #findObjects(int)}, but the found objects are returned as
+   * generic templates holding just the requested attributes. No type probing
+   * is done and no other attributes are read; e.g. the modulus of an RSA key
+   * is not read, if it is not requested.
+   *
+   * @param maxObjectCount
+   *          Specifies how many objects to return with this call.
+   * @param attributeTypes
+   *          The types of the attributes to read; e.g.
+   *          PKCS11Constants.CKA_ID.
+   * @return An array of found objects. The maximum size of this array is
+   *         maxObjectCount, the minimum length is 0. Never returns null.
+   * @exception TokenException
+   *              If finding the objects or reading their attributes failed.
+   * @preconditions (attributeTypes <> null)
+   * @postconditions (result <> null)
+   */
+  public GenericTemplate[] findObjects(int maxObjectCount,
+      long[] attributeTypes) throws TokenException {
+    Util.requireNonNull("attributeTypes", attributeTypes);
+    return readAttributeValues(findObjectHandles(maxObjectCount),
+        attributeTypes);
+  }
+
+  /**
+   * Finds all objects that match the given template and reads only the given
+   * attributes of them. This method runs a complete find operation; see
+   * {@link #findAllObjectHandles(PKCS11Object)}.
+   *
+   * @param templateObject
+   *          The template object. May be null to find all objects.
+   * @param attributeTypes
+   *          The types of the attributes to read; e.g.
+   *          PKCS11Constants.CKA_ID.
+   * @return An array of all found objects. Never returns null.
+   * @exception TokenException
+   *              If finding the objects or reading their attributes failed.
+   * @preconditions (attributeTypes <> null)
+   * @postconditions (result <> null)
+   */
+  public GenericTemplate[] findAllObjects(PKCS11Object templateObject,
+      long[] attributeTypes) throws TokenException {
+    Util.requireNonNull("attributeTypes", attributeTypes);
+    return readAttributeValues(findAllObjectHandles(templateObject),
+        attributeTypes);
+  }
+
+  private GenericTemplate[] readAttributeValues(long[] objectHandles,
+      long[] attributeTypes) throws TokenException {
+    GenericTemplate[] objects = new GenericTemplate[objectHandles.length];
+    try {
+      for (int i = 0; i < objectHandles.length; i++) {
+        objects[i] = GenericTemplate.getInstance(this, objectHandles[i],
+            attributeTypes);
+      }
     } catch (TokenException e) {
       // encapsulate exception to signal a cause other than C_FindObjects
       throw new TokenException(e);
     }
+
+    return objects;
   }
 
   /**
@@ -726,6 +1121,7 @@ public class Session {
    * @postconditions
    */
   public void findObjectsFinal() throws TokenException {
+    findObjectsActive = false;
     try {
       pkcs11Module.C_FindObjectsFinal(sessionHandle);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
@@ -733,6 +1129,71 @@ public class Session {
     }
   }
 
+  /**
+   * Check, if a find operation has been initialized by findObjectsInit and
+   * not yet been finalized by findObjectsFinal.
+   *
+   * @return True, if a find operation is active in this session.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isFindObjectsActive() {
+    return findObjectsActive;
+  }
+
+  /**
+   * Returns an iterator over all objects that match the given template. The
+   * iterator fetches the handles in growing chunks and reads the attributes
+   * of each object only when it is returned by next(). The find operation is
+   * finalized when the iterator is exhausted or closed; use it in a
+   * try-with-resources statement to make sure that findObjectsFinal is also
+   * called if the iteration is stopped early. No other find operation may be
+   * started on this session while the iterator is open.
+   *
+   * @param templateObject
+   *          The template object. May be null to find all objects.
+   * @return The iterator over the found objects.
+   * @exception TokenException
+   *              If initializing the find operation failed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public ObjectSearchIterator iterateObjects(PKCS11Object templateObject)
+      throws TokenException {
+    return new ObjectSearchIterator(this, templateObject);
+  }
+
+  /**
+   * Returns a stream of all objects that match the given template. Works
+   * like {@link #iterateObjects(PKCS11Object)}; closing the stream finalizes
+   * the find operation. Errors while finding or reading objects are thrown
+   * as TokenRuntimeException.
+   *
+   * @param templateObject
+   *          The template object. May be null to find all objects.
+   * @return The stream of the found objects.
+   * @exception TokenException
+   *              If initializing the find operation failed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Stream<PKCS11Object> streamObjects(PKCS11Object templateObject)
+      throws TokenException {
+    final ObjectSearchIterator iterator = iterateObjects(templateObject);
+    Spliterator<PKCS11Object> spliterator = Spliterators.spliteratorUnknownSize(
+        iterator, Spliterator.ORDERED | Spliterator.NONNULL);
+    return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          iterator.close();
+        } catch (TokenException ex) {
+          throw new TokenRuntimeException(ex);
+        }
+      }
+    });
+  }
+
   /**
    * Initializes a new encryption operation. The application must call this
    * method before calling any other encrypt* operation. Before initializing a
@@ -754,9 +1215,19 @@ public class Session {
    * @postconditions
    */
   public void encryptInit(Mechanism mechanism, Key key) throws TokenException {
+    softwareEncryptor = null;
+    if (publicKeyOffload) {
+      softwareEncryptor = module.getPublicKeyOffload()
+          .createEncryptor(this, mechanism, key);
+      if (softwareEncryptor != null) {
+        return;
+      }
+    }
+
     try {
       pkcs11Module.C_EncryptInit(sessionHandle, toCkMechanism(mechanism),
           key.getObjectHandle());
+      activeOperations |= OP_ENCRYPT;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -782,11 +1253,22 @@ public class Session {
     Util.requireNonNull("in", in);
     Util.requireNonNull("out", out);
 
+    if (softwareEncryptor != null) {
+      PublicKeyOffload.Encryptor encryptor = softwareEncryptor;
+      // stays active if the buffer is too small; ends on any other result
+      encryptor.checkOutputLength(outLen);
+      softwareEncryptor = null;
+      encryptor.update(in, inOfs, inLen);
+      return encryptor.doFinal(out, outOfs, outLen);
+    }
+
     try {
-      return pkcs11Module.C_Encrypt(sessionHandle, in, inOfs, inLen,
+      int result = pkcs11Module.C_Encrypt(sessionHandle, in, inOfs, inLen,
           out, outOfs, outLen);
+      activeOperations &= ~OP_ENCRYPT;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_ENCRYPT, ex);
     }
   }
 
@@ -811,6 +1293,10 @@ public class Session {
     Util.requireNonNull("in", in);
     Util.requireNonNull("out", out);
 
+    if (softwareEncryptor != null) {
+      return softwareEncryptor.update(in, inOfs, inLen);
+    }
+
     try {
       return pkcs11Module.C_EncryptUpdate(sessionHandle, 0, in, inOfs,
           inLen, 0, out, outOfs, outLen);
@@ -819,6 +1305,51 @@ public class Session {
     }
   }
 
+  /**
+   * Like {@link #encryptUpdate(byte[], int, int, byte[], int, int)}, but
+   * for NIO buffers. Encrypts the remaining bytes of the input buffer and
+   * writes the result to the output buffer. For direct buffers, the token
+   * reads and writes the buffer memory directly, without copying the data
+   * into Java arrays; heap buffers are passed as their backing arrays.
+   *
+   * @param in
+   *          The data to encrypt. Its position is set to its limit.
+   * @param out
+   *          The buffer for the encrypted data. Its position is advanced by
+   *          the number of bytes written.
+   * @return The number of bytes written to out.
+   * @exception TokenException
+   *              If encrypting the data failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int encryptUpdate(ByteBuffer in, ByteBuffer out)
+      throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    if (out.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+
+    if (softwareEncryptor != null) {
+      byte[] data = toArray(in);
+      return softwareEncryptor.update(data, 0, data.length);
+    }
+
+    int len;
+    try {
+      len = pkcs11Module.C_EncryptUpdate(sessionHandle,
+          address(in), array(in), arrayOffset(in), in.remaining(),
+          address(out), array(out), arrayOffset(out), out.remaining());
+    } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+      throw new PKCS11Exception(ex);
+    }
+    in.position(in.limit());
+    out.position(out.position() + len);
+    return len;
+  }
+
   /**
    * This method finalizes an encryption operation and returns the final
    * result. Use this method, if you fed in the data using encryptUpdate. If
@@ -835,11 +1366,20 @@ public class Session {
       throws TokenException {
     Util.requireNonNull("out", out);
 
+    if (softwareEncryptor != null) {
+      PublicKeyOffload.Encryptor encryptor = softwareEncryptor;
+      encryptor.checkOutputLength(outLen);
+      softwareEncryptor = null;
+      return encryptor.doFinal(out, outOfs, outLen);
+    }
+
     try {
-      return pkcs11Module.C_EncryptFinal(sessionHandle, 0,
+      int result = pkcs11Module.C_EncryptFinal(sessionHandle, 0,
           out, outOfs, outLen);
+      activeOperations &= ~OP_ENCRYPT;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_ENCRYPT, ex);
     }
   }
 
@@ -867,6 +1407,7 @@ public class Session {
     try {
       pkcs11Module.C_DecryptInit(sessionHandle, toCkMechanism(mechanism),
           key.getObjectHandle());
+      activeOperations |= OP_DECRYPT;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -893,10 +1434,12 @@ public class Session {
     Util.requireNonNull("out", out);
 
     try {
-      return pkcs11Module.C_Decrypt(sessionHandle, in, inOfs, inLen,
+      int result = pkcs11Module.C_Decrypt(sessionHandle, in, inOfs, inLen,
           out, outOfs, outLen);
+      activeOperations &= ~OP_DECRYPT;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_DECRYPT, ex);
     }
   }
 
@@ -929,6 +1472,46 @@ public class Session {
     }
   }
 
+  /**
+   * Like {@link #decryptUpdate(byte[], int, int, byte[], int, int)}, but
+   * for NIO buffers. Decrypts the remaining bytes of the input buffer and
+   * writes the result to the output buffer. For direct buffers, the token
+   * reads and writes the buffer memory directly, without copying the data
+   * into Java arrays; heap buffers are passed as their backing arrays.
+   *
+   * @param in
+   *          The data to decrypt. Its position is set to its limit.
+   * @param out
+   *          The buffer for the decrypted data. Its position is advanced by
+   *          the number of bytes written.
+   * @return The number of bytes written to out.
+   * @exception TokenException
+   *              If decrypting the data failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int decryptUpdate(ByteBuffer in, ByteBuffer out)
+      throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    if (out.isReadOnly()) {
+      throw new ReadOnlyBufferException();
+    }
+
+    int len;
+    try {
+      len = pkcs11Module.C_DecryptUpdate(sessionHandle,
+          address(in), array(in), arrayOffset(in), in.remaining(),
+          address(out), array(out), arrayOffset(out), out.remaining());
+    } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+      throw new PKCS11Exception(ex);
+    }
+    in.position(in.limit());
+    out.position(out.position() + len);
+    return len;
+  }
+
   /**
    * This method finalizes a decryption operation and returns the final
    * result. Use this method, if you fed in the data using decryptUpdate. If
@@ -946,10 +1529,12 @@ public class Session {
     Util.requireNonNull("out", out);
 
     try {
-      return pkcs11Module.C_DecryptFinal(sessionHandle, 0,
+      int result = pkcs11Module.C_DecryptFinal(sessionHandle, 0,
           out, outOfs, outLen);
+      activeOperations &= ~OP_DECRYPT;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_DECRYPT, ex);
     }
   }
 
@@ -972,6 +1557,7 @@ public class Session {
   public void digestInit(Mechanism mechanism) throws TokenException {
     try {
       pkcs11Module.C_DigestInit(sessionHandle, toCkMechanism(mechanism));
+      activeOperations |= OP_DIGEST;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -1037,6 +1623,31 @@ public class Session {
     }
   }
 
+  /**
+   * Like {@link #digestUpdate(byte[], int, int)}, but for NIO buffers.
+   * Digests the remaining bytes of the buffer. For a direct buffer, the
+   * token reads the buffer memory directly, without copying the data into a
+   * Java array.
+   *
+   * @param part
+   *          The piece of data to digest. Its position is set to its limit.
+   * @exception TokenException
+   *              If digesting the data failed.
+   * @preconditions (part <> null)
+   * @postconditions
+   */
+  public void digestUpdate(ByteBuffer part) throws TokenException {
+    Util.requireNonNull("part", part);
+
+    try {
+      pkcs11Module.C_DigestUpdate(sessionHandle,
+          address(part), array(part), arrayOffset(part), part.remaining());
+    } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+      throw new PKCS11Exception(ex);
+    }
+    part.position(part.limit());
+  }
+
   /**
    * This method is similar to digestUpdate and can be combined with it during
    * one digesting operation. This method digests the value of the given
@@ -1075,10 +1686,12 @@ public class Session {
     Util.requireNonNull("digest", digest);
 
     try {
-      return pkcs11Module.C_DigestFinal(sessionHandle,
+      int result = pkcs11Module.C_DigestFinal(sessionHandle,
           digest, digestOfs, digestLen);
+      activeOperations &= ~OP_DIGEST;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_DIGEST, ex);
     }
   }
 
@@ -1104,9 +1717,39 @@ public class Session {
    * @postconditions
    */
   public void signInit(Mechanism mechanism, Key key) throws TokenException {
+    prehashSigner = null;
+    PrehashSigner signer = null;
+    if (localPrehash) {
+      long rawCode = PrehashSigner.getRawMechanismCode(
+          mechanism.getMechanismCode());
+      if (rawCode != -1
+          && module.isMechanismSupported(token.getSlot(), rawCode)) {
+        signer = PrehashSigner.getInstance(mechanism);
+      }
+    }
+
+    if (signer != null) {
+      try {
+        pkcs11Module.C_SignInit(sessionHandle,
+            toCkMechanism(signer.getRawMechanism()), key.getObjectHandle());
+        activeOperations |= OP_SIGN;
+        prehashSigner = signer;
+        return;
+      } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+        long errorCode = ex.getErrorCode();
+        if (errorCode != PKCS11Constants.CKR_MECHANISM_INVALID
+            && errorCode != PKCS11Constants.CKR_MECHANISM_PARAM_INVALID
+            && errorCode != PKCS11Constants.CKR_KEY_FUNCTION_NOT_PERMITTED) {
+          throw new PKCS11Exception(ex);
+        }
+        // the token may allow only the hash-and-sign mechanism for the key
+      }
+    }
+
     try {
       pkcs11Module.C_SignInit(sessionHandle, toCkMechanism(mechanism),
           key.getObjectHandle());
+      activeOperations |= OP_SIGN;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -1129,13 +1772,94 @@ public class Session {
   public byte[] sign(byte[] data) throws TokenException {
     Util.requireNonNull("data", data);
 
+    if (prehashSigner != null) {
+      prehashSigner.update(data, 0, data.length);
+      data = prehashSigner.finish();
+      prehashSigner = null;
+    }
+
     try {
-      return pkcs11Module.C_Sign(sessionHandle, data);
+      byte[] result = pkcs11Module.C_Sign(sessionHandle, data);
+      activeOperations &= ~OP_SIGN;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_SIGN, ex);
     }
   }
 
+  /**
+   * Like {@link #sign(byte[])}, but signs a part of the given array and
+   * writes the signature to the given output array; in the style of
+   * {@link #encrypt(byte[], int, int, byte[], int, int)}. If out is too
+   * small, a PKCS11Exception with CKR_BUFFER_TOO_SMALL is thrown; the
+   * signing operation is finished nevertheless.
+   * <p/>
+   * This method does not allocate less than {@link #sign(byte[])}: the
+   * underlying wrapper returns the signature as a new array, which is then
+   * copied to out, and a part of an array is copied before it is signed.
+   *
+   * @param in
+   *          The array holding the data to sign.
+   * @param inOfs
+   *          The offset of the data in in.
+   * @param inLen
+   *          The length of the data.
+   * @param out
+   *          The array to write the signature to.
+   * @param outOfs
+   *          The offset in out.
+   * @param outLen
+   *          The space available in out.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If signing the data failed.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int sign(byte[] in, int inOfs, int inLen,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    byte[] data = (inOfs == 0 && inLen == in.length)
+        ? in : Arrays.copyOfRange(in, inOfs, inOfs + inLen);
+    return copyResult(sign(data), out, outOfs, outLen, false);
+  }
+
+  /**
+   * Like {@link #sign(byte[])}, but for NIO buffers. Signs the remaining
+   * bytes of in and writes the signature to out. Unless in wraps a whole
+   * array, its bytes are copied to a new array first; and the signature is
+   * copied from the array returned by the underlying wrapper. So this
+   * method is a convenience and allocates at least as much as
+   * {@link #sign(byte[])}.
+   *
+   * @param in
+   *          The data to sign. Its position is set to its limit.
+   * @param out
+   *          The buffer for the signature. Its position is advanced by the
+   *          length of the signature.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If signing the data failed, or if out is too small.
+   * @preconditions (in <> null) and (out <> null)
+   * @postconditions
+   */
+  public int sign(ByteBuffer in, ByteBuffer out) throws TokenException {
+    Util.requireNonNull("in", in);
+    Util.requireNonNull("out", out);
+
+    byte[] data;
+    if (in.hasArray() && in.arrayOffset() + in.position() == 0
+        && in.remaining() == in.array().length) {
+      data = in.array();
+      in.position(in.limit());
+    } else {
+      data = toArray(in);
+    }
+    return copyResult(sign(data), out, false);
+  }
+
   /**
    * This method can be used to sign multiple pieces of data; e.g. buffer-size
    * pieces when reading the data from a stream. Signs the given data with the
@@ -1154,6 +1878,11 @@ public class Session {
       throws TokenException {
     Util.requireNonNull("in", in);
 
+    if (prehashSigner != null) {
+      prehashSigner.update(in, inOfs, inLen);
+      return;
+    }
+
     try {
       pkcs11Module.C_SignUpdate(sessionHandle, 0, in, inOfs, inLen);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
@@ -1161,6 +1890,35 @@ public class Session {
     }
   }
 
+  /**
+   * Like {@link #signUpdate(byte[], int, int)}, but for NIO buffers. Signs
+   * the remaining bytes of the buffer. For a direct buffer, the token reads
+   * the buffer memory directly, without copying the data into a Java array.
+   *
+   * @param in
+   *          The piece of data to sign. Its position is set to its limit.
+   * @exception TokenException
+   *              If signing the data failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void signUpdate(ByteBuffer in) throws TokenException {
+    Util.requireNonNull("in", in);
+
+    if (prehashSigner != null) {
+      prehashSigner.update(in);
+      return;
+    }
+
+    try {
+      pkcs11Module.C_SignUpdate(sessionHandle,
+          address(in), array(in), arrayOffset(in), in.remaining());
+    } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+      throw new PKCS11Exception(ex);
+    }
+    in.position(in.limit());
+  }
+
   /**
    * This method finalizes a signing operation and returns the final result.
    * Use this method, if you fed in the data using signUpdate. If you used the
@@ -1175,13 +1933,72 @@ public class Session {
    * @postconditions (result <> null)
    */
   public byte[] signFinal(int expectedLen) throws TokenException {
+    if (prehashSigner != null) {
+      byte[] data = prehashSigner.finish();
+      prehashSigner = null;
+      try {
+        byte[] result = pkcs11Module.C_Sign(sessionHandle, data);
+        activeOperations &= ~OP_SIGN;
+        return result;
+      } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+        throw operationFailed(OP_SIGN, ex);
+      }
+    }
+
     try {
-      return pkcs11Module.C_SignFinal(sessionHandle, expectedLen);
+      byte[] result = pkcs11Module.C_SignFinal(sessionHandle, expectedLen);
+      activeOperations &= ~OP_SIGN;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_SIGN, ex);
     }
   }
 
+  /**
+   * Like {@link #signFinal(int)}, but writes the signature to the given
+   * array. If out is too small, a PKCS11Exception with CKR_BUFFER_TOO_SMALL
+   * is thrown; the signing operation is finished nevertheless. The
+   * signature is still returned as a new array by the underlying wrapper
+   * and copied to out; so this saves no allocation.
+   *
+   * @param out
+   *          The array to write the signature to.
+   * @param outOfs
+   *          The offset in out.
+   * @param outLen
+   *          The space available in out.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If calculating the final signature value failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int signFinal(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    Util.requireNonNull("out", out);
+    return copyResult(signFinal(outLen), out, outOfs, outLen, false);
+  }
+
+  /**
+   * Like {@link #signFinal(int)}, but writes the signature to the given
+   * buffer. Like {@link #signFinal(byte[], int, int)}, it copies the
+   * signature from a new array.
+   *
+   * @param out
+   *          The buffer for the signature. Its position is advanced by the
+   *          length of the signature.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If calculating the final signature value failed, or if out
+   *              is too small.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int signFinal(ByteBuffer out) throws TokenException {
+    Util.requireNonNull("out", out);
+    return copyResult(signFinal(out.remaining()), out, false);
+  }
+
   /**
    * Initializes a new signing operation for signing with recovery. The
    * application must call this method before calling signRecover. Before
@@ -1208,6 +2025,7 @@ public class Session {
     try {
       pkcs11Module.C_SignRecoverInit(sessionHandle,
           toCkMechanism(mechanism), key.getObjectHandle());
+      activeOperations |= OP_SIGN_RECOVER;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -1233,10 +2051,12 @@ public class Session {
     Util.requireNonNull("out", out);
 
     try {
-      return pkcs11Module.C_SignRecover(sessionHandle, in, inOfs, inLen,
+      int result = pkcs11Module.C_SignRecover(sessionHandle, in, inOfs, inLen,
           out, outOfs, outLen);
+      activeOperations &= ~OP_SIGN_RECOVER;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_SIGN_RECOVER, ex);
     }
   }
 
@@ -1262,14 +2082,57 @@ public class Session {
    * @postconditions
    */
   public void verifyInit(Mechanism mechanism, Key key) throws TokenException {
+    softwareVerifier = null;
+    if (publicKeyOffload) {
+      softwareVerifier = module.getPublicKeyOffload()
+          .createVerifier(this, mechanism, key);
+      if (softwareVerifier != null) {
+        return;
+      }
+    }
+
     try {
       pkcs11Module.C_VerifyInit(sessionHandle, toCkMechanism(mechanism),
           key.getObjectHandle());
+      activeOperations |= OP_VERIFY;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
   }
 
+  /**
+   * Initializes a new verification operation with the public key of the
+   * given certificate. The verification always runs in software, because
+   * the token cannot verify with a certificate object; see
+   * {@link PublicKeyOffload} for the supported mechanisms. Use verify or
+   * verifyUpdate and verifyFinal afterwards, as with a key.
+   *
+   * @param mechanism
+   *          The mechanism to use; e.g. Mechanism.SHA256_RSA_PKCS.
+   * @param certificate
+   *          The certificate holding the public key to use. Its CKA_VALUE
+   *          must have been read.
+   * @exception TokenException
+   *              If the certificate cannot be parsed. PKCS11Exception with
+   *              CKR_MECHANISM_INVALID, if the mechanism is not supported in
+   *              software or does not fit the key.
+   * @preconditions (mechanism <> null) and (certificate <> null)
+   * @postconditions
+   */
+  public void verifyInit(Mechanism mechanism,
+      X509PublicKeyCertificate certificate) throws TokenException {
+    Util.requireNonNull("mechanism", mechanism);
+    Util.requireNonNull("certificate", certificate);
+    softwareVerifier = null;
+    PublicKeyOffload.Verifier verifier =
+        module.getPublicKeyOffload().createVerifier(this, mechanism,
+            certificate);
+    if (verifier == null) {
+      throw new PKCS11Exception(PKCS11Constants.CKR_MECHANISM_INVALID);
+    }
+    softwareVerifier = verifier;
+  }
+
   /**
    * Verifies the given signature against the given data with the key and
    * mechanism given to the verifyInit method. This method finalizes the
@@ -1289,12 +2152,22 @@ public class Session {
    * @postconditions
    */
   public void verify(byte[] data, byte[] signature) throws TokenException {
+    Util.requireNonNull("data", data);
     Util.requireNonNull("signature", signature);
 
+    if (softwareVerifier != null) {
+      PublicKeyOffload.Verifier verifier = softwareVerifier;
+      softwareVerifier = null;
+      verifier.update(data, 0, data.length);
+      verifier.verify(signature);
+      return;
+    }
+
     try {
       pkcs11Module.C_Verify(sessionHandle, data, signature);
+      activeOperations &= ~OP_VERIFY;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_VERIFY, ex);
     }
   }
 
@@ -1315,6 +2188,11 @@ public class Session {
       throws TokenException {
     Util.requireNonNull("in", in);
 
+    if (softwareVerifier != null) {
+      softwareVerifier.update(in, inOfs, inLen);
+      return;
+    }
+
     try {
       pkcs11Module.C_VerifyUpdate(sessionHandle, 0, in, inOfs, inLen);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
@@ -1322,6 +2200,38 @@ public class Session {
     }
   }
 
+  /**
+   * Like {@link #verifyUpdate(byte[], int, int)}, but for NIO buffers.
+   * Feeds the remaining bytes of the buffer into the verification. For a
+   * direct buffer, the token reads the buffer memory directly, without
+   * copying the data into a Java array.
+   *
+   * @param in
+   *          The piece of data to verify against. Its position is set to its
+   *          limit.
+   * @exception TokenException
+   *              If verifying (e.g. digesting) the data failed.
+   * @preconditions (in <> null)
+   * @postconditions
+   */
+  public void verifyUpdate(ByteBuffer in) throws TokenException {
+    Util.requireNonNull("in", in);
+
+    if (softwareVerifier != null) {
+      byte[] data = toArray(in);
+      softwareVerifier.update(data, 0, data.length);
+      return;
+    }
+
+    try {
+      pkcs11Module.C_VerifyUpdate(sessionHandle,
+          address(in), array(in), arrayOffset(in), in.remaining());
+    } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+      throw new PKCS11Exception(ex);
+    }
+    in.position(in.limit());
+  }
+
   /**
    * This method finalizes a verification operation. Use this method, if you
    * fed in the data using verifyUpdate. If you used the verify(byte[])
@@ -1342,10 +2252,18 @@ public class Session {
   public void verifyFinal(byte[] signature) throws TokenException {
     Util.requireNonNull("signature", signature);
 
+    if (softwareVerifier != null) {
+      PublicKeyOffload.Verifier verifier = softwareVerifier;
+      softwareVerifier = null;
+      verifier.verify(signature);
+      return;
+    }
+
     try {
       pkcs11Module.C_VerifyFinal(sessionHandle, signature);
+      activeOperations &= ~OP_VERIFY;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_VERIFY, ex);
     }
   }
 
@@ -1374,6 +2292,7 @@ public class Session {
     try {
       pkcs11Module.C_VerifyRecoverInit(sessionHandle,
           toCkMechanism(mechanism), key.getObjectHandle());
+      activeOperations |= OP_VERIFY_RECOVER;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
@@ -1399,10 +2318,12 @@ public class Session {
     Util.requireNonNull("out", out);
 
     try {
-      return pkcs11Module.C_VerifyRecover(sessionHandle,
+      int result = pkcs11Module.C_VerifyRecover(sessionHandle,
           in, inOfs, inLen, out, outOfs, outLen);
+      activeOperations &= ~OP_VERIFY_RECOVER;
+      return result;
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      throw new PKCS11Exception(ex);
+      throw operationFailed(OP_VERIFY_RECOVER, ex);
     }
   }
 
@@ -1522,6 +2443,8 @@ public class Session {
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+    invalidateCachedObject(objectHandle);
+    fireObjectCreated(objectHandle);
 
     return PKCS11Object.getInstance(this, objectHandle);
   }
@@ -1564,6 +2487,10 @@ public class Session {
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+    invalidateCachedObject(objectHandles[0]);
+    invalidateCachedObject(objectHandles[1]);
+    fireObjectCreated(objectHandles[0]);
+    fireObjectCreated(objectHandles[1]);
 
     PublicKey publicKey =
         (PublicKey) PKCS11Object.getInstance(this, objectHandles[0]);
@@ -1600,6 +2527,37 @@ public class Session {
     }
   }
 
+  /**
+   * Like {@link #wrapKey(Mechanism, Key, Key)}, but writes the wrapped key
+   * to the given array. The intermediate copy of the wrapped key is
+   * overwritten with zeros.
+   *
+   * @param mechanism
+   *          The mechanism to use for wrapping the key.
+   * @param wrappingKey
+   *          The key to use for wrapping (encrypting).
+   * @param key
+   *          The key to wrap (encrypt).
+   * @param out
+   *          The array to write the wrapped key to.
+   * @param outOfs
+   *          The offset in out.
+   * @param outLen
+   *          The space available in out.
+   * @return The length of the wrapped key.
+   * @exception TokenException
+   *              If wrapping the key failed, or if out is too small.
+   * @preconditions (mechanism <> null) and (wrappingKey <> null) and (key <>
+   *                null) and (out <> null)
+   * @postconditions
+   */
+  public int wrapKey(Mechanism mechanism, Key wrappingKey, Key key,
+      byte[] out, int outOfs, int outLen) throws TokenException {
+    Util.requireNonNull("out", out);
+    return copyResult(wrapKey(mechanism, wrappingKey, key),
+        out, outOfs, outLen, true);
+  }
+
   /**
    * Unwraps (decrypts) the given encrypted key with the unwrapping key using
    * the given mechanism. The application can also pass a template key to set
@@ -1636,6 +2594,8 @@ public class Session {
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+    invalidateCachedObject(objectHandle);
+    fireObjectCreated(objectHandle);
 
     return (Key) PKCS11Object.getInstance(this, objectHandle);
   }
@@ -1673,6 +2633,8 @@ public class Session {
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
       throw new PKCS11Exception(ex);
     }
+    invalidateCachedObject(objectHandle);
+    fireObjectCreated(objectHandle);
 
     /*
      * for certain mechanisms we must copy back the returned values to the
@@ -1761,6 +2723,64 @@ public class Session {
     return randomBytesBuffer;
   }
 
+  /**
+   * Fills a part of the given array with random bytes. If the whole array
+   * is to be filled, the token writes to it directly; otherwise, the
+   * intermediate copy is overwritten with zeros.
+   *
+   * @param out
+   *          The array to fill.
+   * @param outOfs
+   *          The offset in out.
+   * @param outLen
+   *          The number of random bytes to generate.
+   * @return The number of random bytes written; i.e. outLen.
+   * @exception TokenException
+   *              If generating random bytes failed.
+   * @preconditions (out <> null) and (outOfs >= 0) and (outLen >= 0) and
+   *                (outOfs + outLen <= out.length)
+   * @postconditions
+   */
+  public int generateRandom(byte[] out, int outOfs, int outLen)
+      throws TokenException {
+    Util.requireNonNull("out", out);
+
+    if (outOfs == 0 && outLen == out.length) {
+      try {
+        pkcs11Module.C_GenerateRandom(sessionHandle, out);
+      } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+        throw new PKCS11Exception(ex);
+      }
+      return outLen;
+    }
+
+    return copyResult(generateRandom(outLen), out, outOfs, outLen, true);
+  }
+
+  /**
+   * Fills the remaining bytes of the given buffer with random bytes.
+   *
+   * @param out
+   *          The buffer to fill. Its position is set to its limit.
+   * @return The number of random bytes written.
+   * @exception TokenException
+   *              If generating random bytes failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int generateRandom(ByteBuffer out) throws TokenException {
+    Util.requireNonNull("out", out);
+
+    if (out.hasArray()) {
+      int len = out.remaining();
+      generateRandom(out.array(), out.arrayOffset() + out.position(), len);
+      out.position(out.limit());
+      return len;
+    }
+
+    return copyResult(generateRandom(out.remaining()), out, true);
+  }
+
   /**
    * Legacy function that will normally throw an PKCS11Exception with the
    * error-code PKCS11Constants.CKR_FUNCTION_NOT_PARALLEL.
@@ -1803,6 +2823,161 @@ public class Session {
         "\nToken: ", token);
   }
 
+  /**
+   * Check, if a token operation of this session may still be active; i.e.
+   * if an operation has been initialized and not yet been finished by a
+   * single-part or final call. An operation which failed in an update call
+   * counts as active, though the token may have finished it already.
+   *
+   * @return True, if a token operation may still be active.
+   */
+  boolean isOperationActive() {
+    return activeOperations != 0;
+  }
+
+  /**
+   * Resets the per-session modes to their defaults and drops the operations
+   * running in software; used before a pooled session is handed to the
+   * next borrower.
+   */
+  void resetSessionState() {
+    lazyAttributeLoading = false;
+    publicKeyOffload = false;
+    localPrehash = false;
+    softwareVerifier = null;
+    softwareEncryptor = null;
+    prehashSigner = null;
+  }
+
+  /**
+   * Converts the exception of a single-part or final call. As the token
+   * does, the operation is regarded as finished, unless the output buffer
+   * was too small.
+   */
+  private PKCS11Exception operationFailed(int operation,
+      sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+    if (ex.getErrorCode() != PKCS11Constants.CKR_BUFFER_TOO_SMALL) {
+      activeOperations &= ~operation;
+    }
+    return new PKCS11Exception(ex);
+  }
+
+  /**
+   * Drops the given object from the attribute cache of the module, if there
+   * is one. New handles are dropped as well, because the module may reuse
+   * the handle of an object which has been destroyed by another application.
+   */
+  private void invalidateCachedObject(long objectHandle) {
+    AttributeCache cache = module.getAttributeCache();
+    if (cache != null) {
+      cache.invalidate(token.getSlot().getSlotID(), objectHandle);
+    }
+  }
+
+  private void fireObjectCreated(long objectHandle) {
+    for (ObjectListener listener : module.getObjectListeners()) {
+      listener.objectCreated(this, objectHandle);
+    }
+  }
+
+  /**
+   * Drops all objects of the slot of this session from the attribute cache
+   * of the module, if there is one.
+   */
+  private void invalidateCachedSlot() {
+    AttributeCache cache = module.getAttributeCache();
+    if (cache != null) {
+      cache.invalidateSlot(token.getSlot().getSlotID());
+    }
+  }
+
+  /**
+   * Get the address of the position of the given buffer for the native
+   * calls; 0 for heap buffers, which are passed as arrays.
+   */
+  private static long address(ByteBuffer buffer) {
+    return DirectBuffers.address(buffer);
+  }
+
+  /**
+   * Get the array to pass to the native calls for the given buffer: null
+   * for direct buffers, the backing array for heap buffers, and a copy of
+   * the remaining bytes for read-only heap buffers.
+   */
+  private static byte[] array(ByteBuffer buffer) {
+    if (buffer.isDirect()) {
+      return null;
+    } else if (buffer.hasArray()) {
+      return buffer.array();
+    } else {
+      byte[] copy = new byte[buffer.remaining()];
+      buffer.duplicate().get(copy);
+      return copy;
+    }
+  }
+
+  /**
+   * Get the offset into {@link #array(ByteBuffer)} of the given buffer.
+   */
+  private static int arrayOffset(ByteBuffer buffer) {
+    return (!buffer.isDirect() && buffer.hasArray())
+        ? buffer.arrayOffset() + buffer.position() : 0;
+  }
+
+  /**
+   * Copies the result of an operation to the output array of the caller.
+   * Throws CKR_BUFFER_TOO_SMALL if it does not fit.
+   *
+   * @param zeroize
+   *          True to overwrite the result with zeros afterwards.
+   * @return The length of the result.
+   */
+  private static int copyResult(byte[] result, byte[] out, int outOfs,
+      int outLen, boolean zeroize) throws TokenException {
+    try {
+      if (result.length > outLen) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+      }
+      System.arraycopy(result, 0, out, outOfs, result.length);
+      return result.length;
+    } finally {
+      if (zeroize) {
+        Arrays.fill(result, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Like {@link #copyResult(byte[], byte[], int, int, boolean)}, but for a
+   * buffer, whose position is advanced by the length of the result.
+   */
+  private static int copyResult(byte[] result, ByteBuffer out,
+      boolean zeroize) throws TokenException {
+    try {
+      if (out.isReadOnly()) {
+        throw new ReadOnlyBufferException();
+      }
+      if (result.length > out.remaining()) {
+        throw new PKCS11Exception(PKCS11Constants.CKR_BUFFER_TOO_SMALL);
+      }
+      out.put(result);
+      return result.length;
+    } finally {
+      if (zeroize) {
+        Arrays.fill(result, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Reads the remaining bytes of the given buffer into a new array.
+   */
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] data = new byte[buffer.remaining()];
+    buffer.get(data);
+    return data;
+  }
+
   private static CK_MECHANISM toCkMechanism(Mechanism mechanism) {
     CK_MECHANISM ckMechanism = new CK_MECHANISM();
     ckMechanism.mechanism = mechanism.getMechanismCode();
@@ -0,0 +1,662 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.wrapper.PKCS11Exception;
+
+/**
+ * A bounded, thread-safe pool of sessions of one token. The pool keeps
+ * separate lanes for read-only and read-write sessions, opens sessions on
+ * demand and keeps them open after they have been returned, so that an
+ * application does not pay a C_OpenSession (and possibly a C_Login) for each
+ * cryptographic operation.
+ * <p/>
+ * Since all sessions of an application share the login state of the token,
+ * the pool logs in only once. The PIN is kept by the pool so that the token
+ * can be logged in again, if it has lost the login state; e.g. because all
+ * sessions have been closed in the meantime.
+ * <p/>
+ * The maximum number of sessions and read-write sessions given to the
+ * constructor is limited by the values the token reports in its TokenInfo.
+ * A typical usage looks like this.
+ * <pre><code>
+ *   SessionPool pool = new SessionPool(token, 16, 2);
+ *   pool.login(Session.UserType.USER, pin);
+ *
+ *   try (PooledSession session = pool.borrowSession(
+ *       Token.SessionReadWriteBehavior.RO_SESSION)) {
+ *     session.signInit(mechanism, signatureKey);
+ *     byte[] signature = session.sign(data);
+ *   }
+ *
+ *   pool.close();
+ * </code></pre>
+ *
+ * @see iaik.pkcs.pkcs11.PooledSession
+ * @see iaik.pkcs.pkcs11.TokenInfo
+ * @invariants (token <> null)
+ */
+public class SessionPool implements AutoCloseable {
+
+  /**
+   * The token all sessions of this pool belong to.
+   */
+  private final Token token;
+
+  /**
+   * The maximum number of sessions (read-only and read-write) this pool
+   * opens.
+   */
+  private final int maxSessions;
+
+  /**
+   * The maximum number of read-write sessions this pool opens.
+   */
+  private final int maxRwSessions;
+
+  /**
+   * Guards all mutable state of this pool.
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled whenever a session is returned, or a session slot becomes
+   * free.
+   */
+  private final Condition available = lock.newCondition();
+
+  /**
+   * The idle read-only sessions.
+   */
+  private final Deque<PooledSession> idleRoSessions = new ArrayDeque<>();
+
+  /**
+   * The idle read-write sessions.
+   */
+  private final Deque<PooledSession> idleRwSessions = new ArrayDeque<>();
+
+  /**
+   * The number of sessions currently opened by this pool, including sessions
+   * which are about to be opened.
+   */
+  private int openSessions;
+
+  /**
+   * The number of read-write sessions currently opened by this pool,
+   * including sessions which are about to be opened.
+   */
+  private int openRwSessions;
+
+  /**
+   * True, if this pool has been closed.
+   */
+  private boolean closed;
+
+  /**
+   * The user type of the login, or null if the pool has not been logged in.
+   */
+  private Long loginUserType;
+
+  /**
+   * The PIN used for the login. May be null for a protected authentication
+   * path.
+   */
+  private char[] loginPin;
+
+  /**
+   * Constructor taking the token and the maximum number of sessions.
+   *
+   * @param token
+   *          The token to open the sessions with.
+   * @param maxSessions
+   *          The maximum number of sessions (read-only and read-write) to
+   *          open. Will be reduced to the maximum session count of the token.
+   * @param maxRwSessions
+   *          The maximum number of read-write sessions to open. Will be
+   *          reduced to the maximum read-write session count of the token and
+   *          to maxSessions.
+   * @exception TokenException
+   *              If reading the token information fails.
+   * @preconditions (token <> null) and (maxSessions > 0)
+   *                and (maxRwSessions >= 0)
+   * @postconditions
+   */
+  public SessionPool(Token token, int maxSessions, int maxRwSessions)
+      throws TokenException {
+    this.token = Util.requireNonNull("token", token);
+    if (maxSessions < 1) {
+      throw new IllegalArgumentException("maxSessions must be at least 1");
+    }
+    if (maxRwSessions < 0) {
+      throw new IllegalArgumentException("maxRwSessions must not be negative");
+    }
+
+    TokenInfo tokenInfo = token.getTokenInfo();
+    this.maxSessions = limit(maxSessions, tokenInfo.getMaxSessionCount());
+    this.maxRwSessions = Math.min(this.maxSessions,
+        limit(maxRwSessions, tokenInfo.getMaxRwSessionCount()));
+  }
+
+  /**
+   * Limits the requested count to the count reported by the token.
+   * CK_EFFECTIVELY_INFINITE and CK_UNAVAILABLE_INFORMATION mean no limit.
+   */
+  private static int limit(int requested, long tokenLimit) {
+    if (tokenLimit == PKCS11Constants.CK_EFFECTIVELY_INFINITE
+        || tokenLimit == PKCS11Constants.CK_UNAVAILABLE_INFORMATION
+        || tokenLimit < 0 || tokenLimit >= Integer.MAX_VALUE) {
+      return requested;
+    }
+    return (int) Math.min(requested, tokenLimit);
+  }
+
+  /**
+   * Get the token of this pool.
+   *
+   * @return The token of this pool.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Token getToken() {
+    return token;
+  }
+
+  /**
+   * Get the maximum number of sessions this pool opens.
+   *
+   * @return The maximum number of sessions.
+   * @preconditions
+   * @postconditions
+   */
+  public int getMaxSessions() {
+    return maxSessions;
+  }
+
+  /**
+   * Get the maximum number of read-write sessions this pool opens.
+   *
+   * @return The maximum number of read-write sessions.
+   * @preconditions
+   * @postconditions
+   */
+  public int getMaxRwSessions() {
+    return maxRwSessions;
+  }
+
+  /**
+   * Get the number of sessions currently opened by this pool, either idle or
+   * borrowed.
+   *
+   * @return The number of open sessions.
+   * @preconditions
+   * @postconditions
+   */
+  public int getOpenSessionCount() {
+    lock.lock();
+    try {
+      return openSessions;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of idle sessions.
+   *
+   * @return The number of idle sessions.
+   * @preconditions
+   * @postconditions
+   */
+  public int getIdleSessionCount() {
+    lock.lock();
+    try {
+      return idleRoSessions.size() + idleRwSessions.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Logs in the user or the security officer. Since all sessions of a token
+   * share the same login state, this needs to be done only once for the
+   * whole pool. If the token is already logged in, this is not treated as
+   * an error.
+   *
+   * @param userType
+   *          UserType.SO for the security officer or UserType.USER to login
+   *          the user.
+   * @param pin
+   *          The PIN. May be null, if the token has a protected
+   *          authentication path.
+   * @exception TokenException
+   *              If login fails.
+   * @preconditions
+   * @postconditions
+   */
+  public void login(boolean userType, char[] pin) throws TokenException {
+    login((userType == Session.UserType.SO)
+        ? PKCS11Constants.CKU_SO : PKCS11Constants.CKU_USER, pin);
+  }
+
+  /**
+   * Logs in the given user type. See {@link #login(boolean, char[])}.
+   *
+   * @param userType
+   *          The user type; e.g. PKCS11Constants.CKU_USER.
+   * @param pin
+   *          The PIN. May be null, if the token has a protected
+   *          authentication path.
+   * @exception TokenException
+   *              If login fails.
+   * @preconditions
+   * @postconditions
+   */
+  public void login(long userType, char[] pin) throws TokenException {
+    PooledSession session = borrowSession(
+        userType == PKCS11Constants.CKU_SO
+          ? Token.SessionReadWriteBehavior.RW_SESSION
+          : Token.SessionReadWriteBehavior.RO_SESSION);
+    try {
+      login(session, userType, pin);
+    } finally {
+      session.close();
+    }
+
+    lock.lock();
+    try {
+      clearPin();
+      loginUserType = userType;
+      loginPin = (pin == null) ? null : pin.clone();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Logs out the token and forgets the PIN.
+   *
+   * @exception TokenException
+   *              If logging out fails.
+   * @preconditions
+   * @postconditions
+   */
+  public void logout() throws TokenException {
+    lock.lock();
+    try {
+      clearPin();
+      loginUserType = null;
+    } finally {
+      lock.unlock();
+    }
+
+    PooledSession session =
+        borrowSession(Token.SessionReadWriteBehavior.RO_SESSION);
+    try {
+      session.logout();
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode() != PKCS11Constants.CKR_USER_NOT_LOGGED_IN) {
+        throw ex;
+      }
+    } finally {
+      session.close();
+    }
+  }
+
+  /**
+   * Checks the login state of the given session, and logs in again, if the
+   * pool has been logged in but the token has lost the login state.
+   *
+   * @param session
+   *          The session to check.
+   * @exception TokenException
+   *              If reading the session state or the login fails.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public void ensureLoggedIn(Session session) throws TokenException {
+    Long userType;
+    char[] pin;
+    lock.lock();
+    try {
+      userType = loginUserType;
+      pin = (loginPin == null) ? null : loginPin.clone();
+    } finally {
+      lock.unlock();
+    }
+
+    if (userType == null) {
+      return;
+    }
+
+    try {
+      State state = session.getSessionInfo().getState();
+      if (State.RO_PUBLIC_SESSION.equals(state)
+          || State.RW_PUBLIC_SESSION.equals(state)) {
+        login(session, userType.longValue(), pin);
+      }
+    } finally {
+      if (pin != null) {
+        Arrays.fill(pin, '\0');
+      }
+    }
+  }
+
+  private static void login(Session session, long userType, char[] pin)
+      throws TokenException {
+    try {
+      session.login(userType, pin);
+    } catch (PKCS11Exception ex) {
+      if (ex.getErrorCode() != PKCS11Constants.CKR_USER_ALREADY_LOGGED_IN) {
+        throw ex;
+      }
+    }
+  }
+
+  /**
+   * Borrows a session from this pool. Blocks until a session is available.
+   * The session must be given back by calling {@link PooledSession#close()},
+   * preferably using a try-with-resources statement.
+   *
+   * @param rwSession
+   *          Token.SessionReadWriteBehavior.RO_SESSION for a read-only
+   *          session or Token.SessionReadWriteBehavior.RW_SESSION for a
+   *          read-write session.
+   * @return The borrowed session.
+   * @exception TokenException
+   *              If opening a new session fails, or if the thread has been
+   *              interrupted while waiting.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public PooledSession borrowSession(boolean rwSession)
+      throws TokenException {
+    return borrowSession(rwSession, -1);
+  }
+
+  /**
+   * Borrows a session from this pool. Waits at most the given time for a
+   * session to become available.
+   *
+   * @param rwSession
+   *          Token.SessionReadWriteBehavior.RO_SESSION for a read-only
+   *          session or Token.SessionReadWriteBehavior.RW_SESSION for a
+   *          read-write session.
+   * @param timeoutMillis
+   *          The maximum time to wait in milliseconds. A negative value
+   *          means to wait without time limit.
+   * @return The borrowed session.
+   * @exception TokenException
+   *              If opening a new session fails, if no session became
+   *              available in time, or if the thread has been interrupted
+   *              while waiting.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public PooledSession borrowSession(boolean rwSession, long timeoutMillis)
+      throws TokenException {
+    if (rwSession && maxRwSessions == 0) {
+      throw new TokenException("this pool does not open read-write sessions");
+    }
+
+    long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    Deque<PooledSession> idleSessions =
+        rwSession ? idleRwSessions : idleRoSessions;
+
+    PooledSession evicted = null;
+    lock.lock();
+    try {
+      while (true) {
+        if (closed) {
+          throw new TokenException("session pool is closed");
+        }
+
+        PooledSession session = idleSessions.pollFirst();
+        if (session != null) {
+          session.setBorrowed(true);
+          return session;
+        }
+
+        if (openSessions < maxSessions
+            && (!rwSession || openRwSessions < maxRwSessions)) {
+          openSessions++;
+          if (rwSession) {
+            openRwSessions++;
+          }
+          break;
+        }
+
+        // a read-write session can do everything a read-only session can
+        if (!rwSession && !idleRwSessions.isEmpty()) {
+          session = idleRwSessions.pollFirst();
+          session.setBorrowed(true);
+          return session;
+        }
+
+        // an idle read-only session occupies the last free slot; take the
+        // slot over, if only the total limit has been reached
+        if (rwSession && openSessions >= maxSessions
+            && openRwSessions < maxRwSessions) {
+          evicted = idleRoSessions.pollLast();
+          if (evicted != null) {
+            openRwSessions++;
+            break;
+          }
+        }
+
+        try {
+          if (timeoutMillis < 0) {
+            available.await();
+          } else {
+            if (remainingNanos <= 0) {
+              throw new TokenException("no session available within "
+                  + timeoutMillis + " ms");
+            }
+            remainingNanos = available.awaitNanos(remainingNanos);
+          }
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new TokenException("interrupted while waiting for a session",
+              ex);
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    // close the evicted and open the new session outside of the lock
+    if (evicted != null) {
+      closeQuietly(evicted);
+    }
+    PooledSession session = null;
+    try {
+      Session rawSession = token.openSession(Token.SessionType.SERIAL_SESSION,
+          rwSession, null, null);
+      session = new PooledSession(this, rawSession, rwSession);
+      ensureLoggedIn(session);
+      session.setBorrowed(true);
+      return session;
+    } catch (TokenException | RuntimeException ex) {
+      if (session != null) {
+        closeQuietly(session);
+      }
+      releaseSlot(rwSession);
+      throw ex;
+    }
+  }
+
+  /**
+   * Gives a borrowed session back to this pool. Called by
+   * {@link PooledSession#close()}.
+   *
+   * @param session
+   *          The session to give back.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  void returnSession(PooledSession session) {
+    lock.lock();
+    try {
+      if (closed) {
+        closeQuietly(session);
+        releaseSlotLocked(session.isRwSession());
+        return;
+      }
+
+      if (session.isRwSession()) {
+        idleRwSessions.addFirst(session);
+      } else {
+        idleRoSessions.addFirst(session);
+      }
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Removes a borrowed session from this pool, without closing it. Called
+   * for sessions which have been closed or are broken.
+   *
+   * @param session
+   *          The session to remove.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  void removeSession(PooledSession session) {
+    releaseSlot(session.isRwSession());
+  }
+
+  private void releaseSlot(boolean rwSession) {
+    lock.lock();
+    try {
+      releaseSlotLocked(rwSession);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void releaseSlotLocked(boolean rwSession) {
+    openSessions--;
+    if (rwSession) {
+      openRwSessions--;
+    }
+    available.signalAll();
+  }
+
+  private static void closeQuietly(PooledSession session) {
+    try {
+      session.closeRawSession();
+    } catch (TokenException ex) {
+      // the session is not usable any more anyway
+    }
+  }
+
+  private void clearPin() {
+    if (loginPin != null) {
+      Arrays.fill(loginPin, '\0');
+      loginPin = null;
+    }
+  }
+
+  /**
+   * Closes all idle sessions and forgets the PIN. Borrowed sessions are
+   * closed when they are given back. Notice that closing the last session of
+   * the token logs out the token.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      clearPin();
+      loginUserType = null;
+
+      for (PooledSession session : idleRoSessions) {
+        closeQuietly(session);
+        releaseSlotLocked(false);
+      }
+      idleRoSessions.clear();
+
+      for (PooledSession session : idleRwSessions) {
+        closeQuietly(session);
+        releaseSlotLocked(true);
+      }
+      idleRwSessions.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    lock.lock();
+    try {
+      return Util.concatObjects("Session Pool of ", token,
+          "\nMaximum Sessions: ", maxSessions,
+          "\nMaximum RW Sessions: ", maxRwSessions,
+          "\nOpen Sessions: ", openSessions,
+          "\nOpen RW Sessions: ", openRwSessions,
+          "\nIdle Sessions: ", idleRoSessions.size() + idleRwSessions.size(),
+          "\nLogged in: ", loginUserType != null);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,204 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An output stream which signs the written data with a session, and
+ * optionally passes it through to another output stream. The session must
+ * have been initialized with signInit before; e.g.
+ * <pre><code>
+ *   session.signInit(Mechanism.get(PKCS11Constants.CKM_SHA256_RSA_PKCS),
+ *       privateKey);
+ *   SigningOutputStream out = new SigningOutputStream(session, null);
+ *   Files.copy(path, out);
+ *   byte[] signature = out.signFinal(256);
+ * </code></pre>
+ * The data is passed to signUpdate in chunks of the given size, independent
+ * of the sizes of the writes of the caller. The stream is also a
+ * WritableByteChannel.
+ *
+ * @invariants (session <> null)
+ */
+public class SigningOutputStream extends ChunkedOutputStream {
+
+  /**
+   * The default chunk size.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+  private final Session session;
+
+  /**
+   * The stream to pass the data to, or null.
+   */
+  private final OutputStream out;
+
+  /**
+   * Constructor taking the session and the stream to pass the data to. Uses
+   * the default chunk size.
+   *
+   * @param session
+   *          The session initialized for signing.
+   * @param out
+   *          The stream to pass the data to, or null to only sign it.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  public SigningOutputStream(Session session, OutputStream out) {
+    this(session, out, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Constructor taking the session, the stream to pass the data to and the
+   * chunk size.
+   *
+   * @param session
+   *          The session initialized for signing.
+   * @param out
+   *          The stream to pass the data to, or null to only sign it.
+   * @param chunkSize
+   *          The number of bytes passed to each signUpdate call.
+   * @preconditions (session <> null) and (chunkSize > 0)
+   * @postconditions
+   */
+  public SigningOutputStream(Session session, OutputStream out,
+      int chunkSize) {
+    super(chunkSize);
+    this.session = Util.requireNonNull("session", session);
+    this.out = out;
+  }
+
+  @Override
+  void update(byte[] in, int inOfs, int inLen) throws IOException {
+    try {
+      session.signUpdate(in, inOfs, inLen);
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    }
+    if (out != null) {
+      out.write(in, inOfs, inLen);
+    }
+  }
+
+  @Override
+  void update(ByteBuffer in) throws IOException {
+    if (out != null) {
+      // the data is needed as array for the stream
+      super.update(in);
+      return;
+    }
+    try {
+      session.signUpdate(in);
+    } catch (TokenException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  /**
+   * Closes the stream to pass the data to, if any. The signature is not
+   * finished; call {@link #signFinal(int)} for that.
+   */
+  @Override
+  void finish() throws IOException {
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    super.flush();
+    if (out != null) {
+      out.flush();
+    }
+  }
+
+  /**
+   * Signs the data collected so far, finishes the signing and closes this
+   * stream.
+   *
+   * @param expectedLen
+   *          The expected length of the signature.
+   * @return The signature value.
+   * @exception TokenException
+   *              If signing failed.
+   * @exception IOException
+   *              If passing the data to the other stream failed.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public byte[] signFinal(int expectedLen)
+      throws TokenException, IOException {
+    close();
+    return session.signFinal(expectedLen);
+  }
+
+  /**
+   * Like {@link #signFinal(int)}, but writes the signature to the given
+   * array.
+   *
+   * @param out
+   *          The array to write the signature to.
+   * @param outOfs
+   *          The offset in out.
+   * @param outLen
+   *          The space available in out.
+   * @return The length of the signature.
+   * @exception TokenException
+   *              If signing failed, or if out is too small.
+   * @exception IOException
+   *              If passing the data to the other stream failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public int signFinal(byte[] out, int outOfs, int outLen)
+      throws TokenException, IOException {
+    close();
+    return session.signFinal(out, outOfs, outLen);
+  }
+
+}
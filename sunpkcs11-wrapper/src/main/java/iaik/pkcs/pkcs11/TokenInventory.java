@@ -0,0 +1,950 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import iaik.pkcs.pkcs11.objects.Attribute;
+import iaik.pkcs.pkcs11.objects.BooleanAttribute;
+import iaik.pkcs.pkcs11.objects.ByteArrayAttribute;
+import iaik.pkcs.pkcs11.objects.CharArrayAttribute;
+import iaik.pkcs.pkcs11.objects.GenericTemplate;
+import iaik.pkcs.pkcs11.objects.LongAttribute;
+
+/**
+ * A snapshot of the object inventory of a token: the handle, class, key or
+ * certificate type, CKA_ID, CKA_LABEL and the main public attributes of all
+ * token objects. The snapshot can be written to a compact binary file after
+ * a scan and loaded again on the next start of the application, so that the
+ * objects do not have to be enumerated and read again.
+ * <p/>
+ * Before a loaded snapshot is used, {@link #isValid(Session, int)} checks
+ * cheaply whether it still matches the token: the token serial number and
+ * the set of object handles must be the same, and the attributes of a
+ * sample of modifiable objects must not have changed. Objects with
+ * CKA_MODIFIABLE set to false cannot change, so they need no probe. The
+ * remaining differences can be found in the background with
+ * {@link #revalidate(SessionPool, Executor)}, which re-reads only the
+ * modifiable, new and removed objects. A typical start looks like this:
+ * <pre><code>
+ *   TokenInventory inventory = TokenInventory.load(file);
+ *   if (!inventory.isValid(session, 16)) {
+ *     inventory = TokenInventory.scan(session);
+ *     inventory.save(file);
+ *   } else {
+ *     inventory.revalidate(pool, executor).thenAccept(...);
+ *   }
+ * </code></pre>
+ * Notice that object handles are only stable as long as the module keeps
+ * them; most modules keep them across restarts of the application, but not
+ * all do. The handle check of isValid detects handles which have been added
+ * or removed, and the probes detect changed attributes of modifiable
+ * objects; but a module which renumbers its objects in enumeration order
+ * may map an old handle to another object of the same set of handles
+ * without either check noticing. Do not use snapshots with such modules.
+ * <p/>
+ * Objects of this class are immutable.
+ *
+ * @invariants (tokenSerialNumber <> null) and (entries <> null)
+ */
+public class TokenInventory {
+
+  /**
+   * An object of the inventory.
+   *
+   * @invariants (attributes <> null)
+   */
+  public static final class Entry {
+
+    private final long objectHandle;
+
+    private final long objectClass;
+
+    private final long subtype;
+
+    private final boolean modifiable;
+
+    private final byte[] id;
+
+    private final String label;
+
+    /**
+     * The public byte array attributes; the key is the attribute type.
+     */
+    private final Map<Long, byte[]> attributes;
+
+    Entry(long objectHandle, long objectClass, long subtype,
+        boolean modifiable, byte[] id, String label,
+        Map<Long, byte[]> attributes) {
+      this.objectHandle = objectHandle;
+      this.objectClass = objectClass;
+      this.subtype = subtype;
+      this.modifiable = modifiable;
+      this.id = id;
+      this.label = label;
+      this.attributes = attributes;
+    }
+
+    /**
+     * Get the handle of the object.
+     *
+     * @return The object handle.
+     * @preconditions
+     * @postconditions
+     */
+    public long getObjectHandle() {
+      return objectHandle;
+    }
+
+    /**
+     * Get the class of the object; e.g. PKCS11Constants.CKO_PUBLIC_KEY.
+     *
+     * @return The object class.
+     * @preconditions
+     * @postconditions
+     */
+    public long getObjectClass() {
+      return objectClass;
+    }
+
+    /**
+     * Get the key type of a key or the certificate type of a certificate.
+     *
+     * @return The key or certificate type, or -1 for other objects.
+     * @preconditions
+     * @postconditions
+     */
+    public long getSubtype() {
+      return subtype;
+    }
+
+    /**
+     * Check, if the object can be modified; i.e. the value of
+     * CKA_MODIFIABLE.
+     *
+     * @return True, if the object can be modified.
+     * @preconditions
+     * @postconditions
+     */
+    public boolean isModifiable() {
+      return modifiable;
+    }
+
+    /**
+     * Get the CKA_ID of the object.
+     *
+     * @return A copy of the ID, or null if the object has none.
+     * @preconditions
+     * @postconditions
+     */
+    public byte[] getId() {
+      return (id != null) ? id.clone() : null;
+    }
+
+    /**
+     * Get the CKA_LABEL of the object.
+     *
+     * @return The label, or null if the object has none.
+     * @preconditions
+     * @postconditions
+     */
+    public String getLabel() {
+      return label;
+    }
+
+    /**
+     * Get the value of a public attribute; e.g. PKCS11Constants.CKA_MODULUS
+     * of an RSA public key or PKCS11Constants.CKA_SUBJECT of a certificate.
+     *
+     * @param attributeType
+     *          The attribute type.
+     * @return A copy of the value, or null if the inventory does not hold
+     *         this attribute for this object.
+     * @preconditions
+     * @postconditions
+     */
+    public byte[] getAttributeValue(long attributeType) {
+      byte[] value = attributes.get(attributeType);
+      return (value != null) ? value.clone() : null;
+    }
+
+    /**
+     * Check, if this entry describes the same object state as the given
+     * one.
+     */
+    boolean sameState(Entry other) {
+      if (objectClass != other.objectClass || subtype != other.subtype
+          || modifiable != other.modifiable || !Arrays.equals(id, other.id)
+          || !Util.objEquals(label, other.label)
+          || attributes.size() != other.attributes.size()) {
+        return false;
+      }
+      for (Map.Entry<Long, byte[]> attribute : attributes.entrySet()) {
+        if (!Arrays.equals(attribute.getValue(),
+            other.attributes.get(attribute.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the string representation of this object.
+     *
+     * @return the string representation of this object
+     */
+    @Override
+    public String toString() {
+      return Util.concatObjects("Handle: ", objectHandle,
+          ", Class: 0x", Long.toHexString(objectClass),
+          ", Subtype: 0x", Long.toHexString(subtype),
+          ", Modifiable: ", modifiable,
+          ", ID: ", (id != null) ? Util.toHex(id) : null,
+          ", Label: ", label);
+    }
+
+  }
+
+  /**
+   * The first bytes of a snapshot file.
+   */
+  private static final int MAGIC = 0x504b3131; // "PK11"
+
+  /**
+   * The version of the snapshot format.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * The attributes read for every object.
+   */
+  private static final long[] COMMON_ATTRIBUTES = {
+    PKCS11Constants.CKA_CLASS,
+    PKCS11Constants.CKA_MODIFIABLE,
+    PKCS11Constants.CKA_LABEL };
+
+  private static final long[] NO_ATTRIBUTES = new long[0];
+
+  /**
+   * The maximum number of objects accepted in a snapshot.
+   */
+  private static final int MAX_OBJECT_COUNT = 1 << 20;
+
+  /**
+   * The maximum length of a single value accepted in a snapshot.
+   */
+  private static final int MAX_VALUE_LENGTH = 1 << 24;
+
+  /**
+   * The encoded length of an object without values and attributes; i.e.
+   * handle, class, subtype, modifiable flag, the two value lengths and the
+   * attribute count.
+   */
+  private static final int MIN_ENTRY_LENGTH = 8 + 8 + 8 + 1 + 4 + 4 + 2;
+
+  /**
+   * The encoded length of an attribute without value; i.e. the type and
+   * the value length.
+   */
+  private static final int MIN_ATTRIBUTE_LENGTH = 8 + 4;
+
+  private final String tokenSerialNumber;
+
+  private final long creationTime;
+
+  /**
+   * The entries in find order; i.e. in the order C_FindObjects returned
+   * the handles.
+   */
+  private final Map<Long, Entry> entries;
+
+  private TokenInventory(String tokenSerialNumber, long creationTime,
+      Map<Long, Entry> entries) {
+    this.tokenSerialNumber = tokenSerialNumber;
+    this.creationTime = creationTime;
+    this.entries = entries;
+  }
+
+  /**
+   * Scans all token objects visible to the given session.
+   *
+   * @param session
+   *          The session to scan with. Should be logged in to include the
+   *          private objects.
+   * @return The new inventory.
+   * @exception TokenException
+   *              If finding or reading the objects failed.
+   * @preconditions (session <> null)
+   * @postconditions (result <> null)
+   */
+  public static TokenInventory scan(Session session) throws TokenException {
+    Util.requireNonNull("session", session);
+    String serialNumber = getSerialNumber(session);
+    long[] handles = findTokenObjects(session);
+
+    Map<Long, Entry> entries = new LinkedHashMap<>(handles.length * 2);
+    for (long handle : handles) {
+      Entry entry = readEntry(session, handle);
+      if (entry != null) {
+        entries.put(handle, entry);
+      }
+    }
+    return new TokenInventory(serialNumber, System.currentTimeMillis(),
+        entries);
+  }
+
+  /**
+   * Loads a snapshot written by {@link #save(Path)}.
+   *
+   * @param file
+   *          The snapshot file.
+   * @return The loaded inventory.
+   * @exception IOException
+   *              If reading the file failed or if it is no valid snapshot.
+   * @preconditions (file <> null)
+   * @postconditions (result <> null)
+   */
+  public static TokenInventory load(Path file) throws IOException {
+    Util.requireNonNull("file", file);
+    try (InputStream in =
+        new BufferedInputStream(Files.newInputStream(file))) {
+      return readFrom(in, Files.size(file));
+    }
+  }
+
+  /**
+   * Reads a snapshot written by {@link #writeTo(OutputStream)}.
+   *
+   * @param in
+   *          The stream to read from. Is not closed by this method.
+   * @return The read inventory.
+   * @exception IOException
+   *              If reading failed or if the data is no valid snapshot;
+   *              e.g. if a count or length exceeds the limits of the format.
+   * @preconditions (in <> null)
+   * @postconditions (result <> null)
+   */
+  public static TokenInventory readFrom(InputStream in) throws IOException {
+    Util.requireNonNull("in", in);
+    return readFrom(in, Long.MAX_VALUE);
+  }
+
+  /**
+   * Reads a snapshot and checks all counts and lengths against the limits
+   * of this class and against the given length of the snapshot; so a
+   * broken or forged snapshot cannot make us allocate huge arrays.
+   */
+  private static TokenInventory readFrom(InputStream in, long length)
+      throws IOException {
+    BoundedInputStream bounded = new BoundedInputStream(in, length);
+    DataInputStream data = new DataInputStream(bounded);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("no token inventory snapshot");
+    }
+    int version = data.readUnsignedShort();
+    if (version != VERSION) {
+      throw new IOException(
+          "unsupported token inventory snapshot version " + version);
+    }
+
+    String serialNumber = data.readUTF();
+    long creationTime = data.readLong();
+    int count = data.readInt();
+    if (count < 0 || count > MAX_OBJECT_COUNT
+        || (long) count * MIN_ENTRY_LENGTH > bounded.remaining) {
+      throw new IOException("invalid object count " + count);
+    }
+
+    // the count is not trusted for the capacity, the stream may be shorter
+    Map<Long, Entry> entries =
+        new LinkedHashMap<>(Math.min(count, 1024) * 2);
+    for (int i = 0; i < count; i++) {
+      long handle = data.readLong();
+      long objectClass = data.readLong();
+      long subtype = data.readLong();
+      boolean modifiable = data.readBoolean();
+      byte[] id = readBytes(data, bounded);
+      byte[] labelBytes = readBytes(data, bounded);
+      String label = (labelBytes != null)
+          ? new String(labelBytes, StandardCharsets.UTF_8) : null;
+      int attributeCount = data.readUnsignedShort();
+      if ((long) attributeCount * MIN_ATTRIBUTE_LENGTH > bounded.remaining) {
+        throw new IOException("invalid attribute count " + attributeCount);
+      }
+      Map<Long, byte[]> attributes = new HashMap<>(attributeCount * 2);
+      for (int j = 0; j < attributeCount; j++) {
+        long type = data.readLong();
+        attributes.put(type, readBytes(data, bounded));
+      }
+      entries.put(handle, new Entry(handle, objectClass, subtype, modifiable,
+          id, label, attributes));
+    }
+    return new TokenInventory(serialNumber, creationTime, entries);
+  }
+
+  /**
+   * Writes this snapshot to the given file. The snapshot is written to a
+   * temporary file first, which then replaces the given file; so a crash
+   * while writing does not leave a broken snapshot behind.
+   *
+   * @param file
+   *          The snapshot file.
+   * @exception IOException
+   *              If writing the file failed.
+   * @preconditions (file <> null)
+   * @postconditions
+   */
+  public void save(Path file) throws IOException {
+    Util.requireNonNull("file", file);
+    Path absoluteFile = file.toAbsolutePath();
+    Path tempFile = Files.createTempFile(absoluteFile.getParent(),
+        absoluteFile.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream out =
+          new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+        writeTo(out);
+      }
+      Files.move(tempFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Writes this snapshot to the given stream.
+   *
+   * @param out
+   *          The stream to write to. Is flushed but not closed by this
+   *          method.
+   * @exception IOException
+   *              If writing failed.
+   * @preconditions (out <> null)
+   * @postconditions
+   */
+  public void writeTo(OutputStream out) throws IOException {
+    Util.requireNonNull("out", out);
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeShort(VERSION);
+    data.writeUTF(tokenSerialNumber);
+    data.writeLong(creationTime);
+    data.writeInt(entries.size());
+    for (Entry entry : entries.values()) {
+      data.writeLong(entry.objectHandle);
+      data.writeLong(entry.objectClass);
+      data.writeLong(entry.subtype);
+      data.writeBoolean(entry.modifiable);
+      writeBytes(data, entry.id);
+      writeBytes(data, (entry.label != null)
+          ? entry.label.getBytes(StandardCharsets.UTF_8) : null);
+      data.writeShort(entry.attributes.size());
+      for (Map.Entry<Long, byte[]> attribute : entry.attributes.entrySet()) {
+        data.writeLong(attribute.getKey());
+        writeBytes(data, attribute.getValue());
+      }
+    }
+    data.flush();
+  }
+
+  /**
+   * Checks cheaply, if this snapshot still matches the token of the given
+   * session. The check compares the token serial number and the set of
+   * token object handles, and re-reads the attributes of up to the given
+   * number of randomly chosen modifiable objects.
+   *
+   * @param session
+   *          The session to check with. Must see the same objects as the
+   *          session used for the scan; i.e. be logged in if that one was.
+   * @param sampleSize
+   *          The maximum number of modifiable objects to re-read.
+   * @return True, if no difference has been found.
+   * @exception TokenException
+   *              If accessing the token failed.
+   * @preconditions (session <> null) and (sampleSize >= 0)
+   * @postconditions
+   */
+  public boolean isValid(Session session, int sampleSize)
+      throws TokenException {
+    Util.requireNonNull("session", session);
+    if (!tokenSerialNumber.equals(getSerialNumber(session))) {
+      return false;
+    }
+
+    long[] handles = findTokenObjects(session);
+    if (handles.length != entries.size()) {
+      return false;
+    }
+    for (long handle : handles) {
+      if (!entries.containsKey(handle)) {
+        return false;
+      }
+    }
+
+    List<Entry> modifiable = new ArrayList<>();
+    for (Entry entry : entries.values()) {
+      if (entry.modifiable) {
+        modifiable.add(entry);
+      }
+    }
+    Collections.shuffle(modifiable, new Random());
+    int probes = Math.min(sampleSize, modifiable.size());
+    for (int i = 0; i < probes; i++) {
+      Entry entry = modifiable.get(i);
+      Entry current = readEntry(session, entry.objectHandle);
+      if (current == null || !entry.sameState(current)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Brings this snapshot up to date in the background. Borrows a read-only
+   * session from the given pool, finds all token objects and reads only the
+   * objects which are new or modifiable; non-modifiable objects are taken
+   * from this snapshot, removed objects are dropped. If the token serial
+   * number does not match, the token is scanned completely.
+   *
+   * @param pool
+   *          The pool to borrow the session from.
+   * @param executor
+   *          The executor to run the revalidation with.
+   * @return A future for the updated inventory. It completes exceptionally
+   *         with a TokenException, if accessing the token failed.
+   * @preconditions (pool <> null) and (executor <> null)
+   * @postconditions (result <> null)
+   */
+  public CompletableFuture<TokenInventory> revalidate(final SessionPool pool,
+      Executor executor) {
+    Util.requireNonNull("pool", pool);
+    Util.requireNonNull("executor", executor);
+    return CompletableFuture.supplyAsync(new Supplier<TokenInventory>() {
+      @Override
+      public TokenInventory get() {
+        try (PooledSession session = pool.borrowSession(
+            Token.SessionReadWriteBehavior.RO_SESSION)) {
+          return revalidate(session);
+        } catch (TokenException ex) {
+          throw new CompletionException(ex);
+        }
+      }
+    }, executor);
+  }
+
+  /**
+   * Brings this snapshot up to date using the given session; see
+   * {@link #revalidate(SessionPool, Executor)}.
+   *
+   * @param session
+   *          The session to read with.
+   * @return The updated inventory. This object, if nothing has changed.
+   * @exception TokenException
+   *              If accessing the token failed.
+   * @preconditions (session <> null)
+   * @postconditions (result <> null)
+   */
+  public TokenInventory revalidate(Session session) throws TokenException {
+    Util.requireNonNull("session", session);
+    String serialNumber = getSerialNumber(session);
+    if (!tokenSerialNumber.equals(serialNumber)) {
+      return scan(session);
+    }
+
+    long[] handles = findTokenObjects(session);
+    boolean changed = (handles.length != entries.size());
+    Map<Long, Entry> newEntries = new LinkedHashMap<>(handles.length * 2);
+    for (long handle : handles) {
+      Entry entry = entries.get(handle);
+      if (entry == null || entry.modifiable) {
+        Entry current = readEntry(session, handle);
+        if (current == null) {
+          changed = true;
+          continue;
+        }
+        if (entry == null || !entry.sameState(current)) {
+          changed = true;
+        }
+        entry = current;
+      }
+      newEntries.put(handle, entry);
+    }
+
+    return changed ? new TokenInventory(serialNumber,
+        System.currentTimeMillis(), newEntries) : this;
+  }
+
+  /**
+   * Get the serial number of the token this snapshot was made of.
+   *
+   * @return The token serial number.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public String getTokenSerialNumber() {
+    return tokenSerialNumber;
+  }
+
+  /**
+   * Get the time when this snapshot was made.
+   *
+   * @return The creation time in milliseconds since 1970.
+   * @preconditions
+   * @postconditions
+   */
+  public long getCreationTime() {
+    return creationTime;
+  }
+
+  /**
+   * Get all objects of this snapshot.
+   *
+   * @return The objects in the order they have been found.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public List<Entry> getEntries() {
+    return Collections.unmodifiableList(new ArrayList<>(entries.values()));
+  }
+
+  /**
+   * Get the object with the given handle.
+   *
+   * @param objectHandle
+   *          The handle of the object.
+   * @return The object, or null if the snapshot has no object with this
+   *         handle.
+   * @preconditions
+   * @postconditions
+   */
+  public Entry getEntry(long objectHandle) {
+    return entries.get(objectHandle);
+  }
+
+  /**
+   * Get the number of objects of this snapshot.
+   *
+   * @return The number of objects.
+   * @preconditions
+   * @postconditions
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  private static String getSerialNumber(Session session)
+      throws TokenException {
+    String serialNumber =
+        session.getToken().getTokenInfo().getSerialNumber();
+    return (serialNumber != null) ? serialNumber.trim() : "";
+  }
+
+  private static long[] findTokenObjects(Session session)
+      throws TokenException {
+    GenericTemplate template = new GenericTemplate();
+    BooleanAttribute tokenAttribute = new BooleanAttribute(Attribute.TOKEN);
+    tokenAttribute.setBooleanValue(Boolean.TRUE);
+    template.addAttribute(tokenAttribute);
+    return session.findAllObjectHandles(template);
+  }
+
+  /**
+   * Reads the inventory attributes of the given object. First reads the
+   * attributes all objects have, then the ones of the object class, and for
+   * keys the ones of the key type.
+   *
+   * @return The entry, or null if the object has no class.
+   */
+  private static Entry readEntry(Session session, long objectHandle)
+      throws TokenException {
+    GenericTemplate common =
+        session.getAttributeValues(objectHandle, COMMON_ATTRIBUTES);
+    Long objectClass =
+        longValue(common.getAttribute(PKCS11Constants.CKA_CLASS));
+    if (objectClass == null) {
+      return null;
+    }
+    Attribute modifiableAttribute =
+        common.getAttribute(PKCS11Constants.CKA_MODIFIABLE);
+    // CKA_MODIFIABLE defaults to true
+    boolean modifiable = !(modifiableAttribute instanceof BooleanAttribute)
+        || !modifiableAttribute.isPresent() || !Boolean.FALSE.equals(
+            ((BooleanAttribute) modifiableAttribute).getBooleanValue());
+    String label = null;
+    Attribute labelAttribute =
+        common.getAttribute(PKCS11Constants.CKA_LABEL);
+    if (labelAttribute instanceof CharArrayAttribute
+        && labelAttribute.isPresent()) {
+      char[] chars = ((CharArrayAttribute) labelAttribute).getCharArrayValue();
+      label = (chars != null) ? new String(chars) : null;
+    }
+
+    long subtype = -1;
+    long subtypeAttribute = subtypeAttribute(objectClass);
+    byte[] id = null;
+    Map<Long, byte[]> attributes = new HashMap<>();
+    if (subtypeAttribute != -1) {
+      GenericTemplate classAttributes = session.getAttributeValues(
+          objectHandle, new long[] { subtypeAttribute,
+            PKCS11Constants.CKA_ID });
+      Long subtypeValue =
+          longValue(classAttributes.getAttribute(subtypeAttribute));
+      subtype = (subtypeValue != null) ? subtypeValue : -1;
+      id = byteArrayValue(classAttributes.getAttribute(PKCS11Constants.CKA_ID));
+
+      long[] publicTypes = publicAttributes(objectClass, subtype);
+      if (publicTypes.length > 0) {
+        GenericTemplate publicAttributes =
+            session.getAttributeValues(objectHandle, publicTypes);
+        for (long type : publicTypes) {
+          byte[] value = byteArrayValue(publicAttributes.getAttribute(type));
+          if (value != null) {
+            attributes.put(type, value);
+          }
+        }
+      }
+    }
+
+    return new Entry(objectHandle, objectClass, subtype, modifiable, id,
+        label, attributes);
+  }
+
+  /**
+   * Get the attribute holding the key or certificate type.
+   *
+   * @return The attribute type, or -1 if the class has no subtype.
+   */
+  private static long subtypeAttribute(long objectClass) {
+    if (objectClass == PKCS11Constants.CKO_PRIVATE_KEY
+        || objectClass == PKCS11Constants.CKO_PUBLIC_KEY
+        || objectClass == PKCS11Constants.CKO_SECRET_KEY) {
+      return PKCS11Constants.CKA_KEY_TYPE;
+    } else if (objectClass == PKCS11Constants.CKO_CERTIFICATE) {
+      return PKCS11Constants.CKA_CERTIFICATE_TYPE;
+    }
+    return -1;
+  }
+
+  /**
+   * Get the public byte array attributes kept for the given kind of object.
+   * These are the attributes needed to match keys and certificates without
+   * reading the objects; the certificate value is not kept, because it can
+   * be large.
+   */
+  private static long[] publicAttributes(long objectClass, long subtype) {
+    if (objectClass == PKCS11Constants.CKO_CERTIFICATE) {
+      return (subtype == PKCS11Constants.CKC_X_509) ? new long[] {
+        PKCS11Constants.CKA_SUBJECT,
+        PKCS11Constants.CKA_ISSUER,
+        PKCS11Constants.CKA_SERIAL_NUMBER } : NO_ATTRIBUTES;
+    }
+
+    boolean publicKey = (objectClass == PKCS11Constants.CKO_PUBLIC_KEY);
+    if (!publicKey && objectClass != PKCS11Constants.CKO_PRIVATE_KEY) {
+      return NO_ATTRIBUTES;
+    }
+
+    if (subtype == PKCS11Constants.CKK_RSA) {
+      return new long[] {
+        PKCS11Constants.CKA_SUBJECT,
+        PKCS11Constants.CKA_MODULUS,
+        PKCS11Constants.CKA_PUBLIC_EXPONENT };
+    } else if (subtype == PKCS11Constants.CKK_EC) {
+      return publicKey ? new long[] {
+        PKCS11Constants.CKA_SUBJECT,
+        PKCS11Constants.CKA_EC_PARAMS,
+        PKCS11Constants.CKA_EC_POINT } : new long[] {
+        PKCS11Constants.CKA_SUBJECT,
+        PKCS11Constants.CKA_EC_PARAMS };
+    } else if (subtype == PKCS11Constants.CKK_DSA) {
+      return publicKey ? new long[] {
+        PKCS11Constants.CKA_SUBJECT,
+        PKCS11Constants.CKA_PRIME,
+        PKCS11Constants.CKA_SUBPRIME,
+        PKCS11Constants.CKA_BASE,
+        PKCS11Constants.CKA_VALUE } : new long[] {
+        PKCS11Constants.CKA_SUBJECT,
+        PKCS11Constants.CKA_PRIME,
+        PKCS11Constants.CKA_SUBPRIME,
+        PKCS11Constants.CKA_BASE };
+    }
+    return new long[] { PKCS11Constants.CKA_SUBJECT };
+  }
+
+  private static Long longValue(Attribute attribute) {
+    if (attribute instanceof LongAttribute && attribute.isPresent()) {
+      return ((LongAttribute) attribute).getLongValue();
+    }
+    return null;
+  }
+
+  private static byte[] byteArrayValue(Attribute attribute) {
+    if (attribute instanceof ByteArrayAttribute && attribute.isPresent()) {
+      return ((ByteArrayAttribute) attribute).getByteArrayValue();
+    }
+    return null;
+  }
+
+  private static byte[] readBytes(DataInputStream data,
+      BoundedInputStream bounded) throws IOException {
+    int length = data.readInt();
+    if (length == -1) {
+      return null;
+    } else if (length < 0 || length > MAX_VALUE_LENGTH
+        || length > bounded.remaining) {
+      throw new IOException("invalid length " + length);
+    }
+    byte[] bytes = new byte[length];
+    data.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeBytes(DataOutputStream data, byte[] bytes)
+      throws IOException {
+    if (bytes == null) {
+      data.writeInt(-1);
+    } else {
+      data.writeInt(bytes.length);
+      data.write(bytes);
+    }
+  }
+
+  /**
+   * Counts down the bytes which are left of a snapshot of known length.
+   * Reading beyond the length fails with an EOFException.
+   */
+  private static final class BoundedInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = in.read(b, off, (int) Math.min(len, remaining));
+      if (read > 0) {
+        remaining -= read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // the caller closes the underlying stream
+    }
+
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Token Serial Number: ", tokenSerialNumber,
+        "\nCreation Time: ", new Date(creationTime),
+        "\nObjects: ", entries.size());
+  }
+
+}
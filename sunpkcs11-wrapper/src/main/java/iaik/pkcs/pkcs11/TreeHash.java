@@ -0,0 +1,497 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes a Merkle tree hash of large data, hashing the leaves in parallel
+ * on several sessions of a {@link SessionPool}. This uses all the cores of
+ * a token or HSM, while a single digestUpdate stream is limited by the
+ * throughput of one session.
+ * <p/>
+ * The tree is the Merkle hash tree of RFC 6962, section 2.1. The data is
+ * split into leaves of the given leaf size; only the last leaf may be
+ * shorter. For n leaves d[0] ... d[n-1] and the hash function H of the
+ * mechanism, the tree hash MTH is
+ * <pre>
+ *   MTH({})      = H()
+ *   MTH({d[0]})  = H(0x00 || d[0])
+ *   MTH(d[0:n])  = H(0x01 || MTH(d[0:k]) || MTH(d[k:n])),
+ *                  k the largest power of two smaller than n
+ * </pre>
+ * The prefixes 0x00 and 0x01 separate leaves from inner nodes, so that no
+ * inner node can be passed off as a leaf. The root depends on the leaf
+ * size, which must therefore be recorded with the root; e.g. in the
+ * manifest. Leaves and inner nodes are hashed on the token with
+ * digestSingle. E.g.
+ * <pre><code>
+ *   try (TreeHash treeHash = new TreeHash(pool,
+ *       Mechanism.get(PKCS11Constants.CKM_SHA256), 1024 * 1024, 8)) {
+ *     byte[] root = treeHash.hash(path);
+ *     ...
+ *     boolean valid = treeHash.verify(root, path);
+ *   }
+ * </code></pre>
+ *
+ * @see iaik.pkcs.pkcs11.SessionPool
+ * @invariants (pool <> null) and (mechanism <> null) and (leafSize > 0) and
+ *             (runner <> null)
+ */
+public class TreeHash implements AutoCloseable {
+
+  /**
+   * The default leaf size.
+   */
+  public static final int DEFAULT_LEAF_SIZE = 1024 * 1024;
+
+  /**
+   * The prefix of the hashed leaves.
+   */
+  private static final byte LEAF_PREFIX = 0x00;
+
+  /**
+   * The prefix of the hashed inner nodes.
+   */
+  private static final byte NODE_PREFIX = 0x01;
+
+  /**
+   * The maximum length of a hash, with some room to spare.
+   */
+  private static final int MAX_HASH_LENGTH = 128;
+
+  /**
+   * The number of hashes a worker claims at once.
+   */
+  private static final int BATCH_SIZE = 4;
+
+  private final SessionPool pool;
+
+  private final Mechanism mechanism;
+
+  private final int leafSize;
+
+  private final ParallelRunner runner;
+
+  /**
+   * One hash to compute by a worker.
+   */
+  private interface HashJob {
+
+    /**
+     * Puts the input of the hash with the given index into the given
+     * buffer.
+     *
+     * @return The length of the input.
+     */
+    int input(int index, byte[] buffer) throws IOException;
+
+    /**
+     * Stores the computed hash with the given index.
+     */
+    void output(int index, byte[] hash);
+
+  }
+
+  /**
+   * Constructor taking the pool, the digest mechanism, the leaf size and
+   * the number of sessions to use. Creates an own thread pool of the given
+   * size.
+   *
+   * @param pool
+   *          The pool to borrow the sessions from.
+   * @param mechanism
+   *          The digest mechanism; e.g. CKM_SHA256.
+   * @param leafSize
+   *          The number of bytes of each leaf.
+   * @param parallelism
+   *          The maximum number of sessions used at the same time.
+   * @preconditions (pool <> null) and (mechanism <> null) and
+   *                (leafSize > 0) and (parallelism > 0)
+   * @postconditions
+   */
+  public TreeHash(SessionPool pool, Mechanism mechanism, int leafSize,
+      int parallelism) {
+    this(pool, mechanism, leafSize,
+        new ParallelRunner(parallelism, "pkcs11-tree-hash"));
+  }
+
+  /**
+   * Constructor taking the pool, the digest mechanism, the leaf size, the
+   * number of sessions to use and the executor to run the workers with. The
+   * executor is not shut down by {@link #close()}.
+   *
+   * @param pool
+   *          The pool to borrow the sessions from.
+   * @param mechanism
+   *          The digest mechanism; e.g. CKM_SHA256.
+   * @param leafSize
+   *          The number of bytes of each leaf.
+   * @param parallelism
+   *          The maximum number of sessions used at the same time.
+   * @param executor
+   *          The executor to run the workers with.
+   * @preconditions (pool <> null) and (mechanism <> null) and
+   *                (leafSize > 0) and (parallelism > 0) and
+   *                (executor <> null)
+   * @postconditions
+   */
+  public TreeHash(SessionPool pool, Mechanism mechanism, int leafSize,
+      int parallelism, ExecutorService executor) {
+    this(pool, mechanism, leafSize,
+        new ParallelRunner(parallelism, executor));
+  }
+
+  private TreeHash(SessionPool pool, Mechanism mechanism, int leafSize,
+      ParallelRunner runner) {
+    this.pool = Util.requireNonNull("pool", pool);
+    this.mechanism = Util.requireNonNull("mechanism", mechanism);
+    this.leafSize = checkPositive("leafSize", leafSize);
+    this.runner = runner;
+  }
+
+  private static int checkPositive(String name, int value) {
+    if (value < 1) {
+      throw new IllegalArgumentException(name + " must be at least 1");
+    }
+    return value;
+  }
+
+  /**
+   * Get the leaf size.
+   *
+   * @return The number of bytes of each leaf.
+   * @preconditions
+   * @postconditions (result > 0)
+   */
+  public int getLeafSize() {
+    return leafSize;
+  }
+
+  /**
+   * Computes the tree hash of a part of the given array.
+   *
+   * @param data
+   *          The array holding the data.
+   * @param dataOfs
+   *          The offset of the data in data.
+   * @param dataLen
+   *          The length of the data.
+   * @return The root hash.
+   * @exception TokenException
+   *              If hashing failed, or if the calling thread has been
+   *              interrupted.
+   * @preconditions (data <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] hash(final byte[] data, final int dataOfs, final int dataLen)
+      throws TokenException {
+    Util.requireNonNull("data", data);
+    if (dataOfs < 0 || dataLen < 0 || dataLen > data.length - dataOfs) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    try {
+      return hash(dataLen, new LeafReader() {
+        @Override
+        public void read(long offset, byte[] buffer, int bufferOfs, int len) {
+          System.arraycopy(data, dataOfs + (int) offset,
+              buffer, bufferOfs, len);
+        }
+      });
+    } catch (IOException ex) {
+      // not thrown for arrays
+      throw new TokenException(ex);
+    }
+  }
+
+  /**
+   * Computes the tree hash of the contents of the given file.
+   *
+   * @param file
+   *          The file to hash.
+   * @return The root hash.
+   * @exception TokenException
+   *              If hashing failed, or if the calling thread has been
+   *              interrupted.
+   * @exception IOException
+   *              If reading the file failed.
+   * @preconditions (file <> null)
+   * @postconditions (result <> null)
+   */
+  public byte[] hash(Path file) throws TokenException, IOException {
+    Util.requireNonNull("file", file);
+    try (final FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.READ)) {
+      return hash(channel.size(), new LeafReader() {
+        @Override
+        public void read(long offset, byte[] buffer, int bufferOfs, int len)
+            throws IOException {
+          // positional reads are safe for concurrent use
+          ByteBuffer target = ByteBuffer.wrap(buffer, bufferOfs, len);
+          while (target.hasRemaining()) {
+            if (channel.read(target, offset + target.position() - bufferOfs)
+                < 0) {
+              throw new EOFException("file has been truncated");
+            }
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Checks the given root hash against the tree hash of a part of the given
+   * array.
+   *
+   * @param expectedRoot
+   *          The expected root hash.
+   * @param data
+   *          The array holding the data.
+   * @param dataOfs
+   *          The offset of the data in data.
+   * @param dataLen
+   *          The length of the data.
+   * @return True, if the root hash of the data equals expectedRoot.
+   * @exception TokenException
+   *              If hashing failed.
+   * @preconditions (expectedRoot <> null) and (data <> null)
+   * @postconditions
+   */
+  public boolean verify(byte[] expectedRoot, byte[] data, int dataOfs,
+      int dataLen) throws TokenException {
+    Util.requireNonNull("expectedRoot", expectedRoot);
+    return MessageDigest.isEqual(expectedRoot, hash(data, dataOfs, dataLen));
+  }
+
+  /**
+   * Checks the given root hash against the tree hash of the contents of the
+   * given file.
+   *
+   * @param expectedRoot
+   *          The expected root hash.
+   * @param file
+   *          The file to check.
+   * @return True, if the root hash of the file equals expectedRoot.
+   * @exception TokenException
+   *              If hashing failed.
+   * @exception IOException
+   *              If reading the file failed.
+   * @preconditions (expectedRoot <> null) and (file <> null)
+   * @postconditions
+   */
+  public boolean verify(byte[] expectedRoot, Path file)
+      throws TokenException, IOException {
+    Util.requireNonNull("expectedRoot", expectedRoot);
+    return MessageDigest.isEqual(expectedRoot, hash(file));
+  }
+
+  /**
+   * Reads the data of the leaves.
+   */
+  private interface LeafReader {
+
+    void read(long offset, byte[] buffer, int bufferOfs, int len)
+        throws IOException;
+
+  }
+
+  /**
+   * Hashes the leaves in parallel, and then the inner nodes level by level.
+   * Pairing the nodes of each level from the left and promoting an odd last
+   * node unchanged to the next level gives the tree of RFC 6962.
+   */
+  private byte[] hash(final long size, final LeafReader reader)
+      throws TokenException, IOException {
+    long leafCount = (size + leafSize - 1) / leafSize;
+    if (leafCount > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many leaves, use larger leaves");
+    }
+
+    if (leafCount == 0) {
+      try (PooledSession session = pool.borrowSession(
+          Token.SessionReadWriteBehavior.RO_SESSION)) {
+        return digest(session, new byte[0], 0);
+      }
+    }
+
+    final byte[][] nodes = new byte[(int) leafCount][];
+    runParallel(nodes.length, leafSize + 1, new HashJob() {
+      @Override
+      public int input(int index, byte[] buffer) throws IOException {
+        long offset = (long) index * leafSize;
+        int len = (int) Math.min(leafSize, size - offset);
+        buffer[0] = LEAF_PREFIX;
+        reader.read(offset, buffer, 1, len);
+        return len + 1;
+      }
+
+      @Override
+      public void output(int index, byte[] hash) {
+        nodes[index] = hash;
+      }
+    });
+
+    int count = nodes.length;
+    while (count > 1) {
+      final int pairs = count / 2;
+      final byte[][] level = Arrays.copyOf(nodes, count);
+      runParallel(pairs, 1 + 2 * MAX_HASH_LENGTH, new HashJob() {
+        @Override
+        public int input(int index, byte[] buffer) {
+          byte[] left = level[2 * index];
+          byte[] right = level[2 * index + 1];
+          buffer[0] = NODE_PREFIX;
+          System.arraycopy(left, 0, buffer, 1, left.length);
+          System.arraycopy(right, 0, buffer, 1 + left.length, right.length);
+          return 1 + left.length + right.length;
+        }
+
+        @Override
+        public void output(int index, byte[] hash) {
+          nodes[index] = hash;
+        }
+      });
+      if ((count & 1) != 0) {
+        nodes[pairs] = level[count - 1];
+      }
+      count = (count + 1) / 2;
+    }
+    return nodes[0];
+  }
+
+  /**
+   * Runs the given number of hash jobs on at most parallelism sessions.
+   */
+  private void runParallel(final int count, final int bufferSize,
+      final HashJob job) throws TokenException, IOException {
+    final AtomicInteger nextIndex = new AtomicInteger();
+    int workers = Math.min(runner.getParallelism(),
+        (count + BATCH_SIZE - 1) / BATCH_SIZE);
+    runner.run(workers, new ParallelRunner.Worker() {
+      @Override
+      public void work(AtomicBoolean failed)
+          throws TokenException, IOException {
+        hashJobs(count, bufferSize, job, nextIndex, failed);
+      }
+    });
+  }
+
+  /**
+   * The work of one worker: borrows a session and computes batches of
+   * hashes until all have been claimed or another worker failed.
+   */
+  private void hashJobs(int count, int bufferSize, HashJob job,
+      AtomicInteger nextIndex, AtomicBoolean failed)
+      throws TokenException, IOException {
+    PooledSession session = pool.borrowSession(
+        Token.SessionReadWriteBehavior.RO_SESSION);
+    byte[] buffer = new byte[bufferSize];
+    try {
+      while (!failed.get()) {
+        int start = nextIndex.getAndAdd(BATCH_SIZE);
+        if (start >= count) {
+          break;
+        }
+        int end = Math.min(start + BATCH_SIZE, count);
+        for (int i = start; i < end; i++) {
+          int len = job.input(i, buffer);
+          job.output(i, digest(session, buffer, len));
+        }
+      }
+    } catch (TokenException ex) {
+      failed.set(true);
+      if (PooledSession.isSessionBroken(ex)) {
+        session.invalidate();
+      }
+      throw ex;
+    } catch (IOException | RuntimeException ex) {
+      failed.set(true);
+      throw ex;
+    } finally {
+      Arrays.fill(buffer, (byte) 0);
+      session.close();
+    }
+  }
+
+  private byte[] digest(Session session, byte[] in, int inLen)
+      throws TokenException {
+    byte[] hash = new byte[MAX_HASH_LENGTH];
+    int len = session.digestSingle(mechanism, in, 0, inLen,
+        hash, 0, hash.length);
+    return Arrays.copyOf(hash, len);
+  }
+
+  /**
+   * Shuts down the executor, if it has been created by this object.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  @Override
+  public void close() {
+    runner.close();
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    return Util.concatObjects("Mechanism: ", mechanism.getMechanismCode(),
+        "\nLeaf Size: ", leafSize, "\n", runner);
+  }
+
+}
@@ -498,6 +498,39 @@ public abstract class Attribute {
 
   }
 
+  /**
+   * Creates a new attribute object for the given attribute type. The class
+   * of the new object is the one returned by {@link #getAttributeClass(Long)}.
+   * Attribute types unknown to this library get a ByteArrayAttribute,
+   * because the module returns their values as plain byte arrays.
+   *
+   * @param type
+   *          The PKCS#11 type of the attribute; e.g.
+   *          PKCS11Constants.CKA_LABEL.
+   * @return The new attribute object. Its present flag is false.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public static Attribute getInstance(long type) {
+    Long typeObject = new Long(type);
+    Class<?> implementation = getAttributeClass(typeObject);
+    if (implementation != null) {
+      try {
+        try {
+          return (Attribute) implementation.getConstructor(Long.class)
+              .newInstance(typeObject);
+        } catch (NoSuchMethodException ex) {
+          // e.g. KeyTypeAttribute, which knows its type
+          return (Attribute) implementation.newInstance();
+        }
+      } catch (ReflectiveOperationException ex) {
+        // fall through to the generic representation
+      }
+    }
+
+    return new ByteArrayAttribute(typeObject);
+  }
+
   /**
    * Set, if this attribute is really present in the associated object.
    * Does only make sense if used in combination with template objects.
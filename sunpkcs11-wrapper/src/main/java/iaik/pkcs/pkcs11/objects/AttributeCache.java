@@ -0,0 +1,458 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.objects;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import iaik.pkcs.pkcs11.constants.PKCS11Constants;
+import sun.security.pkcs11.wrapper.CK_ATTRIBUTE;
+import sun.security.pkcs11.wrapper.CK_DATE;
+
+/**
+ * A cache for the attribute values of token objects. The cache is optional
+ * and must be set for a module by the application; see
+ * {@link iaik.pkcs.pkcs11.Module#setAttributeCache(AttributeCache)}. If set,
+ * all attribute reads of PKCS11Object and its subclasses look into the cache
+ * first and only ask the module for attributes which are not cached. This
+ * includes the type probes of PKCS11Object.getInstance; so reading an object
+ * which is completely cached needs no call to the module at all.
+ * <p/>
+ * The cache keeps the values per slot and object handle. It holds at most
+ * a given number of objects and drops the least recently used object if
+ * this number is exceeded. Each object is dropped after the given time to
+ * live, so that changes made by other applications become visible after some
+ * time. Changes made through a Session of this library invalidate the cache
+ * immediately: setAttributeValues and destroyObject drop the object; login,
+ * logout and closeSession drop all objects of the slot, because they change
+ * which objects are visible.
+ * <p/>
+ * The cache hands out copies of the cached values, so modifying a read
+ * object does not modify the cache. The secret components of private and
+ * secret keys, like CKA_VALUE or CKA_PRIVATE_EXPONENT of extractable keys,
+ * are never cached; they are read from the module each time. The same holds
+ * for these attribute types, as long as the class of the object is not
+ * known to the cache.
+ *
+ * @invariants (entries <> null)
+ */
+@SuppressWarnings("restriction")
+public class AttributeCache {
+
+  /**
+   * The cached attributes of one object.
+   */
+  private static class CachedObject {
+
+    /**
+     * The time this entry was created.
+     */
+    private final long created = System.currentTimeMillis();
+
+    /**
+     * The cached attributes. The key is the attribute type.
+     */
+    private final Map<Long, CachedAttribute> attributes = new HashMap<>();
+
+  }
+
+  /**
+   * The cached state of one attribute.
+   */
+  private static class CachedAttribute {
+
+    /**
+     * A copy of the value read from the module, or null if the attribute
+     * is not present or sensitive.
+     */
+    private final CK_ATTRIBUTE ckAttribute;
+
+    private final boolean present;
+
+    private final boolean sensitive;
+
+    CachedAttribute(CK_ATTRIBUTE ckAttribute, boolean present,
+        boolean sensitive) {
+      this.ckAttribute = ckAttribute;
+      this.present = present;
+      this.sensitive = sensitive;
+    }
+
+  }
+
+  /**
+   * The maximum number of cached objects.
+   */
+  private final int maxObjects;
+
+  /**
+   * The time to live of a cached object in milliseconds.
+   */
+  private final long timeToLive;
+
+  /**
+   * The cached objects in access order. The key is made of the slot ID and
+   * the object handle.
+   */
+  private final LinkedHashMap<ObjectKey, CachedObject> entries;
+
+  /**
+   * The number of reads answered from this cache.
+   */
+  private long hits;
+
+  /**
+   * The number of reads which had to go to the module.
+   */
+  private long misses;
+
+  /**
+   * Identifies an object by its slot and handle.
+   */
+  private static final class ObjectKey {
+
+    private final long slotId;
+
+    private final long objectHandle;
+
+    ObjectKey(long slotId, long objectHandle) {
+      this.slotId = slotId;
+      this.objectHandle = objectHandle;
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof ObjectKey)) {
+        return false;
+      }
+
+      ObjectKey other = (ObjectKey) otherObject;
+      return (slotId == other.slotId) && (objectHandle == other.objectHandle);
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (slotId * 31 + objectHandle);
+    }
+
+  }
+
+  /**
+   * Constructor taking the size limit and the time to live.
+   *
+   * @param maxObjects
+   *          The maximum number of objects to cache.
+   * @param timeToLive
+   *          The time in milliseconds after which a cached object is read
+   *          from the module again.
+   * @preconditions (maxObjects > 0) and (timeToLive > 0)
+   * @postconditions
+   */
+  public AttributeCache(int maxObjects, long timeToLive) {
+    if (maxObjects < 1) {
+      throw new IllegalArgumentException("maxObjects must be at least 1");
+    }
+    if (timeToLive < 1) {
+      throw new IllegalArgumentException("timeToLive must be positive");
+    }
+
+    this.maxObjects = maxObjects;
+    this.timeToLive = timeToLive;
+    this.entries = new LinkedHashMap<ObjectKey, CachedObject>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<ObjectKey, CachedObject> eldest) {
+        return size() > AttributeCache.this.maxObjects;
+      }
+    };
+  }
+
+  /**
+   * Fills the given attributes from the cache, if all of them are cached.
+   *
+   * @param slotId
+   *          The ID of the slot of the object.
+   * @param objectHandle
+   *          The handle of the object.
+   * @param attributes
+   *          The attributes to fill.
+   * @return True, if all attributes have been filled. False, if at least one
+   *         attribute is not cached; the attributes are unchanged then.
+   * @preconditions (attributes <> null)
+   * @postconditions
+   */
+  synchronized boolean get(long slotId, long objectHandle,
+      Attribute[] attributes) {
+    ObjectKey key = new ObjectKey(slotId, objectHandle);
+    CachedObject entry = entries.get(key);
+    if (entry != null
+        && System.currentTimeMillis() - entry.created > timeToLive) {
+      entries.remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return false;
+    }
+
+    CachedAttribute[] cached = new CachedAttribute[attributes.length];
+    for (int i = 0; i < attributes.length; i++) {
+      cached[i] = entry.attributes.get(attributes[i].getType());
+      if (cached[i] == null) {
+        misses++;
+        return false;
+      }
+    }
+
+    for (int i = 0; i < attributes.length; i++) {
+      if (cached[i].ckAttribute != null) {
+        attributes[i].setCkAttribute(copy(cached[i].ckAttribute));
+      }
+      attributes[i].setPresent(cached[i].present);
+      attributes[i].setSensitive(cached[i].sensitive);
+    }
+    hits++;
+    return true;
+  }
+
+  /**
+   * Puts the current state of the given attributes into the cache.
+   *
+   * @param slotId
+   *          The ID of the slot of the object.
+   * @param objectHandle
+   *          The handle of the object.
+   * @param attributes
+   *          The attributes which have just been read from the module.
+   * @preconditions (attributes <> null)
+   * @postconditions
+   */
+  synchronized void put(long slotId, long objectHandle,
+      Attribute... attributes) {
+    ObjectKey key = new ObjectKey(slotId, objectHandle);
+    CachedObject entry = entries.get(key);
+    if (entry == null
+        || System.currentTimeMillis() - entry.created > timeToLive) {
+      entry = new CachedObject();
+      entries.put(key, entry);
+    }
+
+    Long objectClass = getObjectClass(entry, attributes);
+    for (Attribute attribute : attributes) {
+      if (isSecret(objectClass, attribute.getType())) {
+        continue;
+      }
+      CK_ATTRIBUTE ckAttribute = (attribute.isPresent()
+          && !attribute.isSensitive())
+          ? copy(attribute.getCkAttribute()) : null;
+      entry.attributes.put(attribute.getType(), new CachedAttribute(
+          ckAttribute, attribute.isPresent(), attribute.isSensitive()));
+    }
+  }
+
+  /**
+   * Get the object class from the given attributes or the cached ones.
+   *
+   * @return The object class, or null if it is not known.
+   */
+  private static Long getObjectClass(CachedObject entry,
+      Attribute[] attributes) {
+    for (Attribute attribute : attributes) {
+      if (attribute.getType().longValue() == PKCS11Constants.CKA_CLASS
+          && attribute.isPresent()) {
+        Object value = attribute.getCkAttribute().pValue;
+        if (value instanceof Long) {
+          return (Long) value;
+        }
+      }
+    }
+
+    CachedAttribute cached = entry.attributes.get(PKCS11Constants.CKA_CLASS);
+    if (cached != null && cached.ckAttribute != null
+        && cached.ckAttribute.pValue instanceof Long) {
+      return (Long) cached.ckAttribute.pValue;
+    }
+    return null;
+  }
+
+  /**
+   * Check, if the given attribute type holds secret key material for an
+   * object of the given class. For an unknown class, every attribute type
+   * which is secret for some keys counts as secret.
+   */
+  private static boolean isSecret(Long objectClass, long type) {
+    if (!PKCS11Object.isSecretComponent(type)) {
+      return false;
+    }
+    return objectClass == null
+        || objectClass.longValue() == PKCS11Constants.CKO_PRIVATE_KEY
+        || objectClass.longValue() == PKCS11Constants.CKO_SECRET_KEY
+        || objectClass.longValue() == PKCS11Constants.CKO_OTP_KEY;
+  }
+
+  /**
+   * Drops the cached attributes of the given object.
+   *
+   * @param slotId
+   *          The ID of the slot of the object.
+   * @param objectHandle
+   *          The handle of the object.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized void invalidate(long slotId, long objectHandle) {
+    entries.remove(new ObjectKey(slotId, objectHandle));
+  }
+
+  /**
+   * Drops the cached attributes of all objects of the given slot.
+   *
+   * @param slotId
+   *          The ID of the slot.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized void invalidateSlot(long slotId) {
+    Iterator<ObjectKey> keys = entries.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().slotId == slotId) {
+        keys.remove();
+      }
+    }
+  }
+
+  /**
+   * Drops all cached attributes.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  /**
+   * Get the number of currently cached objects.
+   *
+   * @return The number of cached objects.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Get the number of reads answered from this cache.
+   *
+   * @return The number of cache hits.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Get the number of reads which had to go to the module.
+   *
+   * @return The number of cache misses.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Makes a deep copy of the given attribute, so that the cached value
+   * cannot be modified through a read object.
+   */
+  private static CK_ATTRIBUTE copy(CK_ATTRIBUTE ckAttribute) {
+    CK_ATTRIBUTE copy = new CK_ATTRIBUTE();
+    copy.type = ckAttribute.type;
+    copy.pValue = copyValue(ckAttribute.pValue);
+    return copy;
+  }
+
+  private static Object copyValue(Object value) {
+    if (value instanceof byte[]) {
+      return ((byte[]) value).clone();
+    } else if (value instanceof char[]) {
+      return ((char[]) value).clone();
+    } else if (value instanceof long[]) {
+      return ((long[]) value).clone();
+    } else if (value instanceof CK_DATE) {
+      return ((CK_DATE) value).clone();
+    } else if (value instanceof CK_ATTRIBUTE[]) {
+      CK_ATTRIBUTE[] array = (CK_ATTRIBUTE[]) value;
+      CK_ATTRIBUTE[] arrayCopy = new CK_ATTRIBUTE[array.length];
+      for (int i = 0; i < array.length; i++) {
+        arrayCopy[i] = (array[i] != null) ? copy(array[i]) : null;
+      }
+      return arrayCopy;
+    } else {
+      // Boolean, Long and null are immutable
+      return value;
+    }
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public synchronized String toString() {
+    return "Cached Objects: " + entries.size() + " (max. " + maxObjects
+        + ")\nTime to Live: " + timeToLive + " ms\nHits: " + hits
+        + "\nMisses: " + misses;
+  }
+
+}
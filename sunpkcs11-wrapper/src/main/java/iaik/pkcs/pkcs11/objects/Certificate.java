@@ -448,7 +448,7 @@ public class Certificate extends Storage {
    * @postconditions (result <> null)
    */
   public LongAttribute getCertificateType() {
-    return certificateType;
+    return ensureRead(certificateType);
   }
 
   /**
@@ -459,7 +459,7 @@ public class Certificate extends Storage {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getTrusted() {
-    return trusted;
+    return ensureRead(trusted);
   }
 
   /**
@@ -470,7 +470,7 @@ public class Certificate extends Storage {
    * @postconditions (result <> null)
    */
   public LongAttribute getCertificateCategory() {
-    return certificateCategory;
+    return ensureRead(certificateCategory);
   }
 
   /**
@@ -481,7 +481,7 @@ public class Certificate extends Storage {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getCheckValue() {
-    return checkValue;
+    return ensureRead(checkValue);
   }
 
   /**
@@ -492,7 +492,7 @@ public class Certificate extends Storage {
    * @postconditions (result <> null)
    */
   public DateAttribute getStartDate() {
-    return startDate;
+    return ensureRead(startDate);
   }
 
   /**
@@ -503,7 +503,7 @@ public class Certificate extends Storage {
    * @postconditions (result <> null)
    */
   public DateAttribute getEndDate() {
-    return endDate;
+    return ensureRead(endDate);
   }
 
   /**
@@ -516,6 +516,7 @@ public class Certificate extends Storage {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return certificateType.hashCode();
   }
 
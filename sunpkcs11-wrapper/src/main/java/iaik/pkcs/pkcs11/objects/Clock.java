@@ -180,7 +180,7 @@ public class Clock extends HardwareFeature {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -193,6 +193,7 @@ public class Clock extends HardwareFeature {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return value.hashCode();
   }
 
@@ -195,7 +195,7 @@ public class DHParams extends DomainParameters {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPrime() {
-    return prime;
+    return ensureRead(prime);
   }
 
   /**
@@ -206,7 +206,7 @@ public class DHParams extends DomainParameters {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getBase() {
-    return base;
+    return ensureRead(base);
   }
 
   /**
@@ -217,7 +217,7 @@ public class DHParams extends DomainParameters {
    * @postconditions (result <> null)
    */
   public LongAttribute getPrimeBits() {
-    return primeBits;
+    return ensureRead(primeBits);
   }
 
   /**
@@ -196,7 +196,7 @@ public class DHPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPrime() {
-    return prime;
+    return ensureRead(prime);
   }
 
   /**
@@ -207,7 +207,7 @@ public class DHPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getBase() {
-    return base;
+    return ensureRead(base);
   }
 
   /**
@@ -218,7 +218,7 @@ public class DHPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
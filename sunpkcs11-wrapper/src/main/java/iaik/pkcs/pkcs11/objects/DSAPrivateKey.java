@@ -205,7 +205,7 @@ public class DSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPrime() {
-    return prime;
+    return ensureRead(prime);
   }
 
   /**
@@ -216,7 +216,7 @@ public class DSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSubprime() {
-    return subprime;
+    return ensureRead(subprime);
   }
 
   /**
@@ -227,7 +227,7 @@ public class DSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getBase() {
-    return base;
+    return ensureRead(base);
   }
 
   /**
@@ -238,7 +238,7 @@ public class DSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
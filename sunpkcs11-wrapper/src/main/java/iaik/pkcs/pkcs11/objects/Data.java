@@ -196,7 +196,7 @@ public class Data extends Storage {
    * @postconditions (result <> null)
    */
   public CharArrayAttribute getApplication() {
-    return application;
+    return ensureRead(application);
   }
 
   /**
@@ -208,7 +208,7 @@ public class Data extends Storage {
    */
   // CHECKSTYLE:SKIP
   public ByteArrayAttribute getObjectID() {
-    return objectID;
+    return ensureRead(objectID);
   }
 
   /**
@@ -219,7 +219,7 @@ public class Data extends Storage {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -232,6 +232,7 @@ public class Data extends Storage {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return application.hashCode() ^ objectID.hashCode()
         ^ value.hashCode();
   }
@@ -340,7 +340,7 @@ public class DomainParameters extends Storage {
    * @postconditions (result <> null)
    */
   public LongAttribute getKeyType() {
-    return keyType;
+    return ensureRead(keyType);
   }
 
   /**
@@ -353,6 +353,7 @@ public class DomainParameters extends Storage {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return keyType.hashCode() ^ local.hashCode();
   }
 
@@ -365,7 +366,7 @@ public class DomainParameters extends Storage {
    * @postconditions (result <> null)
    */
   public BooleanAttribute isLocal() {
-    return local;
+    return ensureRead(local);
   }
 
   /**
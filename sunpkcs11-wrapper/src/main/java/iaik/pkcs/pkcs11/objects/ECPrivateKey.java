@@ -193,7 +193,7 @@ public class ECPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getEcdsaParams() {
-    return ecdsaParams;
+    return ensureRead(ecdsaParams);
   }
 
   /**
@@ -204,7 +204,7 @@ public class ECPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -192,7 +192,7 @@ public class ECPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getEcdsaParams() {
-    return ecdsaParams;
+    return ensureRead(ecdsaParams);
   }
 
   /**
@@ -203,7 +203,7 @@ public class ECPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getEcPoint() {
-    return ecPoint;
+    return ensureRead(ecPoint);
   }
 
   /**
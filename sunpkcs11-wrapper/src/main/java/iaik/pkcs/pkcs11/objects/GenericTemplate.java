@@ -76,6 +76,49 @@ public class GenericTemplate extends PKCS11Object {
     attributeTable.clear();
   }
 
+  /**
+   * Reads only the given attributes of the object with the given handle and
+   * returns them in a new generic template. All attributes are fetched with
+   * a single C_GetAttributeValue call, if the module supports all of them.
+   * Attributes which the object does not have are contained in the template,
+   * but are not present. In contrast to PKCS11Object.getInstance, this
+   * method neither probes the type of the object nor reads any other
+   * attribute.
+   *
+   * @param session
+   *          The session to use for reading the attributes.
+   * @param objectHandle
+   *          The handle of the object.
+   * @param attributeTypes
+   *          The types of the attributes to read; e.g.
+   *          PKCS11Constants.CKA_ID.
+   * @return A template holding the requested attributes.
+   * @exception TokenException
+   *              If reading the attributes failed.
+   * @preconditions (session <> null) and (attributeTypes <> null)
+   * @postconditions (result <> null)
+   */
+  public static GenericTemplate getInstance(Session session,
+      long objectHandle, long[] attributeTypes) throws TokenException {
+    Util.requireNonNull("session", session);
+    Util.requireNonNull("attributeTypes", attributeTypes);
+
+    GenericTemplate template = new GenericTemplate();
+    template.setObjectHandle(objectHandle);
+
+    Attribute[] attributes = new Attribute[attributeTypes.length];
+    for (int i = 0; i < attributeTypes.length; i++) {
+      attributes[i] = Attribute.getInstance(attributeTypes[i]);
+      template.addAttribute(attributes[i]);
+    }
+
+    if (attributes.length > 0) {
+      PKCS11Object.getAttributeValues(session, objectHandle, attributes);
+    }
+
+    return template;
+  }
+
   /**
    * Adds an attribute to this generic search template.
    *
@@ -405,7 +405,7 @@ public class HardwareFeature extends PKCS11Object {
    * @postconditions (result <> null)
    */
   public LongAttribute getHardwareFeatureType() {
-    return hardwareFeatureType;
+    return ensureRead(hardwareFeatureType);
   }
 
   /**
@@ -418,6 +418,7 @@ public class HardwareFeature extends PKCS11Object {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return hardwareFeatureType.hashCode();
   }
 
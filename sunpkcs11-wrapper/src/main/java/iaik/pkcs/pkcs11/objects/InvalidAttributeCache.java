@@ -0,0 +1,246 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.objects;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import iaik.pkcs.pkcs11.Util;
+
+/**
+ * Remembers which attribute types a module does not support for which kind
+ * of object; i.e. for which the module answered
+ * CKR_ATTRIBUTE_TYPE_INVALID. Each module has one instance of this class,
+ * see {@link iaik.pkcs.pkcs11.Module#getInvalidAttributeCache()}.
+ * <p/>
+ * When the objects of a kind are read, the learned attribute types are left
+ * out of the batched C_GetAttributeValue call and are just marked as not
+ * present. So only the first object of a kind pays for the fallback, all
+ * later objects are read with a single call again.
+ * <p/>
+ * The kind of an object is its Java class; for the classes of this package
+ * it stands for the object class and the key, certificate or hardware feature
+ * type; e.g. RSAPrivateKey for CKO_PRIVATE_KEY and CKK_RSA.
+ *
+ * @invariants (invalidTypes <> null)
+ */
+public class InvalidAttributeCache {
+
+  /**
+   * The learned attribute types per kind of object.
+   */
+  private final ConcurrentHashMap<Class<?>, Set<Long>> invalidTypes =
+      new ConcurrentHashMap<>();
+
+  /**
+   * The number of attribute reads which were left out because of this
+   * cache.
+   */
+  private final AtomicLong skippedReads = new AtomicLong();
+
+  /**
+   * True, if this cache is used.
+   */
+  private volatile boolean enabled = true;
+
+  /**
+   * Check, if this cache is used.
+   *
+   * @return True, if this cache is used.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Switches this cache on or off. Switching it off does not clear the
+   * learned types.
+   *
+   * @param enabled
+   *          True to use this cache.
+   * @preconditions
+   * @postconditions
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * Check, if the given attribute type is known to be invalid for the given
+   * kind of object. Counts the call as skipped read, if so.
+   *
+   * @param objectKind
+   *          The kind of object.
+   * @param attributeType
+   *          The attribute type.
+   * @return True, if this cache is enabled and the attribute type has been
+   *         learned as invalid for the kind of object.
+   * @preconditions (objectKind <> null)
+   * @postconditions
+   */
+  public boolean isInvalid(Class<?> objectKind, long attributeType) {
+    if (!enabled) {
+      return false;
+    }
+
+    Set<Long> types = invalidTypes.get(objectKind);
+    if (types != null && types.contains(attributeType)) {
+      skippedReads.incrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Learns that the given attribute type is invalid for the given kind of
+   * object. Has no effect, if this cache is disabled.
+   *
+   * @param objectKind
+   *          The kind of object.
+   * @param attributeType
+   *          The attribute type.
+   * @preconditions (objectKind <> null)
+   * @postconditions
+   */
+  public void addInvalid(Class<?> objectKind, long attributeType) {
+    Util.requireNonNull("objectKind", objectKind);
+    if (!enabled) {
+      return;
+    }
+
+    Set<Long> types = invalidTypes.get(objectKind);
+    if (types == null) {
+      Set<Long> newTypes =
+          Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+      types = invalidTypes.putIfAbsent(objectKind, newTypes);
+      if (types == null) {
+        types = newTypes;
+      }
+    }
+    types.add(attributeType);
+  }
+
+  /**
+   * Get the attribute types learned as invalid for the given kind of object.
+   *
+   * @param objectKind
+   *          The kind of object.
+   * @return A sorted copy of the learned attribute types. Empty, if nothing
+   *         has been learned.
+   * @preconditions (objectKind <> null)
+   * @postconditions (result <> null)
+   */
+  public Set<Long> getInvalidAttributeTypes(Class<?> objectKind) {
+    Set<Long> types = invalidTypes.get(objectKind);
+    return (types == null) ? new TreeSet<Long>() : new TreeSet<>(types);
+  }
+
+  /**
+   * Get all learned attribute types.
+   *
+   * @return A copy of the learned attribute types per kind of object.
+   * @preconditions
+   * @postconditions (result <> null)
+   */
+  public Map<Class<?>, Set<Long>> getInvalidAttributeTypes() {
+    Map<Class<?>, Set<Long>> copy = new HashMap<>();
+    for (Map.Entry<Class<?>, Set<Long>> entry : invalidTypes.entrySet()) {
+      copy.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+    }
+    return copy;
+  }
+
+  /**
+   * Get the number of attribute reads which were left out because of this
+   * cache.
+   *
+   * @return The number of skipped attribute reads.
+   * @preconditions
+   * @postconditions
+   */
+  public long getSkippedReads() {
+    return skippedReads.get();
+  }
+
+  /**
+   * Forgets all learned attribute types; e.g. after a firmware update of the
+   * device.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public void clear() {
+    invalidTypes.clear();
+    skippedReads.set(0);
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(256);
+    sb.append("Enabled: ").append(enabled);
+    sb.append("\nSkipped Reads: ").append(skippedReads.get());
+    for (Map.Entry<Class<?>, Set<Long>> entry
+        : getInvalidAttributeTypes().entrySet()) {
+      sb.append("\n").append(entry.getKey().getSimpleName()).append(":");
+      for (Long type : entry.getValue()) {
+        String name = Attribute.getAttributeName(type);
+        sb.append(" ").append((name != null)
+            ? name : "0x" + Long.toHexString(type));
+      }
+    }
+    return sb.toString();
+  }
+
+}
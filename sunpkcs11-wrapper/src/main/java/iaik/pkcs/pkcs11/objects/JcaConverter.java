@@ -0,0 +1,464 @@
+// Copyright (c) 2002 Graz University of Technology. All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice,
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation
+//    and/or other materials provided with the distribution.
+//
+// 3. The end-user documentation included with the redistribution, if any, must
+//    include the following acknowledgment:
+//
+//    "This product includes software developed by IAIK of Graz University of
+//     Technology."
+//
+//    Alternately, this acknowledgment may appear in the software itself, if and
+//    wherever such third-party acknowledgments normally appear.
+//
+// 4. The names "Graz University of Technology" and "IAIK of Graz University of
+//    Technology" must not be used to endorse or promote products derived from
+//    this software without prior written permission.
+//
+// 5. Products derived from this software may not be called "IAIK PKCS Wrapper",
+//    nor may "IAIK" appear in their name, without prior written permission of
+//    Graz University of Technology.
+//
+// THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESSED OR IMPLIED
+// WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+// WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+// PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE LICENSOR BE
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY,
+// OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+// PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA,
+// OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+// ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+// OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY
+// OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+
+package iaik.pkcs.pkcs11.objects;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.DSAPublicKeySpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.spec.DHPublicKeySpec;
+
+import iaik.pkcs.pkcs11.Util;
+
+/**
+ * Converts public keys and X.509 certificates of a token into their JCA
+ * representations; i.e. into java.security.PublicKey and
+ * java.security.cert.X509Certificate objects. The results are cached per
+ * slot, object handle and converted attribute values, so that an object is
+ * parsed only once as long as its values do not change. Decoded
+ * named-curve CKA_EC_PARAMS are cached separately, since many keys share
+ * the same few curves.
+ * <p/>
+ * The cache holds at most the given number of converted objects and drops
+ * the least recently used ones. Since the key includes the values
+ * themselves, which are compared byte by byte, a handle which is reused for
+ * another object does not return a stale result. The cache keeps a copy of
+ * the values of each cached object. All methods of this class are
+ * thread-safe.
+ *
+ * @invariants (converted <> null)
+ */
+public class JcaConverter {
+
+  /**
+   * The maximum number of decoded EC parameters to keep.
+   */
+  private static final int MAX_EC_PARAMETERS = 64;
+
+  /**
+   * Identifies a converted object by its slot, its handle, its kind and the
+   * converted values. The values are compared as a whole, so that a
+   * changed object never matches the conversion of its old values.
+   */
+  private static final class CacheKey {
+
+    private final long slotId;
+
+    private final long objectHandle;
+
+    private final Class<?> kind;
+
+    private final byte[][] values;
+
+    private final int hashCode;
+
+    CacheKey(long slotId, long objectHandle, Class<?> kind, byte[][] values) {
+      this.slotId = slotId;
+      this.objectHandle = objectHandle;
+      this.kind = kind;
+      this.values = new byte[values.length][];
+      for (int i = 0; i < values.length; i++) {
+        this.values[i] = values[i].clone();
+      }
+      this.hashCode = (int) ((slotId * 31 + objectHandle) * 31)
+          ^ kind.hashCode() ^ Arrays.deepHashCode(this.values);
+    }
+
+    @Override
+    public boolean equals(Object otherObject) {
+      if (this == otherObject) {
+        return true;
+      } else if (!(otherObject instanceof CacheKey)) {
+        return false;
+      }
+
+      CacheKey other = (CacheKey) otherObject;
+      return (slotId == other.slotId) && (objectHandle == other.objectHandle)
+          && (kind == other.kind) && Arrays.deepEquals(values, other.values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+  }
+
+  /**
+   * The converted objects in access order.
+   */
+  private final LinkedHashMap<CacheKey, Object> converted;
+
+  /**
+   * The decoded EC parameters; the key is the encoding.
+   */
+  private final ConcurrentHashMap<ByteBuffer, ECParameterSpec> ecParameters =
+      new ConcurrentHashMap<>();
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * Constructor taking the maximum number of converted objects to cache.
+   *
+   * @param maxObjects
+   *          The maximum number of converted objects to cache.
+   * @preconditions (maxObjects > 0)
+   * @postconditions
+   */
+  public JcaConverter(final int maxObjects) {
+    if (maxObjects < 1) {
+      throw new IllegalArgumentException("maxObjects must be at least 1");
+    }
+
+    this.converted = new LinkedHashMap<CacheKey, Object>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(
+          Map.Entry<CacheKey, Object> eldest) {
+        return size() > maxObjects;
+      }
+    };
+  }
+
+  /**
+   * Converts the given public key object. Supported are RSA, EC, DSA and
+   * DH (including X9.42 DH) public keys.
+   *
+   * @param slotId
+   *          The ID of the slot the key object belongs to.
+   * @param key
+   *          The public key object. Its attributes must have been read.
+   * @return The JCA public key.
+   * @exception InvalidKeySpecException
+   *              If the key type is not supported or if the attributes
+   *              are missing or invalid.
+   * @preconditions (key <> null)
+   * @postconditions (result <> null)
+   */
+  public java.security.PublicKey toPublicKey(long slotId, PublicKey key)
+      throws InvalidKeySpecException {
+    Util.requireNonNull("key", key);
+
+    byte[][] values;
+    if (key instanceof RSAPublicKey) {
+      RSAPublicKey rsaKey = (RSAPublicKey) key;
+      values = values(rsaKey.getModulus(), rsaKey.getPublicExponent());
+    } else if (key instanceof ECPublicKey) {
+      ECPublicKey ecKey = (ECPublicKey) key;
+      values = values(ecKey.getEcdsaParams(), ecKey.getEcPoint());
+    } else if (key instanceof DSAPublicKey) {
+      DSAPublicKey dsaKey = (DSAPublicKey) key;
+      values = values(dsaKey.getPrime(), dsaKey.getSubprime(),
+          dsaKey.getBase(), dsaKey.getValue());
+    } else if (key instanceof DHPublicKey) {
+      DHPublicKey dhKey = (DHPublicKey) key;
+      values = values(dhKey.getPrime(), dhKey.getBase(), dhKey.getValue());
+    } else {
+      throw new InvalidKeySpecException("unsupported key type "
+          + key.getClass().getName());
+    }
+
+    CacheKey cacheKey = new CacheKey(slotId, key.getObjectHandle(),
+        key.getClass(), values);
+    Object cached = lookup(cacheKey);
+    if (cached != null) {
+      return (java.security.PublicKey) cached;
+    }
+
+    String algorithm;
+    KeySpec keySpec;
+    if (key instanceof RSAPublicKey) {
+      algorithm = "RSA";
+      keySpec = new RSAPublicKeySpec(new BigInteger(1, values[0]),
+          new BigInteger(1, values[1]));
+    } else if (key instanceof ECPublicKey) {
+      algorithm = "EC";
+      ECParameterSpec parameters = toECParameterSpec(values[0]);
+      keySpec = new ECPublicKeySpec(toECPoint(values[1], parameters),
+          parameters);
+    } else if (key instanceof DSAPublicKey) {
+      algorithm = "DSA";
+      keySpec = new DSAPublicKeySpec(new BigInteger(1, values[3]),
+          new BigInteger(1, values[0]), new BigInteger(1, values[1]),
+          new BigInteger(1, values[2]));
+    } else {
+      algorithm = "DH";
+      keySpec = new DHPublicKeySpec(new BigInteger(1, values[2]),
+          new BigInteger(1, values[0]), new BigInteger(1, values[1]));
+    }
+
+    java.security.PublicKey publicKey;
+    try {
+      publicKey = KeyFactory.getInstance(algorithm).generatePublic(keySpec);
+    } catch (InvalidKeySpecException ex) {
+      throw ex;
+    } catch (GeneralSecurityException ex) {
+      throw new InvalidKeySpecException(ex);
+    }
+
+    store(cacheKey, publicKey);
+    return publicKey;
+  }
+
+  /**
+   * Converts the given certificate object by parsing its CKA_VALUE.
+   *
+   * @param slotId
+   *          The ID of the slot the certificate object belongs to.
+   * @param certificate
+   *          The certificate object. Its attributes must have been read.
+   * @return The JCA certificate.
+   * @exception CertificateException
+   *              If the certificate has no value or cannot be parsed.
+   * @preconditions (certificate <> null)
+   * @postconditions (result <> null)
+   */
+  public X509Certificate toCertificate(long slotId,
+      X509PublicKeyCertificate certificate) throws CertificateException {
+    Util.requireNonNull("certificate", certificate);
+    byte[] encoded = value(certificate.getValue());
+    if (encoded == null) {
+      throw new CertificateException("certificate has no value");
+    }
+
+    CacheKey cacheKey = new CacheKey(slotId, certificate.getObjectHandle(),
+        X509PublicKeyCertificate.class, new byte[][] { encoded });
+    Object cached = lookup(cacheKey);
+    if (cached != null) {
+      return (X509Certificate) cached;
+    }
+
+    X509Certificate x509Certificate = (X509Certificate) CertificateFactory
+        .getInstance("X.509")
+        .generateCertificate(new ByteArrayInputStream(encoded));
+    store(cacheKey, x509Certificate);
+    return x509Certificate;
+  }
+
+  /**
+   * Decodes the given CKA_EC_PARAMS. Named curves and explicit parameters
+   * supported by the JCA providers are accepted. The decoded parameters are
+   * cached.
+   *
+   * @param ecParams
+   *          The DER encoding of the EC parameters.
+   * @return The decoded parameters.
+   * @exception InvalidKeySpecException
+   *              If the parameters cannot be decoded.
+   * @preconditions (ecParams <> null)
+   * @postconditions (result <> null)
+   */
+  public ECParameterSpec toECParameterSpec(byte[] ecParams)
+      throws InvalidKeySpecException {
+    Util.requireNonNull("ecParams", ecParams);
+    ByteBuffer key = ByteBuffer.wrap(ecParams.clone());
+    ECParameterSpec parameters = ecParameters.get(key);
+    if (parameters != null) {
+      return parameters;
+    }
+
+    try {
+      AlgorithmParameters algorithmParameters =
+          AlgorithmParameters.getInstance("EC");
+      algorithmParameters.init(ecParams);
+      parameters = algorithmParameters.getParameterSpec(
+          ECParameterSpec.class);
+    } catch (Exception ex) {
+      throw new InvalidKeySpecException("cannot decode EC parameters", ex);
+    }
+
+    if (ecParameters.size() < MAX_EC_PARAMETERS) {
+      ecParameters.putIfAbsent(key, parameters);
+    }
+    return parameters;
+  }
+
+  /**
+   * Decodes the given CKA_EC_POINT. PKCS#11 defines the value as DER
+   * encoded OCTET STRING holding the point, but some modules return the
+   * plain point; both forms are accepted. Only uncompressed points are
+   * supported.
+   *
+   * @param ecPoint
+   *          The value of CKA_EC_POINT.
+   * @param parameters
+   *          The parameters of the curve.
+   * @return The decoded point.
+   * @exception InvalidKeySpecException
+   *              If the point cannot be decoded.
+   * @preconditions (ecPoint <> null) and (parameters <> null)
+   * @postconditions (result <> null)
+   */
+  public static ECPoint toECPoint(byte[] ecPoint, ECParameterSpec parameters)
+      throws InvalidKeySpecException {
+    Util.requireNonNull("ecPoint", ecPoint);
+    Util.requireNonNull("parameters", parameters);
+    int fieldLength =
+        (parameters.getCurve().getField().getFieldSize() + 7) / 8;
+    int pointLength = 1 + 2 * fieldLength;
+
+    byte[] point = ecPoint;
+    if (point.length != pointLength && point.length > 2 && point[0] == 0x04) {
+      // strip the OCTET STRING header
+      int length = point[1] & 0xff;
+      int offset = 2;
+      if (length > 0x80) {
+        int lengthBytes = length & 0x7f;
+        length = 0;
+        for (int i = 0; i < lengthBytes && offset < point.length; i++) {
+          length = (length << 8) | (point[offset++] & 0xff);
+        }
+      }
+      if (offset + length == point.length) {
+        point = Arrays.copyOfRange(point, offset, point.length);
+      }
+    }
+
+    if (point.length != pointLength || point[0] != 0x04) {
+      throw new InvalidKeySpecException(
+          "only uncompressed EC points are supported");
+    }
+    return new ECPoint(
+        new BigInteger(1, Arrays.copyOfRange(point, 1, 1 + fieldLength)),
+        new BigInteger(1, Arrays.copyOfRange(point, 1 + fieldLength,
+            pointLength)));
+  }
+
+  /**
+   * Drops all cached conversions.
+   *
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized void clear() {
+    converted.clear();
+    ecParameters.clear();
+  }
+
+  /**
+   * Get the number of conversions answered from the cache.
+   *
+   * @return The number of cache hits.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Get the number of conversions which had to parse the values.
+   *
+   * @return The number of cache misses.
+   * @preconditions
+   * @postconditions
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private synchronized Object lookup(CacheKey key) {
+    Object cached = converted.get(key);
+    if (cached != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return cached;
+  }
+
+  private synchronized void store(CacheKey key, Object value) {
+    converted.put(key, value);
+  }
+
+  private static byte[][] values(ByteArrayAttribute... attributes)
+      throws InvalidKeySpecException {
+    byte[][] values = new byte[attributes.length][];
+    for (int i = 0; i < attributes.length; i++) {
+      values[i] = value(attributes[i]);
+      if (values[i] == null) {
+        throw new InvalidKeySpecException("missing attribute "
+            + Attribute.getAttributeName(attributes[i].getType()));
+      }
+    }
+    return values;
+  }
+
+  private static byte[] value(ByteArrayAttribute attribute) {
+    return (attribute != null && attribute.isPresent())
+        ? attribute.getByteArrayValue() : null;
+  }
+
+  /**
+   * Returns the string representation of this object.
+   *
+   * @return the string representation of this object
+   */
+  @Override
+  public synchronized String toString() {
+    return Util.concatObjects("Cached Conversions: ", converted.size(),
+        "\nCached EC Parameters: ", ecParameters.size(),
+        "\nHits: ", hits, "\nMisses: ", misses);
+  }
+
+}
@@ -516,7 +516,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public LongAttribute getKeyType() {
-    return keyType;
+    return ensureRead(keyType);
   }
 
   /**
@@ -527,7 +527,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getId() {
-    return id;
+    return ensureRead(id);
   }
 
   /**
@@ -538,7 +538,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public DateAttribute getStartDate() {
-    return startDate;
+    return ensureRead(startDate);
   }
 
   /**
@@ -549,7 +549,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public DateAttribute getEndDate() {
-    return endDate;
+    return ensureRead(endDate);
   }
 
   /**
@@ -560,7 +560,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getDerive() {
-    return derive;
+    return ensureRead(derive);
   }
 
   /**
@@ -572,7 +572,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getLocal() {
-    return local;
+    return ensureRead(local);
   }
 
   /**
@@ -584,7 +584,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public MechanismAttribute getKeyGenMechanism() {
-    return keyGenMechanism;
+    return ensureRead(keyGenMechanism);
   }
 
   /**
@@ -597,7 +597,7 @@ public class Key extends Storage {
    * @postconditions (result <> null)
    */
   public MechanismArrayAttribute getAllowedMechanisms() {
-    return allowedMechanisms;
+    return ensureRead(allowedMechanisms);
   }
 
   /**
@@ -610,6 +610,7 @@ public class Key extends Storage {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return keyType.hashCode() ^ id.hashCode();
   }
 
@@ -163,7 +163,7 @@ public class Mechanism extends PKCS11Object {
    * @return returns the mechanism type of this mechanism object.
    */
   public LongAttribute getMechanismType() {
-    return mechanismType;
+    return ensureRead(mechanismType);
   }
 
   /**
@@ -188,6 +188,7 @@ public class Mechanism extends PKCS11Object {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return mechanismType.hashCode();
   }
 }
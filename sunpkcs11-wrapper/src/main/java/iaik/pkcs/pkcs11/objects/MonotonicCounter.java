@@ -198,7 +198,7 @@ public class MonotonicCounter extends HardwareFeature {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getHasReset() {
-    return hasReset;
+    return ensureRead(hasReset);
   }
 
   /**
@@ -209,7 +209,7 @@ public class MonotonicCounter extends HardwareFeature {
    * @postconditions (result <> null)
    */
   public BooleanAttribute isResetOnInit() {
-    return resetOnInit;
+    return ensureRead(resetOnInit);
   }
 
   /**
@@ -220,7 +220,7 @@ public class MonotonicCounter extends HardwareFeature {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -233,6 +233,7 @@ public class MonotonicCounter extends HardwareFeature {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return resetOnInit.hashCode() ^ hasReset.hashCode() ^ value.hashCode();
   }
 
@@ -42,13 +42,21 @@
 
 package iaik.pkcs.pkcs11.objects;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 //import java.util.Collections;
 import iaik.pkcs.pkcs11.Session;
 import iaik.pkcs.pkcs11.TokenException;
+import iaik.pkcs.pkcs11.TokenRuntimeException;
 import iaik.pkcs.pkcs11.UnsupportedAttributeException;
 import iaik.pkcs.pkcs11.Util;
 import iaik.pkcs.pkcs11.constants.PKCS11Constants;
@@ -205,6 +213,56 @@ public class PKCS11Object {
    */
   protected long objectHandle = -1;
 
+  /**
+   * While the attributes of a lazily loaded object are being collected, this
+   * holds the attribute groups which readAttributes(Session) would read.
+   */
+  private static final ThreadLocal<List<Attribute[]>> recordedReads =
+      new ThreadLocal<>();
+
+  /**
+   * The number of C_GetAttributeValue calls made by this class.
+   */
+  private static final AtomicLong attributeReadCount = new AtomicLong();
+
+  /**
+   * The session to read the attributes of a lazily loaded object with, or
+   * null if all attributes have been read.
+   */
+  private Session lazySession;
+
+  /**
+   * Maps each attribute which has not been read yet to the group of
+   * attributes it is read together with. Null, if all attributes have been
+   * read.
+   */
+  private volatile Map<Attribute, Attribute[]> pendingAttributes;
+
+  /**
+   * The read plans of the object classes of this package. A read plan holds
+   * the types of all attributes readAttributes(Session) reads for a class,
+   * split into the public attributes and the secret key components. The key
+   * of this table is the Java class of the object.
+   */
+  private static final Map<Class<?>, long[][]> readPlans =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Marks classes for which no read plan can be used.
+   */
+  private static final long[][] NO_READ_PLAN = new long[0][];
+
+  /**
+   * The attribute types of the secret components of private and secret keys.
+   * These are read separately, because reading them fails for sensitive or
+   * unextractable keys.
+   */
+  private static final long[] SECRET_COMPONENTS = new long[] {
+    PKCS11Constants.CKA_VALUE, PKCS11Constants.CKA_PRIVATE_EXPONENT,
+    PKCS11Constants.CKA_PRIME_1, PKCS11Constants.CKA_PRIME_2,
+    PKCS11Constants.CKA_EXPONENT_1, PKCS11Constants.CKA_EXPONENT_2,
+    PKCS11Constants.CKA_COEFFICIENT };
+
   /**
    * The default constructor. An application use this constructor to
    * instantiate an object that serves as a template. It may also be useful
@@ -224,6 +282,9 @@ public class PKCS11Object {
    * The getInstance method also uses this constructor, if it can not
    * determine the class type of the object or if the type class is a vendor
    * defined one.
+   * If lazy attribute loading is switched on for the session, the attributes
+   * are not read here, but when they are accessed for the first time; see
+   * {@link Session#setLazyAttributeLoading(boolean)}.
    *
    * @param session
    *          The session to use for reading attributes. This session must
@@ -241,7 +302,12 @@ public class PKCS11Object {
     this.attributeTable = new Hashtable<>(32);
     allocateAttributes();
     this.objectHandle = objectHandle;
-    readAttributes(session);
+    Util.requireNonNull("session", session);
+    if (session.isLazyAttributeLoading()) {
+      deferAttributes(session);
+    } else if (!readAttributesByPlan(session)) {
+      readAttributes(session);
+    }
   }
 
   /**
@@ -460,6 +526,9 @@ public class PKCS11Object {
     }
 
     PKCS11Object other = (PKCS11Object) otherObject;
+    // subclasses compare their attributes after calling this method
+    this.ensureAttributesRead();
+    other.ensureAttributesRead();
     return (this.objectHandle == other.objectHandle)
         && this.objectClass.equals(other.objectClass);
   }
@@ -475,6 +544,7 @@ public class PKCS11Object {
    */
   @SuppressWarnings("unchecked")
   public Hashtable<Long, Attribute> getAttributeTable() {
+    ensureAttributesRead();
     return (Hashtable<Long, Attribute>) attributeTable.clone();
   }
 
@@ -513,7 +583,7 @@ public class PKCS11Object {
    * @return the attribute
    */
   public Attribute getAttribute(long attribute) {
-    return (Attribute) attributeTable.get(new Long(attribute));
+    return ensureRead((Attribute) attributeTable.get(new Long(attribute)));
   }
 
   /**
@@ -579,6 +649,7 @@ public class PKCS11Object {
    * @postconditions (result <> null)
    */
   public Vector<CK_ATTRIBUTE> getSetAttributes() {
+    ensureAttributesRead();
     Vector<CK_ATTRIBUTE> attributeCollection =
         new Vector<>(attributeTable.size());
 
@@ -654,6 +725,324 @@ public class PKCS11Object {
     // attribute
   }
 
+  /**
+   * Reads the attributes of this object using the read plan of its class.
+   * Instead of one C_GetAttributeValue call per attribute group and level of
+   * the class hierarchy, all public attributes are read in one call. The
+   * secret components of private and secret keys are read in a second call,
+   * which is skipped if the key is sensitive or not extractable.
+   * Attribute types which the module does not support for this class are
+   * learned in the invalid attribute cache of the module and are left out of
+   * later reads.
+   *
+   * @param session
+   *          The session to use for reading attributes.
+   * @return True, if the attributes have been read. False, if there is no
+   *         read plan for this class; the attributes must be read by
+   *         readAttributes(Session) then.
+   * @exception TokenException
+   *              If reading the attributes failed.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  private boolean readAttributesByPlan(Session session)
+      throws TokenException {
+    long[][] readPlan = getReadPlan(session);
+    if (readPlan == NO_READ_PLAN) {
+      return false;
+    }
+
+    InvalidAttributeCache invalidAttributes =
+        session.getModule().getInvalidAttributeCache();
+
+    Attribute[] attributes = getAttributes(readPlan[0], invalidAttributes);
+    if (attributes.length > 0) {
+      try {
+        readAttributesAtOnce(session, objectHandle, attributes);
+      } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
+        // e.g. some attribute is not supported by the module
+        readAndLearn(session, attributes, invalidAttributes);
+      }
+    }
+
+    Attribute[] secretAttributes =
+        getAttributes(readPlan[1], invalidAttributes);
+    if (secretAttributes.length > 0) {
+      if (isSecretReadable()) {
+        readAndLearn(session, secretAttributes, invalidAttributes);
+      } else {
+        // the module would answer CKR_ATTRIBUTE_SENSITIVE anyway
+        for (Attribute attribute : secretAttributes) {
+          attribute.setPresent(true);
+          attribute.setSensitive(true);
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Get the read plan of the class of this object. The plan is built on
+   * first use by recording the attributes readAttributes(Session) reads.
+   * Classes outside of this package, e.g. vendor-defined objects, get no
+   * read plan, because their readAttributes(Session) may do more than
+   * reading attributes.
+   */
+  private long[][] getReadPlan(Session session) {
+    Class<?> clazz = getClass();
+    long[][] readPlan = readPlans.get(clazz);
+    if (readPlan == null) {
+      readPlan = (clazz.getPackage() == PKCS11Object.class.getPackage())
+          ? buildReadPlan(session) : NO_READ_PLAN;
+      readPlans.put(clazz, readPlan);
+    }
+    return readPlan;
+  }
+
+  private long[][] buildReadPlan(Session session) {
+    List<Attribute[]> groups = new ArrayList<>();
+    recordedReads.set(groups);
+    try {
+      readAttributes(session);
+    } catch (TokenException ex) {
+      return NO_READ_PLAN;
+    } finally {
+      recordedReads.remove();
+    }
+
+    boolean secretKey = (this instanceof PrivateKey)
+        || (this instanceof SecretKey);
+    List<Long> publicTypes = new ArrayList<>();
+    List<Long> secretTypes = new ArrayList<>();
+    for (Attribute[] group : groups) {
+      for (Attribute attribute : group) {
+        Long type = attribute.getType();
+        // the plan must find the same attribute objects by their type
+        if (attributeTable.get(type) != attribute) {
+          return NO_READ_PLAN;
+        }
+        List<Long> types = (secretKey && isSecretComponent(type))
+            ? secretTypes : publicTypes;
+        if (!types.contains(type)) {
+          types.add(type);
+        }
+      }
+    }
+
+    return new long[][] {toLongArray(publicTypes), toLongArray(secretTypes)};
+  }
+
+  /**
+   * Check, if the given attribute type is one of the secret components of
+   * private and secret keys.
+   *
+   * @param type
+   *          The attribute type.
+   * @return True, if the type is a secret component.
+   */
+  static boolean isSecretComponent(long type) {
+    for (long secretType : SECRET_COMPONENTS) {
+      if (secretType == type) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static long[] toLongArray(List<Long> list) {
+    long[] array = new long[list.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = list.get(i).longValue();
+    }
+    return array;
+  }
+
+  /**
+   * Get the attributes of the given types, except those known to be
+   * unsupported; these are marked as not present.
+   */
+  private Attribute[] getAttributes(long[] types,
+      InvalidAttributeCache invalidAttributes) {
+    List<Attribute> attributes = new ArrayList<>(types.length);
+    for (long type : types) {
+      Attribute attribute = attributeTable.get(new Long(type));
+      if (invalidAttributes.isInvalid(getClass(), type)) {
+        attribute.setPresent(false);
+      } else {
+        attributes.add(attribute);
+      }
+    }
+    return attributes.toArray(new Attribute[attributes.size()]);
+  }
+
+  /**
+   * Reads the given attributes with the usual fallback of
+   * {@link #getAttributeValues(Session, long, Attribute[])} and learns the
+   * attributes which turned out to be unsupported.
+   */
+  private void readAndLearn(Session session, Attribute[] attributes,
+      InvalidAttributeCache invalidAttributes) throws PKCS11Exception {
+    getAttributeValues(session, objectHandle, attributes);
+    for (Attribute attribute : attributes) {
+      // only CKR_ATTRIBUTE_TYPE_INVALID leaves an attribute not present
+      if (!attribute.isPresent()) {
+        invalidAttributes.addInvalid(getClass(), attribute.getType());
+      }
+    }
+  }
+
+  /**
+   * Checks the CKA_SENSITIVE and CKA_EXTRACTABLE attributes, if they have
+   * been read.
+   */
+  private boolean isSecretReadable() {
+    Attribute sensitive = attributeTable.get(Attribute.SENSITIVE);
+    if (sensitive instanceof BooleanAttribute && sensitive.isPresent()
+        && Boolean.TRUE.equals(
+            ((BooleanAttribute) sensitive).getBooleanValue())) {
+      return false;
+    }
+
+    Attribute extractable = attributeTable.get(Attribute.EXTRACTABLE);
+    if (extractable instanceof BooleanAttribute && extractable.isPresent()
+        && Boolean.FALSE.equals(
+            ((BooleanAttribute) extractable).getBooleanValue())) {
+      return false;
+    }
+
+    return true;
+  }
+
+  /**
+   * Prepares this object for lazy attribute loading. Instead of reading the
+   * attributes, this method only records which attribute groups
+   * readAttributes(Session) would read. Each group is then read as a whole
+   * when one of its attributes is accessed for the first time.
+   *
+   * @param session
+   *          The session to read the attributes with later on.
+   * @exception TokenException
+   *              If collecting the attribute groups failed.
+   * @preconditions (session <> null)
+   * @postconditions
+   */
+  private void deferAttributes(Session session) throws TokenException {
+    List<Attribute[]> groups = new ArrayList<>();
+    recordedReads.set(groups);
+    try {
+      readAttributes(session);
+    } finally {
+      recordedReads.remove();
+    }
+
+    if (groups.isEmpty()) {
+      return;
+    }
+
+    Map<Attribute, Attribute[]> pending = new IdentityHashMap<>();
+    for (Attribute[] group : groups) {
+      for (Attribute attribute : group) {
+        pending.put(attribute, group);
+      }
+    }
+    lazySession = session;
+    pendingAttributes = pending;
+  }
+
+  /**
+   * Makes sure that the given attribute of this object has been read from
+   * the token. The getters of the subclasses pass their attributes through
+   * this method to support lazy attribute loading. For objects which have
+   * been read eagerly, this method returns immediately.
+   *
+   * @param attribute
+   *          The attribute to be accessed. May be null.
+   * @return The given attribute.
+   * @exception TokenRuntimeException
+   *              If reading the attribute failed.
+   * @preconditions
+   * @postconditions
+   */
+  protected <T extends Attribute> T ensureRead(T attribute) {
+    if (attribute != null && pendingAttributes != null) {
+      readPendingAttributes(attribute);
+    }
+    return attribute;
+  }
+
+  /**
+   * Makes sure that all attributes of this object have been read from the
+   * token.
+   *
+   * @exception TokenRuntimeException
+   *              If reading the attributes failed.
+   * @preconditions
+   * @postconditions
+   */
+  public void ensureAttributesRead() {
+    if (pendingAttributes != null) {
+      readPendingAttributes(null);
+    }
+  }
+
+  /**
+   * Check, if all attributes of this object have been read from the token.
+   *
+   * @return False, if this object has been loaded lazily and some attributes
+   *         have not been accessed yet. True, otherwise.
+   * @preconditions
+   * @postconditions
+   */
+  public boolean isAttributesRead() {
+    return pendingAttributes == null;
+  }
+
+  /**
+   * Reads the group of the given attribute, or all pending groups if the
+   * given attribute is null.
+   */
+  private synchronized void readPendingAttributes(Attribute attribute) {
+    Map<Attribute, Attribute[]> pending = pendingAttributes;
+    if (pending == null) {
+      return;
+    }
+
+    try {
+      if (attribute != null) {
+        Attribute[] group = pending.get(attribute);
+        if (group != null) {
+          readGroup(pending, group);
+        }
+      } else {
+        while (!pending.isEmpty()) {
+          readGroup(pending, pending.values().iterator().next());
+        }
+      }
+    } catch (TokenException ex) {
+      throw new TokenRuntimeException("could not read attributes of object 0x"
+          + Long.toHexString(objectHandle), ex);
+    }
+
+    if (pending.isEmpty()) {
+      lazySession = null;
+      pendingAttributes = null;
+    }
+  }
+
+  private void readGroup(Map<Attribute, Attribute[]> pending,
+      Attribute[] group) throws TokenException {
+    if (group.length == 1) {
+      getAttributeValue(lazySession, objectHandle, group[0]);
+    } else {
+      getAttributeValues(lazySession, objectHandle, group);
+    }
+
+    for (Attribute member : group) {
+      pending.remove(member);
+    }
+  }
+
   /**
    * Returns a string representation of the current object. The
    * output is only for debugging purposes and should not be used for other
@@ -665,6 +1054,7 @@ public class PKCS11Object {
    */
   @Override
   public String toString() {
+    ensureAttributesRead();
     StringBuilder sb = new StringBuilder(32);
     sb.append("  PKCS11Object Class: ");
     if (objectClass != null) {
@@ -692,6 +1082,7 @@ public class PKCS11Object {
    * @postconditions (result <> null)
    */
   public String toString(boolean newline, boolean withName, String indent) {
+    ensureAttributesRead();
     StringBuilder sb = new StringBuilder(1024);
 
     Enumeration<Attribute> attributesEnumeration = attributeTable.elements();
@@ -744,37 +1135,64 @@ public class PKCS11Object {
       Attribute attribute) throws PKCS11Exception {
     Util.requireNonNull("session", session);
 
-    PKCS11 pkcs11Module = session.getModule().getPKCS11Module();
-    long sessionHandle = session.getSessionHandle();
-    long attributeCode = attribute.getCkAttribute().type;
+    List<Attribute[]> recorder = recordedReads.get();
+    if (recorder != null) {
+      recorder.add(new Attribute[] {attribute});
+      return;
+    }
 
     try {
-      CK_ATTRIBUTE[] attributeTemplateList = new CK_ATTRIBUTE[1];
-      attributeTemplateList[0] = new CK_ATTRIBUTE();
-      attributeTemplateList[0].type = attributeCode;
-      pkcs11Module.C_GetAttributeValue(sessionHandle, objectHandle,
-          attributeTemplateList);
-      attribute.setCkAttribute(attributeTemplateList[0]);
-      attribute.setPresent(true);
-      attribute.setSensitive(false);
+      readAttributesAtOnce(session, objectHandle, new Attribute[] {attribute});
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      if (ex.getErrorCode()
-          == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
-        // this means, that some requested attributes are missing, but
-        // we can ignore this and proceed; e.g. a v2.01 module won't
-        // have the object ID attribute
-        attribute.setPresent(false);
-      } else if (ex.getErrorCode()
-          == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE) {
-        // this means, that some requested attributes are missing, but
-        // we can ignore this and proceed; e.g. a v2.01 module won't
-        // have the object ID attribute
-        attribute.setPresent(true);
-        attribute.setSensitive(true);
-      } else {
-        // there was a different error that we should propagate
-        throw new PKCS11Exception(ex);
-      }
+      handleAttributeException(session, objectHandle, attribute, ex);
+    }
+  }
+
+  /**
+   * Interprets the error of reading a single attribute. Sets the flags of
+   * the attribute for CKR_ATTRIBUTE_TYPE_INVALID and CKR_ATTRIBUTE_SENSITIVE,
+   * and throws any other error. The outcome is put into the attribute cache
+   * of the module, if there is one.
+   *
+   * @param session
+   *          The session used for reading the attribute.
+   * @param objectHandle
+   *          The handle of the object which contains the attribute.
+   * @param attribute
+   *          The attribute which could not be read.
+   * @param ex
+   *          The error of the module.
+   * @exception PKCS11Exception
+   *              If the error is not one of the two above.
+   * @preconditions (attribute <> null) and (ex <> null)
+   * @postconditions
+   */
+  private static void handleAttributeException(Session session,
+      long objectHandle, Attribute attribute,
+      sun.security.pkcs11.wrapper.PKCS11Exception ex)
+    throws PKCS11Exception {
+    if (ex.getErrorCode()
+        == PKCS11Constants.CKR_ATTRIBUTE_TYPE_INVALID) {
+      // this means, that some requested attributes are missing, but
+      // we can ignore this and proceed; e.g. a v2.01 module won't
+      // have the object ID attribute
+      attribute.setPresent(false);
+    } else if (ex.getErrorCode()
+        == PKCS11Constants.CKR_ATTRIBUTE_SENSITIVE) {
+      // this means, that some requested attributes are missing, but
+      // we can ignore this and proceed; e.g. a v2.01 module won't
+      // have the object ID attribute
+      attribute.setPresent(true);
+      attribute.setSensitive(true);
+    } else {
+      // there was a different error that we should propagate
+      throw new PKCS11Exception(ex);
+    }
+
+    AttributeCache cache = session.getModule().getAttributeCache();
+    if (cache != null) {
+      cache.put(session.getToken().getSlot().getSlotID(), objectHandle,
+          attribute);
     }
   }
 
@@ -782,7 +1200,9 @@ public class PKCS11Object {
    * This method reads the attributes in a similar way as
    * {@link #getAttributeValue}, but a complete array at once. This can lead
    * to performance improvements. If reading all attributes at once fails, it
-   * tries to read each attributes individually.
+   * splits the array into halves and reads each half the same way, until
+   * the failing attributes are isolated. With k failing attributes out of n,
+   * this needs about 2k*log2(n) calls instead of n calls.
    *
    * @param session
    *          The session to use for reading the attributes.
@@ -803,30 +1223,111 @@ public class PKCS11Object {
     Util.requireNonNull("session", session);
     Util.requireNonNull("attributes", attributes);
 
-    PKCS11 pkcs11Module = session.getModule().getPKCS11Module();
-    long sessionHandle = session.getSessionHandle();
+    List<Attribute[]> recorder = recordedReads.get();
+    if (recorder != null) {
+      recorder.add(attributes.clone());
+      return;
+    }
 
     try {
-      CK_ATTRIBUTE[] attributeTemplateList
-        = new CK_ATTRIBUTE[attributes.length];
-      for (int i = 0; i < attributes.length; i++) {
-        CK_ATTRIBUTE attribute = new CK_ATTRIBUTE();
-        attribute.type = attributes[i].getCkAttribute().type;
-        attributeTemplateList[i] = attribute;
-      }
-      pkcs11Module.C_GetAttributeValue(sessionHandle, objectHandle,
-            attributeTemplateList);
-      for (int i = 0; i < attributes.length; i++) {
-        attributes[i].setCkAttribute(attributeTemplateList[i]);
-        attributes[i].setPresent(true);
-        attributes[i].setSensitive(false);
-      }
+      readAttributesAtOnce(session, objectHandle, attributes);
     } catch (sun.security.pkcs11.wrapper.PKCS11Exception ex) {
-      // try to read values separately
-      for (int i = 0; i < attributes.length; i++) {
-        getAttributeValue(session, objectHandle, attributes[i]);
+      if (attributes.length == 1) {
+        handleAttributeException(session, objectHandle, attributes[0], ex);
+      } else if (isFatalReadError(ex.getErrorCode())) {
+        // splitting the array would not help
+        throw new PKCS11Exception(ex);
+      } else {
+        // isolate the failing attributes
+        int middle = attributes.length / 2;
+        getAttributeValues(session, objectHandle,
+            Arrays.copyOfRange(attributes, 0, middle));
+        getAttributeValues(session, objectHandle,
+            Arrays.copyOfRange(attributes, middle, attributes.length));
       }
     }
   }
 
+  /**
+   * Get the number of C_GetAttributeValue calls made by this class so far,
+   * for all modules and threads; i.e. by
+   * {@link #getAttributeValues(Session, long, Attribute[])}, by the single
+   * attribute reads and by the read plans. Failed calls are included, reads
+   * served by the attribute cache are not. Meant for diagnostics; e.g. to
+   * check how many calls reading an object with unsupported attributes
+   * takes.
+   *
+   * @return The number of attribute read calls.
+   * @preconditions
+   * @postconditions (result >= 0)
+   */
+  public static long getAttributeReadCount() {
+    return attributeReadCount.get();
+  }
+
+  /**
+   * Check, if the given error code concerns the object, session or device
+   * as a whole rather than single attributes.
+   */
+  private static boolean isFatalReadError(long errorCode) {
+    return errorCode == PKCS11Constants.CKR_OBJECT_HANDLE_INVALID
+        || errorCode == PKCS11Constants.CKR_SESSION_HANDLE_INVALID
+        || errorCode == PKCS11Constants.CKR_SESSION_CLOSED
+        || errorCode == PKCS11Constants.CKR_DEVICE_ERROR
+        || errorCode == PKCS11Constants.CKR_DEVICE_REMOVED
+        || errorCode == PKCS11Constants.CKR_TOKEN_NOT_PRESENT;
+  }
+
+  /**
+   * Reads all given attributes with a single C_GetAttributeValue call,
+   * without any fallback. If the module has an attribute cache, the
+   * attributes are taken from the cache if all of them are cached, and are
+   * put into the cache after reading them.
+   *
+   * @param session
+   *          The session to use for reading the attributes.
+   * @param objectHandle
+   *          The handle of the object which contains the attributes.
+   * @param attributes
+   *          The objects specifying the attribute types and receiving the
+   *          attribute values.
+   * @exception sun.security.pkcs11.wrapper.PKCS11Exception
+   *              If the module could not return all attributes.
+   * @preconditions (session <> null)
+   *                and (attributes <> null)
+   * @postconditions
+   */
+  private static void readAttributesAtOnce(Session session, long objectHandle,
+      Attribute[] attributes)
+    throws sun.security.pkcs11.wrapper.PKCS11Exception {
+    AttributeCache cache = session.getModule().getAttributeCache();
+    long slotId = (cache != null)
+        ? session.getToken().getSlot().getSlotID() : -1;
+    if (cache != null && cache.get(slotId, objectHandle, attributes)) {
+      return;
+    }
+
+    PKCS11 pkcs11Module = session.getModule().getPKCS11Module();
+    long sessionHandle = session.getSessionHandle();
+
+    CK_ATTRIBUTE[] attributeTemplateList = new CK_ATTRIBUTE[attributes.length];
+    for (int i = 0; i < attributes.length; i++) {
+      CK_ATTRIBUTE attribute = new CK_ATTRIBUTE();
+      attribute.type = attributes[i].getCkAttribute().type;
+      attributeTemplateList[i] = attribute;
+    }
+    attributeReadCount.incrementAndGet();
+    pkcs11Module.C_GetAttributeValue(sessionHandle, objectHandle,
+        attributeTemplateList);
+    for (int i = 0; i < attributes.length; i++) {
+      attributes[i].setCkAttribute(attributeTemplateList[i]);
+      attributes[i].setPresent(true);
+      attributes[i].setSensitive(false);
+    }
+
+    if (cache != null) {
+      cache.put(slotId, objectHandle, attributes);
+    }
+  }
+
 }
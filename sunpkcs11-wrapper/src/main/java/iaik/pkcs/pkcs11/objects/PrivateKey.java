@@ -380,7 +380,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSubject() {
-    return subject;
+    return ensureRead(subject);
   }
 
   /**
@@ -391,7 +391,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getSensitive() {
-    return sensitive;
+    return ensureRead(sensitive);
   }
 
   /**
@@ -402,7 +402,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getSecondaryAuth() {
-    return secondaryAuth;
+    return ensureRead(secondaryAuth);
   }
 
   /**
@@ -413,7 +413,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public LongAttribute getAuthPinFlags() {
-    return authPinFlags;
+    return ensureRead(authPinFlags);
   }
 
   /**
@@ -424,7 +424,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getDecrypt() {
-    return decrypt;
+    return ensureRead(decrypt);
   }
 
   /**
@@ -435,7 +435,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getSign() {
-    return sign;
+    return ensureRead(sign);
   }
 
   /**
@@ -446,7 +446,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getSignRecover() {
-    return signRecover;
+    return ensureRead(signRecover);
   }
 
   /**
@@ -457,7 +457,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getUnwrap() {
-    return unwrap;
+    return ensureRead(unwrap);
   }
 
   /**
@@ -468,7 +468,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getExtractable() {
-    return extractable;
+    return ensureRead(extractable);
   }
 
   /**
@@ -479,7 +479,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getAlwaysSensitive() {
-    return alwaysSensitive;
+    return ensureRead(alwaysSensitive);
   }
 
   /**
@@ -490,7 +490,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getNeverExtractable() {
-    return neverExtractable;
+    return ensureRead(neverExtractable);
   }
 
   /**
@@ -501,7 +501,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getWrapWithTrusted() {
-    return wrapWithTrusted;
+    return ensureRead(wrapWithTrusted);
   }
 
   /**
@@ -514,7 +514,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public AttributeArray getUnwrapTemplate() {
-    return unwrapTemplate;
+    return ensureRead(unwrapTemplate);
   }
 
   /**
@@ -525,7 +525,7 @@ public class PrivateKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getAlwaysAuthenticate() {
-    return alwaysAuthenticate;
+    return ensureRead(alwaysAuthenticate);
   }
 
   /**
@@ -307,7 +307,7 @@ public class PublicKey extends Key {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSubject() {
-    return subject;
+    return ensureRead(subject);
   }
 
   /**
@@ -318,7 +318,7 @@ public class PublicKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getEncrypt() {
-    return encrypt;
+    return ensureRead(encrypt);
   }
 
   /**
@@ -329,7 +329,7 @@ public class PublicKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getVerify() {
-    return verify;
+    return ensureRead(verify);
   }
 
   /**
@@ -340,7 +340,7 @@ public class PublicKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getVerifyRecover() {
-    return verifyRecover;
+    return ensureRead(verifyRecover);
   }
 
   /**
@@ -351,7 +351,7 @@ public class PublicKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getWrap() {
-    return wrap;
+    return ensureRead(wrap);
   }
 
   /**
@@ -362,7 +362,7 @@ public class PublicKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getTrusted() {
-    return trusted;
+    return ensureRead(trusted);
   }
 
   /**
@@ -375,7 +375,7 @@ public class PublicKey extends Key {
    * @postconditions (result <> null)
    */
   public AttributeArray getWrapTemplate() {
-    return wrapTemplate;
+    return ensureRead(wrapTemplate);
   }
 
   /**
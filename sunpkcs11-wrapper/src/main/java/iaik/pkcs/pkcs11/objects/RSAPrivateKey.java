@@ -243,7 +243,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getModulus() {
-    return modulus;
+    return ensureRead(modulus);
   }
 
   /**
@@ -254,7 +254,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPublicExponent() {
-    return publicExponent;
+    return ensureRead(publicExponent);
   }
 
   /**
@@ -265,7 +265,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPrivateExponent() {
-    return privateExponent;
+    return ensureRead(privateExponent);
   }
 
   /**
@@ -276,7 +276,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPrime1() {
-    return prime1;
+    return ensureRead(prime1);
   }
 
   /**
@@ -287,7 +287,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPrime2() {
-    return prime2;
+    return ensureRead(prime2);
   }
 
   /**
@@ -298,7 +298,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getExponent1() {
-    return exponent1;
+    return ensureRead(exponent1);
   }
 
   /**
@@ -309,7 +309,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getExponent2() {
-    return exponent2;
+    return ensureRead(exponent2);
   }
 
   /**
@@ -320,7 +320,7 @@ public class RSAPrivateKey extends PrivateKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getCoefficient() {
-    return coefficient;
+    return ensureRead(coefficient);
   }
 
   /**
@@ -198,7 +198,7 @@ public class RSAPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getModulus() {
-    return modulus;
+    return ensureRead(modulus);
   }
 
   /**
@@ -209,7 +209,7 @@ public class RSAPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getPublicExponent() {
-    return publicExponent;
+    return ensureRead(publicExponent);
   }
 
   /**
@@ -221,7 +221,7 @@ public class RSAPublicKey extends PublicKey {
    * @postconditions (result <> null)
    */
   public LongAttribute getModulusBits() {
-    return modulusBits;
+    return ensureRead(modulusBits);
   }
 
   /**
@@ -364,7 +364,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getSensitive() {
-    return sensitive;
+    return ensureRead(sensitive);
   }
 
   /**
@@ -375,7 +375,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getEncrypt() {
-    return encrypt;
+    return ensureRead(encrypt);
   }
 
   /**
@@ -386,7 +386,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getVerify() {
-    return verify;
+    return ensureRead(verify);
   }
 
   /**
@@ -397,7 +397,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getDecrypt() {
-    return decrypt;
+    return ensureRead(decrypt);
   }
 
   /**
@@ -408,7 +408,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getSign() {
-    return sign;
+    return ensureRead(sign);
   }
 
   /**
@@ -419,7 +419,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getWrap() {
-    return wrap;
+    return ensureRead(wrap);
   }
 
   /**
@@ -430,7 +430,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getUnwrap() {
-    return unwrap;
+    return ensureRead(unwrap);
   }
 
   /**
@@ -441,7 +441,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getExtractable() {
-    return extractable;
+    return ensureRead(extractable);
   }
 
   /**
@@ -452,7 +452,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getAlwaysSensitive() {
-    return alwaysSensitive;
+    return ensureRead(alwaysSensitive);
   }
 
   /**
@@ -463,7 +463,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getNeverExtractable() {
-    return neverExtractable;
+    return ensureRead(neverExtractable);
   }
 
   /**
@@ -474,7 +474,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getCheckValue() {
-    return checkValue;
+    return ensureRead(checkValue);
   }
 
   /**
@@ -485,7 +485,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getWrapWithTrusted() {
-    return wrapWithTrusted;
+    return ensureRead(wrapWithTrusted);
   }
 
   /**
@@ -496,7 +496,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getTrusted() {
-    return trusted;
+    return ensureRead(trusted);
   }
 
   /**
@@ -509,7 +509,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public AttributeArray getWrapTemplate() {
-    return wrapTemplate;
+    return ensureRead(wrapTemplate);
   }
 
   /**
@@ -522,7 +522,7 @@ public class SecretKey extends Key {
    * @postconditions (result <> null)
    */
   public AttributeArray getUnwrapTemplate() {
-    return unwrapTemplate;
+    return ensureRead(unwrapTemplate);
   }
 
   /**
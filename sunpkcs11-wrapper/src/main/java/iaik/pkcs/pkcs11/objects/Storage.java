@@ -185,7 +185,7 @@ public class Storage extends PKCS11Object {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getToken() {
-    return token;
+    return ensureRead(token);
   }
 
   /**
@@ -196,7 +196,7 @@ public class Storage extends PKCS11Object {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getPrivate() {
-    return private_;
+    return ensureRead(private_);
   }
 
   /**
@@ -207,7 +207,7 @@ public class Storage extends PKCS11Object {
    * @postconditions (result <> null)
    */
   public BooleanAttribute getModifiable() {
-    return modifiable;
+    return ensureRead(modifiable);
   }
 
   /**
@@ -218,7 +218,7 @@ public class Storage extends PKCS11Object {
    * @postconditions (result <> null)
    */
   public CharArrayAttribute getLabel() {
-    return label;
+    return ensureRead(label);
   }
 
   /**
@@ -270,6 +270,7 @@ public class Storage extends PKCS11Object {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return token.hashCode() ^ private_.hashCode() ^ modifiable.hashCode()
       ^ label.hashCode();
   }
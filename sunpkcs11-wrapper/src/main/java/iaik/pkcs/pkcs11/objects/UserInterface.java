@@ -199,7 +199,7 @@ public class UserInterface extends HardwareFeature {
    * @return the pixel y
    */
   public LongAttribute getPixelY() {
-    return pixelY;
+    return ensureRead(pixelY);
   }
 
   /**
@@ -208,7 +208,7 @@ public class UserInterface extends HardwareFeature {
    * @return the resolution
    */
   public LongAttribute getResolution() {
-    return resolution;
+    return ensureRead(resolution);
   }
 
   /**
@@ -217,7 +217,7 @@ public class UserInterface extends HardwareFeature {
    * @return the char rows
    */
   public LongAttribute getCharRows() {
-    return charRows;
+    return ensureRead(charRows);
   }
 
   /**
@@ -226,7 +226,7 @@ public class UserInterface extends HardwareFeature {
    * @return the char columns
    */
   public LongAttribute getCharColumns() {
-    return charColumns;
+    return ensureRead(charColumns);
   }
 
   /**
@@ -235,7 +235,7 @@ public class UserInterface extends HardwareFeature {
    * @return the color
    */
   public BooleanAttribute getColor() {
-    return color;
+    return ensureRead(color);
   }
 
   /**
@@ -244,7 +244,7 @@ public class UserInterface extends HardwareFeature {
    * @return the bits per pixel
    */
   public LongAttribute getBitsPerPixel() {
-    return bitsPerPixel;
+    return ensureRead(bitsPerPixel);
   }
 
   /**
@@ -253,7 +253,7 @@ public class UserInterface extends HardwareFeature {
    * @return the char sets
    */
   public ByteArrayAttribute getCharSets() {
-    return charSets;
+    return ensureRead(charSets);
   }
 
   /**
@@ -262,7 +262,7 @@ public class UserInterface extends HardwareFeature {
    * @return the encoding methods
    */
   public ByteArrayAttribute getEncodingMethods() {
-    return encodingMethods;
+    return ensureRead(encodingMethods);
   }
 
   /**
@@ -271,7 +271,7 @@ public class UserInterface extends HardwareFeature {
    * @return the mime types
    */
   public ByteArrayAttribute getMimeTypes() {
-    return mimeTypes;
+    return ensureRead(mimeTypes);
   }
 
   /**
@@ -282,6 +282,7 @@ public class UserInterface extends HardwareFeature {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return pixelX.hashCode() ^ pixelY.hashCode() ^ resolution.hashCode()
       ^ charRows.hashCode() ^ charColumns.hashCode() ^ color.hashCode()
       ^ bitsPerPixel.hashCode() ^ charSets.hashCode()
@@ -191,7 +191,7 @@ public class ValuedSecretKey extends SecretKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -202,7 +202,7 @@ public class ValuedSecretKey extends SecretKey {
    * @postconditions (result <> null)
    */
   public LongAttribute getValueLen() {
-    return valueLen;
+    return ensureRead(valueLen);
   }
 
   /**
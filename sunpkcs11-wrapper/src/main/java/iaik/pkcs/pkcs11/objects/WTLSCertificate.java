@@ -225,7 +225,7 @@ public class WTLSCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSubject() {
-    return subject;
+    return ensureRead(subject);
   }
 
   /**
@@ -236,7 +236,7 @@ public class WTLSCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getIssuer() {
-    return issuer;
+    return ensureRead(issuer);
   }
 
   /**
@@ -247,7 +247,7 @@ public class WTLSCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -258,7 +258,7 @@ public class WTLSCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public CharArrayAttribute getUrl() {
-    return url;
+    return ensureRead(url);
   }
 
   /**
@@ -271,7 +271,7 @@ public class WTLSCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getHashOfSubjectPublicKey() {
-    return hashOfSubjectPublicKey;
+    return ensureRead(hashOfSubjectPublicKey);
   }
 
   /**
@@ -284,7 +284,7 @@ public class WTLSCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getHashOfIssuerPublicKey() {
-    return hashOfIssuerPublicKey;
+    return ensureRead(hashOfIssuerPublicKey);
   }
 
   /**
@@ -297,6 +297,7 @@ public class WTLSCertificate extends Certificate {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return issuer.hashCode();
   }
 
@@ -216,7 +216,7 @@ public class X509AttributeCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getOwner() {
-    return owner;
+    return ensureRead(owner);
   }
 
   /**
@@ -229,7 +229,7 @@ public class X509AttributeCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getAcIssuer() {
-    return acIssuer;
+    return ensureRead(acIssuer);
   }
 
   /**
@@ -240,7 +240,7 @@ public class X509AttributeCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSerialNumber() {
-    return serialNumber;
+    return ensureRead(serialNumber);
   }
 
   /**
@@ -252,7 +252,7 @@ public class X509AttributeCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getAttrTypes() {
-    return attrTypes;
+    return ensureRead(attrTypes);
   }
 
   /**
@@ -263,7 +263,7 @@ public class X509AttributeCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -276,6 +276,7 @@ public class X509AttributeCertificate extends Certificate {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return acIssuer.hashCode() ^ serialNumber.hashCode();
   }
 
@@ -259,7 +259,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSubject() {
-    return subject;
+    return ensureRead(subject);
   }
 
   /**
@@ -270,7 +270,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getId() {
-    return id;
+    return ensureRead(id);
   }
 
   /**
@@ -281,7 +281,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getIssuer() {
-    return issuer;
+    return ensureRead(issuer);
   }
 
   /**
@@ -292,7 +292,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSerialNumber() {
-    return serialNumber;
+    return ensureRead(serialNumber);
   }
 
   /**
@@ -303,7 +303,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**
@@ -314,7 +314,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public CharArrayAttribute getUrl() {
-    return url;
+    return ensureRead(url);
   }
 
   /**
@@ -327,7 +327,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getHashOfSubjectPublicKey() {
-    return hashOfSubjectPublicKey;
+    return ensureRead(hashOfSubjectPublicKey);
   }
 
   /**
@@ -340,7 +340,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getHashOfIssuerPublicKey() {
-    return hashOfIssuerPublicKey;
+    return ensureRead(hashOfIssuerPublicKey);
   }
 
   /**
@@ -351,7 +351,7 @@ public class X509PublicKeyCertificate extends Certificate {
    * @postconditions (result <> null)
    */
   public LongAttribute getJavaMidpSecurityDomain() {
-    return javaMidpSecurityDomain;
+    return ensureRead(javaMidpSecurityDomain);
   }
 
   /**
@@ -364,6 +364,7 @@ public class X509PublicKeyCertificate extends Certificate {
    */
   @Override
   public int hashCode() {
+    ensureAttributesRead();
     return issuer.hashCode() ^ serialNumber.hashCode();
   }
 
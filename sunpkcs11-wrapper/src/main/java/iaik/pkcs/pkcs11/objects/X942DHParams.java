@@ -201,7 +201,7 @@ public class X942DHParams extends DHParams {
    */
   @Override
   public ByteArrayAttribute getPrime() {
-    return prime;
+    return ensureRead(prime);
   }
 
   /**
@@ -213,7 +213,7 @@ public class X942DHParams extends DHParams {
    */
   @Override
   public ByteArrayAttribute getBase() {
-    return base;
+    return ensureRead(base);
   }
 
   /**
@@ -224,7 +224,7 @@ public class X942DHParams extends DHParams {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSubprime() {
-    return subprime;
+    return ensureRead(subprime);
   }
 
   /**
@@ -236,7 +236,7 @@ public class X942DHParams extends DHParams {
    */
   @Override
   public LongAttribute getPrimeBits() {
-    return primeBits;
+    return ensureRead(primeBits);
   }
 
   /**
@@ -247,7 +247,7 @@ public class X942DHParams extends DHParams {
    * @postconditions (result <> null)
    */
   public LongAttribute getSubprimeBits() {
-    return subprimeBits;
+    return ensureRead(subprimeBits);
   }
 
   /**
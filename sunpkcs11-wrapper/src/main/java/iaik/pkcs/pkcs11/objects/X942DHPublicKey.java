@@ -192,7 +192,7 @@ public class X942DHPublicKey extends DHPublicKey {
    */
   @Override
   public ByteArrayAttribute getPrime() {
-    return prime;
+    return ensureRead(prime);
   }
 
   /**
@@ -204,7 +204,7 @@ public class X942DHPublicKey extends DHPublicKey {
    */
   @Override
   public ByteArrayAttribute getBase() {
-    return base;
+    return ensureRead(base);
   }
 
   /**
@@ -215,7 +215,7 @@ public class X942DHPublicKey extends DHPublicKey {
    * @postconditions (result <> null)
    */
   public ByteArrayAttribute getSubprime() {
-    return subprime;
+    return ensureRead(subprime);
   }
 
   /**
@@ -227,7 +227,7 @@ public class X942DHPublicKey extends DHPublicKey {
    */
   @Override
   public ByteArrayAttribute getValue() {
-    return value;
+    return ensureRead(value);
   }
 
   /**